@@ -0,0 +1,59 @@
+package place.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import place.PlaceBoard;
+import place.PlaceTile;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks changing, reading and printing the board.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BoardBenchmark {
+    @Param({"64", "256", "1024"})
+    public int dim;
+
+    private PlaceBoard board;
+    private PlaceTile[] tiles;
+    private int next;
+
+    @Setup
+    public void setup() {
+        this.board = Samples.randomBoard(this.dim);
+        this.tiles = Samples.randomTiles(this.dim, 100);
+    }
+
+    @Benchmark
+    public void setTile() {
+        this.board.setTile(this.tiles[this.next++ & (Samples.SAMPLES - 1)]);
+    }
+
+    @Benchmark
+    public PlaceTile getTile() {
+        PlaceTile tile = this.tiles[this.next++ & (Samples.SAMPLES - 1)];
+        return this.board.getTile(tile.getRow(), tile.getCol());
+    }
+
+    @Benchmark
+    public String print() {
+        return this.board.toString();
+    }
+}
@@ -0,0 +1,49 @@
+package place.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import place.PlaceColor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks looking colors up by number and by name.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ColorBenchmark {
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setup() {
+        this.names = new String[PlaceColor.TOTAL_COLORS];
+        for (int i = 0; i < this.names.length; i++) {
+            this.names[i] = PlaceColor.getPlaceColor(i).getName();
+        }
+    }
+
+    @Benchmark
+    public PlaceColor byNumber() {
+        return PlaceColor.getPlaceColor(this.next++ % PlaceColor.TOTAL_COLORS);
+    }
+
+    @Benchmark
+    public PlaceColor byName() {
+        return PlaceColor.getPlaceColor(this.names[this.next++ % PlaceColor.TOTAL_COLORS]);
+    }
+}
@@ -0,0 +1,81 @@
+package place.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import place.PlaceBoard;
+import place.PlaceTile;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks encoding a request into a frame and decoding it again, for a
+ * tile, a batch of tiles and a whole board with its metadata.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExchangeBenchmark {
+    /** How many tiles a batch holds in the batch benchmark */
+    private static final int BATCH_TILES = 100;
+
+    @Param({"64", "256", "1024"})
+    public int dim;
+
+    private PlaceBoard board;
+    private PlaceTile[] tiles;
+    private PlaceRequest<ArrayList<PlaceTile>> batch;
+    private int next;
+
+    @Setup
+    public void setup() {
+        this.board = Samples.randomBoard(this.dim);
+        this.tiles = Samples.randomTiles(this.dim, 100);
+        for (PlaceTile tile : this.tiles) {
+            this.board.setTile(tile);
+        }
+        ArrayList<PlaceTile> batch = new ArrayList<>();
+        for (int i = 0; i < BATCH_TILES; i++) {
+            batch.add(this.tiles[i]);
+        }
+        this.batch = new PlaceRequest<>(PlaceRequest.RequestType.TILE_BATCH, batch);
+    }
+
+    @Benchmark
+    public PlaceRequest<?> tile() throws IOException {
+        PlaceRequest<PlaceTile> req = new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED,
+                this.tiles[this.next++ & (Samples.SAMPLES - 1)]);
+        ByteBuffer frame = PlaceExchange.encode(req, this.board);
+        return PlaceExchange.decode(frame, this.board, PlaceExchange.MAX_SERVER_FRAME);
+    }
+
+    @Benchmark
+    public PlaceRequest<?> batch() throws IOException {
+        ByteBuffer frame = PlaceExchange.encode(this.batch, this.board);
+        return PlaceExchange.decode(frame, this.board, PlaceExchange.MAX_SERVER_FRAME);
+    }
+
+    @Benchmark
+    public PlaceRequest<?> board() throws IOException {
+        ByteBuffer frame = PlaceExchange.encodeBoard(PlaceRequest.RequestType.LOGIN_SUCCESS, this.board, true);
+        return PlaceExchange.decode(frame, null, PlaceExchange.MAX_SERVER_FRAME);
+    }
+}
@@ -0,0 +1,161 @@
+package place.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import place.PlaceBoard;
+import place.PlaceTile;
+import place.network.PlaceRequest;
+import place.server.BoardSequencer;
+import place.server.ClientConnection;
+import place.server.ServerMetrics;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks broadcasting changes through the sequencer to clients that
+ * only count what they are sent.  Each invocation publishes a run of
+ * changes and waits until every client has been sent all of them, so the
+ * time per operation is the time to apply a change and hand it to every
+ * client.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanoutBenchmark {
+    /** How many changes each invocation publishes */
+    private static final int CHANGES_PER_CALL = 64;
+    /** The board dimension */
+    private static final int DIM = 256;
+
+    /**
+     * A client of the sequencer that only counts the frames sent to it.
+     */
+    private static class SinkConnection implements ClientConnection {
+        private final String userName;
+        private final AtomicLong frames;
+
+        /**
+         * Creates a sink.
+         *
+         * @param userName its username
+         * @param frames counts the frames of every sink
+         */
+        private SinkConnection(String userName, AtomicLong frames) {
+            this.userName = userName;
+            this.frames = frames;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void sendRequest(PlaceRequest<?> req) {
+            this.frames.incrementAndGet();
+        }
+
+        @Override
+        public void sendFrame(ByteBuffer frame) {
+            this.frames.incrementAndGet();
+        }
+
+        @Override
+        public int getBacklog() {
+            return 0;
+        }
+
+        @Override
+        public void setUserName(String userName) {
+        }
+
+        @Override
+        public String getUserName() {
+            return this.userName;
+        }
+
+        @Override
+        public String getIp() {
+            return "sink";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Param({"1", "100", "1000"})
+    public int clients;
+
+    private BoardSequencer sequencer;
+    private Thread thread;
+    private AtomicLong frames;
+    private SinkConnection publisher;
+    private PlaceTile[] tiles;
+    private long published;
+    private int next;
+
+    @Setup
+    public void setup() {
+        this.sequencer = new BoardSequencer(new PlaceBoard(DIM), 65536, 0, true, false,
+                null, null, 0, new ServerMetrics(null));
+        this.thread = new Thread(this.sequencer, "bench-sequencer");
+        this.thread.start();
+        this.frames = new AtomicLong();
+        for (int c = 0; c < this.clients; c++) {
+            SinkConnection sink = new SinkConnection("sink" + c, this.frames);
+            if (c == 0) {
+                this.publisher = sink;
+            }
+            this.sequencer.join(sink, 0);
+        }
+        //Every client gets the owner of each later client and its own board.
+        long expected = (long) this.clients * (this.clients + 1) / 2;
+        while (this.frames.get() < expected) {
+            Thread.yield();
+        }
+        this.frames.set(0);
+        this.tiles = Samples.randomTiles(DIM, 1);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        this.sequencer.close();
+        this.thread.join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHANGES_PER_CALL)
+    public long fanout() {
+        for (int c = 0; c < CHANGES_PER_CALL; c++) {
+            PlaceTile tile = this.tiles[this.next++ & (Samples.SAMPLES - 1)];
+            while (!this.sequencer.publishChange(this.publisher, new PlaceTile(tile.getRow(), tile.getCol(),
+                    this.publisher.getUserName(), tile.getColor(), tile.getTime()))) {
+                Thread.yield();
+            }
+        }
+        this.published += CHANGES_PER_CALL;
+        long target = this.published * this.clients;
+        while (this.frames.get() < target) {
+            Thread.onSpinWait();
+        }
+        return target;
+    }
+}
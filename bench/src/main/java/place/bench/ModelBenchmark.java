@@ -0,0 +1,59 @@
+package place.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import place.PlaceBoard;
+import place.PlaceTile;
+import place.model.ClientModel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks changing a tile of the client model with its observers.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ModelBenchmark {
+    /** The board dimension of the model */
+    private static final int DIM = 256;
+
+    @Param({"1", "100", "1000"})
+    public int observers;
+
+    private ClientModel model;
+    private PlaceTile[] tiles;
+    /** What the observers saw, so their work is not optimized away */
+    private long seen;
+    private int next;
+
+    @Setup
+    public void setup() {
+        this.model = new ClientModel();
+        this.model.allocate(new PlaceBoard(DIM));
+        for (int o = 0; o < this.observers; o++) {
+            this.model.addObserver((m, tile) -> this.seen += tile.getCol());
+        }
+        this.tiles = Samples.randomTiles(DIM, 100);
+    }
+
+    @Benchmark
+    public long changeTile() {
+        this.model.changeTile(this.tiles[this.next++ & (Samples.SAMPLES - 1)]);
+        return this.seen;
+    }
+}
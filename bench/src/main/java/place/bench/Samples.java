@@ -0,0 +1,56 @@
+package place.bench;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.util.Random;
+
+/**
+ * The boards and tiles the benchmarks work on.  They are random but seeded
+ * by the board dimension, so every run works on the same ones.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+final class Samples {
+    /** How many random tiles and cells the benchmarks cycle through, a power of two */
+    static final int SAMPLES = 4096;
+
+    /**
+     * Utility class, not to be instantiated.
+     */
+    private Samples() {}
+
+    /**
+     * Makes random tiles on a board.
+     *
+     * @param dim the board dimension
+     * @param owners how many different owners to use
+     * @return the tiles
+     */
+    static PlaceTile[] randomTiles(int dim, int owners) {
+        Random random = new Random(dim);
+        PlaceTile[] tiles = new PlaceTile[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            tiles[i] = new PlaceTile(random.nextInt(dim), random.nextInt(dim), "user" + random.nextInt(owners),
+                    PlaceColor.getPlaceColor(random.nextInt(PlaceColor.TOTAL_COLORS)), i);
+        }
+        return tiles;
+    }
+
+    /**
+     * Makes a board with a random tile set in about a quarter of its cells.
+     *
+     * @param dim the board dimension
+     * @return the board
+     */
+    static PlaceBoard randomBoard(int dim) {
+        PlaceBoard board = new PlaceBoard(dim);
+        Random random = new Random(dim);
+        for (int i = 0; i < dim * dim / 4; i++) {
+            board.setTile(new PlaceTile(random.nextInt(dim), random.nextInt(dim), "user" + random.nextInt(100),
+                    PlaceColor.getPlaceColor(random.nextInt(PlaceColor.TOTAL_COLORS)), i));
+        }
+        return board;
+    }
+}
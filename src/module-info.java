@@ -1,4 +1,6 @@
 module Place {
     requires transitive javafx.controls;
+    requires java.management;
+    requires jdk.jfr;
     exports place.client.gui;
 }
\ No newline at end of file
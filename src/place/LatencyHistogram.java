@@ -0,0 +1,128 @@
+package place;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds that any number of threads may
+ * record into at once.  Each power of two is split into 16 buckets, so a
+ * percentile is within about 6% of the real duration.  The buckets are
+ * striped counters, so recording never waits on another thread.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class LatencyHistogram {
+    /** The buckets each power of two is split into */
+    private static final int SUB_BUCKETS = 16;
+
+    private final LongAdder[] counts;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    /**
+     * Creates an empty histogram.
+     */
+    public LatencyHistogram() {
+        this.counts = new LongAdder[64 * SUB_BUCKETS];
+        for (int i = 0; i < this.counts.length; i++) {
+            this.counts[i] = new LongAdder();
+        }
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long n = Math.max(0, nanos);
+        this.counts[bucket(n)].increment();
+        this.count.increment();
+        this.sum.add(n);
+        this.max.accumulate(n);
+    }
+
+    /**
+     * Gets the number of durations recorded.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * Gets the sum of the durations recorded.
+     *
+     * @return the sum in nanoseconds
+     */
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * Gets the longest duration recorded.
+     *
+     * @return the duration in nanoseconds
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Gets the duration that a fraction of the durations are at or under.
+     * Durations recorded while this runs may or may not be counted.
+     *
+     * @param fraction the fraction, such as 0.99
+     * @return the smallest duration of the bucket the fraction falls in, 0 if none are recorded
+     */
+    public long getPercentile(double fraction) {
+        long[] snapshot = new long[this.counts.length];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = this.counts[i].sum();
+            total += snapshot[i];
+        }
+        long target = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return lowest(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the bucket of a duration.
+     *
+     * @param nanos the duration, not negative
+     * @return the bucket
+     */
+    private static int bucket(long nanos) {
+        if (nanos < 2 * SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - 4;
+        return shift * SUB_BUCKETS + (int) (nanos >>> shift);
+    }
+
+    /**
+     * Gets the smallest duration in a bucket.
+     *
+     * @param bucket the bucket
+     * @return the duration in nanoseconds
+     */
+    private static long lowest(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (bucket - shift * SUB_BUCKETS) << shift;
+    }
+}
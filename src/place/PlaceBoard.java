@@ -1,19 +1,53 @@
 package place;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 
 /**
  * The board is the place that holds the colored tiles.  The server creates
  * the initial Board and then transmits it only once to each client that
  * successfully logs in to the server.
  *
+ * The tiles are not stored as objects.  Colors are packed two to a byte,
+ * owners are stored as ids into a table of user names and the change times
+ * are kept in a parallel array.  {@link #getTile(int, int)} builds a tile
+ * from that storage and {@link #setTile(PlaceTile)} writes one back into it.
+ * The board expects a single writer at a time.
+ *
+ * For sending a large board piece by piece it is split into square chunks
+ * of {@link #CHUNK_SIZE} tiles a side, numbered row by row.
+ *
  * @author Sean Strout @ RIT CS
  */
 public class PlaceBoard implements Serializable {
+    /** The side of a chunk, in tiles */
+    public static final int CHUNK_SIZE = 64;
+    /** How many owners or times are written or read at a time, so no buffer outgrows an array */
+    private static final int SLICE = 1 << 16;
     /** The square dimension of the board */
     public final int DIM;
-    /** The grid of tiles */
-    private PlaceTile[][] board;
+    /** The tile colors, two per byte (even tiles in the low nibble) */
+    private byte[] colors;
+    /** The owner id of each tile */
+    private int[] owners;
+    /** The time each tile was changed, in milliseconds */
+    private long[] times;
+    /** The owner names, indexed by owner id (id 0 is the unowned "") */
+    private ArrayList<String> ownerNames;
+    /** The owner ids, indexed by owner name */
+    private transient HashMap<String, Integer> ownerIds;
+    /** The sequence number of the last change applied to the board */
+    private long sequence;
+    /** The chunks of a board sent chunk by chunk that have not been read yet, or null */
+    private transient BitSet unread;
 
     /**
      * Create a new board of all white tiles.
@@ -22,22 +56,47 @@ public class PlaceBoard implements Serializable {
      */
     public PlaceBoard(int DIM) {
         this.DIM = DIM;
-        this.board = new PlaceTile[DIM][DIM];
-        for (int row=0; row<DIM; ++row) {
-            for (int col=0; col<DIM; ++col) {
-                this.board[row][col] =
-                        new PlaceTile(row, col, "", PlaceColor.WHITE);
-            }
-        }
+        int tiles = DIM * DIM;
+        this.colors = new byte[(tiles + 1) / 2];
+        Arrays.fill(this.colors, (byte) (PlaceColor.WHITE.getNumber() * 0x11));
+        this.owners = new int[tiles];
+        this.times = new long[tiles];
+        this.ownerNames = new ArrayList<>();
+        this.ownerIds = new HashMap<>();
+        this.ownerNames.add("");
+        this.ownerIds.put("", 0);
+    }
+
+    /**
+     * Create a copy of a board.
+     *
+     * @param other the board to copy
+     */
+    public PlaceBoard(PlaceBoard other) {
+        this.DIM = other.DIM;
+        this.colors = other.colors.clone();
+        this.owners = other.owners.clone();
+        this.times = other.times.clone();
+        this.ownerNames = new ArrayList<>(other.ownerNames);
+        this.ownerIds = new HashMap<>(other.ownerIds);
+        this.sequence = other.sequence;
+        this.unread = other.unread == null ? null : (BitSet) other.unread.clone();
     }
 
     /**
-     * Get the entire board.
+     * Get the entire board.  The tiles are built from the packed storage, so
+     * changing them does not change the board.
      *
      * @return the board
      */
     public PlaceTile[][] getBoard() {
-        return this.board;
+        PlaceTile[][] board = new PlaceTile[DIM][DIM];
+        for (int row=0; row<DIM; ++row) {
+            for (int col=0; col<DIM; ++col) {
+                board[row][col] = getTile(row, col);
+            }
+        }
+        return board;
     }
 
     /**
@@ -49,7 +108,21 @@ public class PlaceBoard implements Serializable {
      * @return the tile
      */
     public PlaceTile getTile(int row, int col){
-        return this.board[row][col];
+        int index = row * DIM + col;
+        return new PlaceTile(row, col, this.ownerNames.get(this.owners[index]),
+                PlaceColor.getPlaceColor(getColorNumber(index)), this.times[index]);
+    }
+
+    /**
+     * Get the color of a tile without building the tile.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the color
+     */
+    public PlaceColor getColor(int row, int col) {
+        return PlaceColor.getPlaceColor(getColorNumber(row * DIM + col));
     }
 
     /**
@@ -59,7 +132,365 @@ public class PlaceBoard implements Serializable {
      * @rit.pre row and column constitute a valid board coordinate
      */
     public void setTile(PlaceTile tile) {
-        this.board[tile.getRow()][tile.getCol()] = tile;
+        int index = tile.getRow() * DIM + tile.getCol();
+        setColorNumber(index, tile.getColor().getNumber());
+        String owner = tile.getOwner();
+        this.owners[index] = getOwnerId(owner == null ? "" : owner);
+        this.times[index] = tile.getTime();
+    }
+
+    /**
+     * Change a tile by owner id, without building a tile.  Used to replay
+     * recorded changes quickly.
+     *
+     * @param row row
+     * @param col column
+     * @param owner the owner id
+     * @param color the color number, 0-15
+     * @param time the time of the change
+     * @rit.pre row and column constitute a valid board coordinate and the
+     *          owner id is in the owner table
+     */
+    public void setTile(int row, int col, int owner, int color, long time) {
+        int index = row * DIM + col;
+        setColorNumber(index, color);
+        this.owners[index] = owner;
+        this.times[index] = time;
+    }
+
+    /**
+     * Get the id for an owner name, adding the name to the owner table
+     * if it has not been seen before.
+     *
+     * @param owner the owner name
+     * @return the owner id
+     */
+    public int getOwnerId(String owner) {
+        Integer id = this.ownerIds.get(owner);
+        if (id == null) {
+            id = this.ownerNames.size();
+            this.ownerNames.add(owner);
+            this.ownerIds.put(owner, id);
+        }
+        return id;
+    }
+
+    /**
+     * Get the owner name for an owner id.
+     *
+     * @param id the owner id
+     * @return the owner name
+     */
+    public String getOwnerName(int id) {
+        return this.ownerNames.get(id);
+    }
+
+    /**
+     * Set the owner name for an owner id the server has announced.  Ids are
+     * handed out in order, so the id is normally the next one in the table.
+     *
+     * @param id the owner id
+     * @param owner the owner name
+     */
+    public void setOwnerName(int id, String owner) {
+        while (this.ownerNames.size() <= id) {
+            this.ownerNames.add("");
+        }
+        String old = this.ownerNames.get(id);
+        if (this.ownerIds.get(old) != null && this.ownerIds.get(old) == id) {
+            this.ownerIds.remove(old);
+        }
+        this.ownerNames.set(id, owner);
+        this.ownerIds.put(owner, id);
+    }
+
+    /**
+     * Get the sequence number of the last change applied to the board.
+     *
+     * @return the sequence number, 0 if the board's changes are not numbered
+     */
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Set the sequence number of the last change applied to the board.
+     *
+     * @param sequence the sequence number
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Get the number of owner ids handed out so far.
+     *
+     * @return the size of the owner table
+     */
+    public int getOwnerCount() {
+        return this.ownerNames.size();
+    }
+
+    /**
+     * Write the board in its packed binary form: the packed colors, the
+     * owner table, then if asked the owner ids and times of the tiles.  The
+     * dimension is not written, the reader has to know it.  The owner table
+     * is always written since later tile changes refer to it.
+     *
+     * @param out where to write the board
+     * @param metadata whether to write the tile owners and times
+     * @throws IOException if the board can't be written
+     */
+    public void writeTo(DataOutput out, boolean metadata) throws IOException {
+        out.write(this.colors);
+        writeOwners(out);
+        if (!metadata) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(SLICE * Long.BYTES);
+        for (int i = 0; i < this.owners.length; i += SLICE) {
+            int n = Math.min(SLICE, this.owners.length - i);
+            bytes.asIntBuffer().put(this.owners, i, n);
+            out.write(bytes.array(), 0, n * Integer.BYTES);
+        }
+        for (int i = 0; i < this.times.length; i += SLICE) {
+            int n = Math.min(SLICE, this.times.length - i);
+            bytes.asLongBuffer().put(this.times, i, n);
+            out.write(bytes.array(), 0, n * Long.BYTES);
+        }
+    }
+
+    /**
+     * Read a board written by {@link #writeTo(DataOutput, boolean)}.
+     * Without metadata every tile is unowned and has time 0.
+     *
+     * @param in where to read the board from
+     * @param DIM the square dimension of the board
+     * @param metadata whether the tile owners and times were written
+     * @return the board
+     * @throws IOException if the board can't be read
+     */
+    public static PlaceBoard readFrom(DataInput in, int DIM, boolean metadata) throws IOException {
+        PlaceBoard board = new PlaceBoard(DIM);
+        in.readFully(board.colors);
+        board.readOwners(in);
+        if (!metadata) {
+            return board;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(SLICE * Long.BYTES);
+        for (int i = 0; i < board.owners.length; i += SLICE) {
+            int n = Math.min(SLICE, board.owners.length - i);
+            in.readFully(bytes.array(), 0, n * Integer.BYTES);
+            bytes.asIntBuffer().get(board.owners, i, n);
+        }
+        for (int i = 0; i < board.times.length; i += SLICE) {
+            int n = Math.min(SLICE, board.times.length - i);
+            in.readFully(bytes.array(), 0, n * Long.BYTES);
+            bytes.asLongBuffer().get(board.times, i, n);
+        }
+        return board;
+    }
+
+    /**
+     * Write the owner table.
+     *
+     * @param out where to write the table
+     * @throws IOException if the table can't be written
+     */
+    public void writeOwners(DataOutput out) throws IOException {
+        out.writeInt(this.ownerNames.size());
+        for (String owner : this.ownerNames) {
+            out.writeUTF(owner);
+        }
+    }
+
+    /**
+     * Read an owner table written by {@link #writeOwners(DataOutput)} into
+     * this board.
+     *
+     * @param in where to read the table from
+     * @throws IOException if the table can't be read
+     */
+    public void readOwners(DataInput in) throws IOException {
+        int owners = in.readInt();
+        for (int id=0; id<owners; ++id) {
+            setOwnerName(id, in.readUTF());
+        }
+    }
+
+    /**
+     * Get the number of chunks the board is split into.
+     *
+     * @return the number of chunks
+     */
+    public int getChunkCount() {
+        int side = (DIM + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        return side * side;
+    }
+
+    /**
+     * Get the chunk a tile is in.
+     *
+     * @param row row
+     * @param col column
+     * @return the chunk number
+     */
+    public int getChunk(int row, int col) {
+        return row / CHUNK_SIZE * ((DIM + CHUNK_SIZE - 1) / CHUNK_SIZE) + col / CHUNK_SIZE;
+    }
+
+    /**
+     * Write the tiles of one chunk, row by row: their colors packed two to
+     * a byte, then if asked their owner ids and times.
+     *
+     * @param out where to write the chunk
+     * @param chunk the chunk number
+     * @param metadata whether to write the tile owners and times
+     * @throws IOException if the chunk can't be written
+     */
+    public void writeChunk(DataOutput out, int chunk, boolean metadata) throws IOException {
+        int[] bounds = chunkBounds(chunk);
+        int packed = 0;
+        int count = 0;
+        for (int row = bounds[0]; row < bounds[1]; ++row) {
+            for (int col = bounds[2]; col < bounds[3]; ++col) {
+                packed |= getColorNumber(row * DIM + col) << ((count & 1) * 4);
+                if ((++count & 1) == 0) {
+                    out.writeByte(packed);
+                    packed = 0;
+                }
+            }
+        }
+        if ((count & 1) != 0) {
+            out.writeByte(packed);
+        }
+        if (!metadata) {
+            return;
+        }
+        for (int row = bounds[0]; row < bounds[1]; ++row) {
+            for (int col = bounds[2]; col < bounds[3]; ++col) {
+                out.writeInt(this.owners[row * DIM + col]);
+            }
+        }
+        for (int row = bounds[0]; row < bounds[1]; ++row) {
+            for (int col = bounds[2]; col < bounds[3]; ++col) {
+                out.writeLong(this.times[row * DIM + col]);
+            }
+        }
+    }
+
+    /**
+     * Say that the tiles of this board are still to be read chunk by
+     * chunk, until {@link #isComplete()}.
+     */
+    public void expectChunks() {
+        this.unread = new BitSet(getChunkCount());
+        this.unread.set(0, getChunkCount());
+    }
+
+    /**
+     * Tells whether every chunk of a board sent chunk by chunk has been
+     * read, see {@link #expectChunks()}.
+     *
+     * @return is the board whole?
+     */
+    public boolean isComplete() {
+        return this.unread == null || this.unread.isEmpty();
+    }
+
+    /**
+     * Read the tiles of a chunk written by
+     * {@link #writeChunk(DataOutput, int, boolean)} without changing the
+     * board's tiles, only counting the chunk as read.  The board gives the
+     * size of the chunk and the owner names.  Without metadata every tile
+     * is unowned and has time 0.
+     *
+     * @param in where to read the chunk from
+     * @param chunk the chunk number
+     * @param metadata whether the tile owners and times were written
+     * @return the tiles of the chunk, row by row
+     * @throws IOException if the chunk can't be read
+     */
+    public ArrayList<PlaceTile> readChunk(DataInput in, int chunk, boolean metadata) throws IOException {
+        int[] bounds = chunkBounds(chunk);
+        int cols = bounds[3] - bounds[2];
+        int count = (bounds[1] - bounds[0]) * cols;
+        byte[] packed = new byte[(count + 1) / 2];
+        in.readFully(packed);
+        int[] ids = new int[count];
+        long[] stamps = new long[count];
+        if (metadata) {
+            for (int i = 0; i < count; ++i) {
+                ids[i] = in.readInt();
+            }
+            for (int i = 0; i < count; ++i) {
+                stamps[i] = in.readLong();
+            }
+        }
+        ArrayList<PlaceTile> tiles = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            int number = (packed[i >> 1] >> ((i & 1) * 4)) & 0x0F;
+            String owner = ids[i] > 0 && ids[i] < this.ownerNames.size() ? this.ownerNames.get(ids[i]) : "";
+            tiles.add(new PlaceTile(bounds[0] + i / cols, bounds[2] + i % cols, owner,
+                    PlaceColor.getPlaceColor(number), stamps[i]));
+        }
+        if (this.unread != null) {
+            this.unread.clear(chunk);
+        }
+        return tiles;
+    }
+
+    /**
+     * Copy the tiles of one chunk from another board of the same dimension.
+     * Owner ids are copied as they are, so the boards need the same owner
+     * table, see {@link #copyOwners(PlaceBoard)}.
+     *
+     * @param from the board to copy from
+     * @param chunk the chunk number
+     */
+    public void copyChunk(PlaceBoard from, int chunk) {
+        int[] bounds = chunkBounds(chunk);
+        int cols = bounds[3] - bounds[2];
+        for (int row = bounds[0]; row < bounds[1]; ++row) {
+            int start = row * DIM + bounds[2];
+            if ((start & 1) == 0 && (cols & 1) == 0) {
+                System.arraycopy(from.colors, start >> 1, this.colors, start >> 1, cols >> 1);
+            } else {
+                for (int index = start; index < start + cols; ++index) {
+                    setColorNumber(index, from.getColorNumber(index));
+                }
+            }
+            System.arraycopy(from.owners, start, this.owners, start, cols);
+            System.arraycopy(from.times, start, this.times, start, cols);
+        }
+    }
+
+    /**
+     * Replace the owner table with a copy of another board's.
+     *
+     * @param from the board to copy from
+     */
+    public void copyOwners(PlaceBoard from) {
+        this.ownerNames = new ArrayList<>(from.ownerNames);
+        this.ownerIds = new HashMap<>(from.ownerIds);
+    }
+
+    /**
+     * Get the tiles a chunk covers.
+     *
+     * @param chunk the chunk number
+     * @return the first row, the row after the last, the first column and
+     *         the column after the last
+     * @throws IllegalArgumentException if there is no such chunk
+     */
+    private int[] chunkBounds(int chunk) {
+        if (chunk < 0 || chunk >= getChunkCount()) {
+            throw new IllegalArgumentException("No chunk " + chunk);
+        }
+        int side = (DIM + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int row = chunk / side * CHUNK_SIZE;
+        int col = chunk % side * CHUNK_SIZE;
+        return new int[] { row, Math.min(DIM, row + CHUNK_SIZE), col, Math.min(DIM, col + CHUNK_SIZE) };
     }
 
     /**
@@ -74,6 +505,48 @@ public class PlaceBoard implements Serializable {
                 tile.getCol() < this.DIM;
     }
 
+    /**
+     * Read the color number of a tile out of its packed byte.
+     *
+     * @param index row * DIM + col
+     * @return the color number, 0-15
+     */
+    private int getColorNumber(int index) {
+        int packed = this.colors[index >> 1];
+        return (index & 1) == 0 ? packed & 0x0F : (packed >> 4) & 0x0F;
+    }
+
+    /**
+     * Write the color number of a tile into its packed byte.
+     *
+     * @param index row * DIM + col
+     * @param number the color number, 0-15
+     */
+    private void setColorNumber(int index, int number) {
+        int packed = this.colors[index >> 1];
+        if ((index & 1) == 0) {
+            packed = (packed & 0xF0) | number;
+        } else {
+            packed = (packed & 0x0F) | (number << 4);
+        }
+        this.colors[index >> 1] = (byte) packed;
+    }
+
+    /**
+     * Rebuild the owner name lookup, which is not serialized.
+     *
+     * @param in the stream the board is read from
+     * @throws IOException if the stream can't be read
+     * @throws ClassNotFoundException if a class in the stream is unknown
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.ownerIds = new HashMap<>();
+        for (int id=0; id<this.ownerNames.size(); ++id) {
+            this.ownerIds.put(this.ownerNames.get(id), id);
+        }
+    }
+
     /**
      * Return a string representation of the board.  It displays the tile color as
      * a single character hex value in the range 0-F.
@@ -86,7 +559,8 @@ public class PlaceBoard implements Serializable {
         for (int row=0; row<DIM; ++row) {
             builder.append("\n");
             for (int col=0; col<DIM; ++col) {
-                builder.append(this.board[row][col].getColor());
+                builder.append(Character.toUpperCase(
+                        Character.forDigit(getColorNumber(row * DIM + col), 16)));
             }
         }
         return builder.toString();
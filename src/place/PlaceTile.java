@@ -25,6 +25,12 @@ public class PlaceTile implements Serializable {
      */
     private long time;
 
+    /**
+     * the sequence number the server applied the change under, 0 for a
+     * change the server has not applied.
+     */
+    private long sequence;
+
     /**
      * Create a tile (with no timestamp).
      *
@@ -96,6 +102,20 @@ public class PlaceTile implements Serializable {
      */
     public void setTime(long time) { this.time = time; }
 
+    /**
+     * Get the sequence number the server applied the change under.
+     *
+     * @return the sequence number, 0 if it has not been applied
+     */
+    public long getSequence() { return this.sequence; }
+
+    /**
+     * Set the sequence number the server applied the change under.
+     *
+     * @param sequence the sequence number
+     */
+    public void setSequence(long sequence) { this.sequence = sequence; }
+
     public String getOwner() {
         return this.user;
     }
@@ -117,6 +137,7 @@ public class PlaceTile implements Serializable {
                 ", user=" + this.user +
                 ", color=" + this.color +
                 ", time=" + this.time +
+                ", sequence=" + this.sequence +
                 '}';
     }
 }
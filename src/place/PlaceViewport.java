@@ -0,0 +1,91 @@
+package place;
+
+import java.io.Serializable;
+
+/**
+ * The rectangle of the board a client is looking at.  The server only sends
+ * a client the tile changes inside its viewport.  An empty viewport means
+ * the whole board.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class PlaceViewport implements Serializable {
+    /** The whole board */
+    public static final PlaceViewport WHOLE_BOARD = new PlaceViewport(0, 0, 0, 0);
+
+    /** the top row */
+    private final int row;
+    /** the left column */
+    private final int col;
+    /** the number of rows */
+    private final int rows;
+    /** the number of columns */
+    private final int cols;
+
+    /**
+     * Create a viewport.
+     *
+     * @param row the top row
+     * @param col the left column
+     * @param rows the number of rows, 0 for the whole board
+     * @param cols the number of columns, 0 for the whole board
+     */
+    public PlaceViewport(int row, int col, int rows, int cols) {
+        this.row = row;
+        this.col = col;
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /**
+     * Get the top row.
+     *
+     * @return the row
+     */
+    public int getRow() { return this.row; }
+
+    /**
+     * Get the left column.
+     *
+     * @return the column
+     */
+    public int getCol() { return this.col; }
+
+    /**
+     * Get the number of rows.
+     *
+     * @return the number of rows
+     */
+    public int getRows() { return this.rows; }
+
+    /**
+     * Get the number of columns.
+     *
+     * @return the number of columns
+     */
+    public int getCols() { return this.cols; }
+
+    /**
+     * Tells whether the viewport is the whole board.
+     *
+     * @return is it empty?
+     */
+    public boolean isWholeBoard() {
+        return this.rows <= 0 || this.cols <= 0;
+    }
+
+    /**
+     * Utility method for debugging only.
+     *
+     * @return the viewport as a string
+     */
+    @Override
+    public String toString() {
+        return "Viewport{" +
+                "row=" + this.row +
+                ", col=" + this.col +
+                ", rows=" + this.rows +
+                ", cols=" + this.cols +
+                '}';
+    }
+}
@@ -0,0 +1,59 @@
+package place.client;
+
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens many connections that log in and then sit idle, to see how many
+ * clients a server mode can hold.  Compare the server's threads and memory
+ * for --mode=threaded and --mode=virtual with the same count.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class IdleClients {
+
+    /**
+     * Main method.
+     *
+     * @param args host port count
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length != 3) {
+            System.out.println("Usage: java IdleClients host port count");
+            System.exit(0);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int count = Integer.parseInt(args[2]);
+
+        List<Socket> sockets = new ArrayList<>();
+        int loggedIn = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            try {
+                Socket sock = new Socket(host, port);
+                PlaceExchange.writeRequest(sock.getOutputStream(),
+                        new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, "idle" + i), null);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+                if (PlaceExchange.readRequest(in, null, PlaceExchange.MAX_SERVER_FRAME).getType() == PlaceRequest.RequestType.LOGIN_SUCCESS) {
+                    loggedIn++;
+                }
+                sockets.add(sock);
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println(loggedIn + " of " + count + " logged in after " + millis + " ms");
+
+        // Hold the connections open until killed.
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,475 @@
+package place.client;
+
+import place.LatencyHistogram;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives many simulated users against a server from one JVM, for capacity
+ * planning.  The users log in evenly over the ramp-up, then each places a
+ * tile rate times a second for the duration.  Where the tiles go follows
+ * the pattern: anywhere on the board, mostly around the middle, or all the
+ * users drawing one picture together.
+ *
+ * The latency of a move is the time from sending its CHANGE_TILE to the
+ * same user receiving the change back.  The server handles each user's
+ * moves in order, so the oldest move a user is waiting on is either the
+ * next of its changes to come back or the next one refused.  Throughput is
+ * the number of changes the first user receives per second.  The results
+ * are printed and written as JSON.
+ *
+ * The server limits how fast each user may place tiles, so it should be
+ * started with a --rate and --burst at least as high as the generator's.
+ * Its --stream-dim has to be given too if it is not the default, since the
+ * users only keep a board while it is streamed to them.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class LoadGenerator {
+    /** The usage message printed for bad arguments */
+    private static final String USAGE = "Usage: java LoadGenerator host port users [--rate=MOVES_PER_SECOND]"
+            + " [--pattern=uniform|hotspot|picture] [--ramp=SECONDS] [--duration=SECONDS] [--out=PATH]"
+            + " [--stream-dim=N]";
+    /** How long a move may go unanswered before it is counted as lost */
+    private static final long LOST_NANOS = TimeUnit.SECONDS.toNanos(10);
+    /** How long to wait for the server to answer a login */
+    private static final int LOGIN_TIMEOUT_MS = 10000;
+    /** How many users may be logging in at once */
+    private static final int LOGIN_THREADS = 32;
+    /** The largest side of the picture drawn by the picture pattern */
+    private static final int PICTURE_SIZE = 64;
+    /** The stack size of the reader threads, small since there are thousands */
+    private static final long READER_STACK = 256 * 1024;
+
+    /**
+     * Where the simulated users place their tiles.
+     */
+    public enum Pattern {
+        /** Anywhere on the board */
+        UNIFORM,
+        /** Mostly around the middle of the board */
+        HOTSPOT,
+        /** Every user drawing their part of one picture */
+        PICTURE
+    }
+
+    /**
+     * One simulated user: its connection, the thread reading it and the
+     * moves it is waiting to hear back about.
+     */
+    private class User implements Runnable {
+        private final int index;
+        private final String name;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        /** The moves sent and not yet answered, oldest first, as {cell and color, send nanoTime} */
+        private final Queue<long[]> pending;
+        /** The login board, kept only until all its chunks have arrived */
+        private PlaceBoard board;
+        /** Names the owners of the changes, the login board or a one tile board with its owners */
+        private PlaceBoard owners;
+        private int chunks;
+        private long step;
+        private volatile boolean connected;
+
+        /**
+         * Connects and logs in.
+         *
+         * @param index the number of the user
+         * @throws IOException if the user can't log in
+         */
+        private User(int index) throws IOException {
+            this.index = index;
+            this.name = "load" + index;
+            this.socket = new Socket(host, port);
+            this.socket.setSoTimeout(LOGIN_TIMEOUT_MS);
+            this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+            this.out = new BufferedOutputStream(this.socket.getOutputStream());
+            this.pending = new ConcurrentLinkedQueue<>();
+            PlaceExchange.writeRequest(this.out, new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, this.name), null);
+            PlaceRequest<?> reply = PlaceExchange.readRequest(this.in, null, PlaceExchange.MAX_SERVER_FRAME);
+            if (reply.getType() != PlaceRequest.RequestType.LOGIN_SUCCESS) {
+                this.socket.close();
+                throw new IOException(this.name + ": " + reply.getData());
+            }
+            this.socket.setSoTimeout(0);
+            PlaceBoard board = (PlaceBoard) reply.getData();
+            dim = board.DIM;
+            if (board.DIM >= streamDim) {
+                this.board = board;
+                this.owners = board;
+            } else {
+                this.owners = ownerTable(board);
+            }
+            this.connected = true;
+        }
+
+        /**
+         * Sends the next move.
+         */
+        private void move() {
+            if (!this.connected) {
+                return;
+            }
+            PlaceTile tile = nextTile(this.index, this.step++);
+            this.pending.add(new long[]{key(tile), System.nanoTime()});
+            if (measuring) {
+                sent.increment();
+            }
+            try {
+                PlaceExchange.writeRequest(this.out, new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, tile), null);
+            } catch (IOException e) {
+                disconnected(e);
+            }
+        }
+
+        /**
+         * Reads what the server sends until the connection drops.
+         */
+        @Override
+        public void run() {
+            try {
+                while (this.connected) {
+                    PlaceRequest<?> req = PlaceExchange.readRequest(this.in, this.owners, PlaceExchange.MAX_SERVER_FRAME);
+                    switch (req.getType()) {
+                        case TILE_CHANGED:
+                            changed(req.getTile());
+                            break;
+                        case TILE_BATCH:
+                            for (PlaceTile tile : req.getTiles()) {
+                                changed(tile);
+                            }
+                            break;
+                        case CHUNK:
+                            if (++this.chunks == this.board.getChunkCount()) {
+                                this.owners = ownerTable(this.board);
+                                this.board = null;
+                            }
+                            break;
+                        case ERROR:
+                            this.pending.poll();
+                            if (measuring) {
+                                refused.increment();
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } catch (IOException e) {
+                disconnected(e);
+            }
+        }
+
+        /**
+         * Makes a one tile board with the owners of a board, to name the
+         * owners of changes without keeping the whole board.
+         *
+         * @param board the board
+         * @return the owner table
+         */
+        private PlaceBoard ownerTable(PlaceBoard board) {
+            PlaceBoard owners = new PlaceBoard(1);
+            owners.copyOwners(board);
+            return owners;
+        }
+
+        /**
+         * Counts a change and, if it is the oldest move waiting, its latency.
+         * A change only answers a move if this user made it, another user
+         * may have changed the same tile the same way.
+         *
+         * @param tile the change
+         */
+        private void changed(PlaceTile tile) {
+            long now = System.nanoTime();
+            if (this.index == 0 && measuring) {
+                received.increment();
+            }
+            long[] head;
+            while ((head = this.pending.peek()) != null && now - head[1] > LOST_NANOS) {
+                this.pending.poll();
+                if (measuring) {
+                    lost.increment();
+                }
+            }
+            if (head != null && head[0] == key(tile) && this.name.equals(tile.getOwner())) {
+                this.pending.poll();
+                if (measuring) {
+                    latency.record(now - head[1]);
+                }
+            }
+        }
+
+        /**
+         * Stops the user after its connection failed.
+         *
+         * @param e what went wrong
+         */
+        private void disconnected(IOException e) {
+            if (this.connected) {
+                this.connected = false;
+                System.out.println(this.name + ": " + e.getMessage());
+                try {
+                    this.socket.close();
+                } catch (IOException e2) {
+                    //squash
+                }
+            }
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final int users;
+    private double rate = 1;
+    private Pattern pattern = Pattern.UNIFORM;
+    private int rampSeconds = 10;
+    private int durationSeconds = 30;
+    private String outPath = "loadgen-results.json";
+    /** The smallest board dimension the server streams in chunks */
+    private int streamDim = 1024;
+
+    /** The board dimension, from the first login */
+    private volatile int dim;
+    /** Whether the ramp-up is over and the numbers are being kept */
+    private volatile boolean measuring;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder received = new LongAdder();
+
+    /**
+     * Creates a generator.
+     *
+     * @param host the server host
+     * @param port the server port
+     * @param users the number of simulated users
+     */
+    private LoadGenerator(String host, int port, int users) {
+        this.host = host;
+        this.port = port;
+        this.users = users;
+    }
+
+    /**
+     * Picks where a user places its next tile.
+     *
+     * @param user the number of the user
+     * @param step how many tiles the user placed before
+     * @return the tile
+     */
+    private PlaceTile nextTile(int user, long step) {
+        Random random = ThreadLocalRandom.current();
+        int row;
+        int col;
+        PlaceColor color;
+        switch (this.pattern) {
+            case HOTSPOT:
+                row = clamp((int) (this.dim / 2 + random.nextGaussian() * this.dim / 32));
+                col = clamp((int) (this.dim / 2 + random.nextGaussian() * this.dim / 32));
+                color = PlaceColor.getPlaceColor(random.nextInt(PlaceColor.values().length));
+                break;
+            case PICTURE:
+                int size = Math.min(this.dim, PICTURE_SIZE);
+                int cell = (int) ((user + step * this.users) % (size * size));
+                row = cell / size;
+                col = cell % size;
+                //Concentric squares around the middle of the picture.
+                int ring = Math.max(Math.abs(row - size / 2), Math.abs(col - size / 2));
+                color = PlaceColor.getPlaceColor(ring % PlaceColor.values().length);
+                break;
+            default:
+                row = random.nextInt(this.dim);
+                col = random.nextInt(this.dim);
+                color = PlaceColor.getPlaceColor(random.nextInt(PlaceColor.values().length));
+                break;
+        }
+        return new PlaceTile(row, col, "load" + user, color);
+    }
+
+    /**
+     * Keeps a row or column on the board.
+     *
+     * @param i the row or column
+     * @return the nearest one on the board
+     */
+    private int clamp(int i) {
+        return Math.max(0, Math.min(this.dim - 1, i));
+    }
+
+    /**
+     * Identifies a change by its cell and color.
+     *
+     * @param tile the tile
+     * @return the key
+     */
+    private static long key(PlaceTile tile) {
+        return ((long) tile.getRow() << 36) | ((long) tile.getCol() << 8) | tile.getColor().getNumber();
+    }
+
+    /**
+     * Ramps the users up, measures for the duration and reports.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IOException if the results can't be written
+     */
+    private void run() throws InterruptedException, IOException {
+        ScheduledExecutorService movers = Executors.newScheduledThreadPool(
+                Runtime.getRuntime().availableProcessors(), r -> {
+                    Thread t = new Thread(r, "load-mover");
+                    t.setDaemon(true);
+                    return t;
+                });
+        //Logins wait on the server, so they get threads of their own to keep to the ramp-up.
+        ScheduledExecutorService logins = Executors.newScheduledThreadPool(LOGIN_THREADS, r -> {
+            Thread t = new Thread(r, "load-login");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = (long) (TimeUnit.SECONDS.toNanos(1) / this.rate);
+        long spacing = TimeUnit.SECONDS.toNanos(this.rampSeconds) / this.users;
+        List<User> started = Collections.synchronizedList(new ArrayList<>());
+        long start = System.nanoTime();
+        for (int i = 0; i < this.users; i++) {
+            int index = i;
+            logins.schedule(() -> {
+                try {
+                    User user = new User(index);
+                    Thread reader = new Thread(null, user, "load-reader-" + index, READER_STACK);
+                    reader.setDaemon(true);
+                    reader.start();
+                    started.add(user);
+                    movers.scheduleAtFixedRate(user::move, ThreadLocalRandom.current().nextLong(period),
+                            period, TimeUnit.NANOSECONDS);
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            }, i * spacing, TimeUnit.NANOSECONDS);
+        }
+        logins.shutdown();
+        logins.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        System.out.println(started.size() + " of " + this.users + " users logged in after "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+        this.measuring = true;
+        long from = System.nanoTime();
+        TimeUnit.SECONDS.sleep(this.durationSeconds);
+        this.measuring = false;
+        double seconds = (System.nanoTime() - from) / 1e9;
+        movers.shutdownNow();
+
+        int connected = 0;
+        for (User user : started) {
+            if (user.connected) {
+                connected++;
+            }
+        }
+        String results = String.format(Locale.ROOT, "{%n"
+                        + "  \"users\": %d,%n  \"loggedIn\": %d,%n  \"connectedAtEnd\": %d,%n"
+                        + "  \"pattern\": \"%s\",%n  \"rate\": %s,%n  \"rampSeconds\": %d,%n  \"seconds\": %.3f,%n"
+                        + "  \"sent\": %d,%n  \"acknowledged\": %d,%n  \"refused\": %d,%n  \"lost\": %d,%n"
+                        + "  \"throughput\": %.1f,%n"
+                        + "  \"latencyMicros\": {\"mean\": %d, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d}%n"
+                        + "}%n",
+                this.users, started.size(), connected,
+                this.pattern.name().toLowerCase(Locale.ROOT), this.rate, this.rampSeconds, seconds,
+                this.sent.sum(), this.latency.getCount(), this.refused.sum(), this.lost.sum(),
+                this.received.sum() / seconds,
+                this.latency.getCount() == 0 ? 0 : this.latency.getSum() / this.latency.getCount() / 1000,
+                micros(0.5), micros(0.9), micros(0.99), micros(0.999), this.latency.getMax() / 1000);
+        System.out.print(results);
+        try (PrintWriter out = new PrintWriter(this.outPath, "UTF-8")) {
+            out.print(results);
+        }
+    }
+
+    /**
+     * Gets a latency percentile in microseconds.
+     *
+     * @param fraction the fraction, such as 0.99
+     * @return the latency that fraction of the acknowledged moves took at most
+     */
+    private long micros(double fraction) {
+        return this.latency.getPercentile(fraction) / 1000;
+    }
+
+    /**
+     * Main method.
+     *
+     * @param args host port users, then the optional settings as --name=value
+     */
+    public static void main(String[] args) throws InterruptedException, IOException {
+        if (args.length < 3) {
+            System.out.println(USAGE);
+            System.exit(0);
+        }
+        LoadGenerator generator;
+        try {
+            generator = new LoadGenerator(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            for (int i = 3; i < args.length; i++) {
+                int eq = args[i].indexOf('=');
+                if (!args[i].startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+                }
+                String value = args[i].substring(eq + 1);
+                switch (args[i].substring(2, eq)) {
+                    case "rate":
+                        generator.rate = Double.parseDouble(value);
+                        break;
+                    case "pattern":
+                        generator.pattern = Pattern.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "ramp":
+                        generator.rampSeconds = Integer.parseInt(value);
+                        break;
+                    case "duration":
+                        generator.durationSeconds = Integer.parseInt(value);
+                        break;
+                    case "out":
+                        generator.outPath = value;
+                        break;
+                    case "stream-dim":
+                        generator.streamDim = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument " + args[i]);
+                }
+            }
+            if (generator.users <= 0 || !(generator.rate > 0) || generator.rampSeconds < 0
+                    || generator.durationSeconds <= 0) {
+                throw new IllegalArgumentException("Bad setting");
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage() + "\n" + USAGE);
+            return;
+        }
+        generator.run();
+        System.exit(0);
+    }
+}
@@ -2,15 +2,21 @@ package place.network;
 
 import place.PlaceBoard;
 import place.PlaceTile;
+import place.PlaceViewport;
 import place.model.ClientModel;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
-
-import static java.lang.Thread.sleep;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The client side network interface to a Reversi game server.
@@ -25,13 +31,35 @@ import static java.lang.Thread.sleep;
  * @author James Heliotis @ RIT CS
  */
 public class NetworkClient {
+    /** How many times to try reconnecting after the connection drops */
+    private static final int RECONNECT_TRIES = 5;
+    /** How long to wait before each try */
+    private static final long RECONNECT_DELAY_MS = 1000;
+    /** Most traced moves waiting to come back before the oldest are given up on */
+    private static final int MAX_TRACED = 1024;
 
-    private Socket sock;
-    private ObjectInputStream networkIn;
-    private ObjectOutputStream networkOut;
+    private final String hostname;
+    private final int port;
+    /** The connection, replaced by the listener thread when it reconnects */
+    private volatile Socket sock;
+    private volatile DataInputStream networkIn;
+    private volatile OutputStream networkOut;
+    /** Held while writing a request, so requests from the UI and the listener don't interleave */
+    private final Object sending = new Object();
+    /** Whether the client was closed, after which it does not reconnect */
+    private final AtomicBoolean closed = new AtomicBoolean();
     private ClientModel board;
+    private PlaceBoard owners;
     private String userName;
     private boolean go;
+    /** The sequence number of the last change seen, to resume from after a reconnect */
+    private long lastSequence;
+    /** The viewport last asked for, to ask for again after a reconnect, or null */
+    private volatile PlaceViewport viewport;
+    /** Follows a sample of this client's moves, see {@link Tracer} */
+    private final Tracer tracer = Tracer.fromProperty();
+    /** When each traced move was sent, by its row and column */
+    private final Map<Long, Long> tracedMoves = new ConcurrentHashMap<>();
 
     /**
      * Accessor that takes multithreaded access into account
@@ -64,31 +92,156 @@ public class NetworkClient {
      *                 must be updated upon receiving server messages
      */
     public NetworkClient( String hostname, int port, ClientModel model, String userName){
+        this.hostname = hostname;
+        this.port = port;
+        this.board = model;
+        this.userName = userName;
+        this.go = true;
         try {
-            this.sock = new Socket(hostname, port);
-            this.networkIn  = new ObjectInputStream(sock.getInputStream());
-            this.networkOut = new ObjectOutputStream(sock.getOutputStream());
-            this.board = model;
-            this.userName = userName;
-            this.go = true;
+            login();
+        }
+        catch(IOException e ) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Connects to the server and logs in.  After a dropped connection the
+     * login is preceded by a RESUME with the last change seen, and if the
+     * server still has every change since then it sends just those
+     * instead of the whole board.  A board streamed chunk by chunk is
+     * only resumed once every chunk arrived, the changes since would not
+     * bring the missing chunks.
+     *
+     * @return whether the login succeeded
+     * @throws IOException if the server can't be reached
+     */
+    private boolean login() throws IOException {
+        synchronized (this.sending) {
+            //No move goes out on the new connection ahead of the login.
+            this.sock = new Socket(this.hostname, this.port);
+            this.networkIn  = new DataInputStream(new BufferedInputStream(this.sock.getInputStream()));
+            this.networkOut = new BufferedOutputStream(this.sock.getOutputStream());
 
             //Client requesting to log into server.
-            PlaceRequest<String> outReq = new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, this.userName);
-            this.networkOut.writeUnshared(outReq);
-            this.networkOut.flush();
+            if (this.owners != null && this.owners.isComplete() && this.lastSequence > 0) {
+                send(new PlaceRequest<>(PlaceRequest.RequestType.RESUME, this.lastSequence));
+            }
+            send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, this.userName));
+        }
 
-            //Receiving server response to login request.
-            PlaceRequest<?> inReq = (PlaceRequest<?>) this.networkIn.readUnshared();
+        //Receiving server response to login request.
+        while (true) {
+            PlaceRequest<?> inReq = PlaceExchange.readRequest(this.networkIn, this.owners, PlaceExchange.MAX_SERVER_FRAME);
             if (inReq.getType() == PlaceRequest.RequestType.LOGIN_SUCCESS) {
                 PlaceBoard pb = (PlaceBoard)inReq.getData();
+                PlaceBoard old = this.owners;
+                this.owners = pb;
+                this.lastSequence = pb.getSequence();
                 this.board.allocate(pb);
-            }else{
+                if (old != null && old.DIM == pb.DIM) {
+                    redraw(old, pb);
+                }
+                return true;
+            }else if (inReq.getType() == PlaceRequest.RequestType.TILE_BATCH) {
+                //Resumed, these are the changes missed while away.
+                for (PlaceTile tempTile : inReq.getTiles()) {
+                    changeTile(tempTile);
+                }
+                return true;
+            }else if (inReq.getType() != PlaceRequest.RequestType.OWNER) {
                 System.out.println(inReq.getData());
+                return false;
             }
         }
-        catch(IOException | ClassNotFoundException e ) {
-            System.out.println(e.getMessage());
+    }
+
+    /**
+     * Tells the views about every tile whose color differs between the
+     * board before a reconnect and the one sent after it.
+     *
+     * @param old the board before
+     * @param now the board after, already in the model
+     */
+    private void redraw(PlaceBoard old, PlaceBoard now) {
+        List<PlaceTile> changed = new ArrayList<>();
+        for (int row = 0; row < now.DIM; ++row) {
+            for (int col = 0; col < now.DIM; ++col) {
+                if (old.getColor(row, col) != now.getColor(row, col)) {
+                    changed.add(now.getTile(row, col));
+                }
+            }
+        }
+        for (PlaceTile tile : changed) {
+            this.board.changeTile(tile);
+        }
+    }
+
+    /**
+     * Tries to log back in after the connection dropped, a few times,
+     * unless the client was closed.  The viewport is asked for again, the
+     * server forgot it.
+     *
+     * @return whether the client is logged in again
+     */
+    private boolean reconnect() {
+        for (int i = 0; i < RECONNECT_TRIES && this.goodToGo() && !this.closed.get(); i++) {
+            try {
+                this.sock.close();
+                Thread.sleep(RECONNECT_DELAY_MS);
+                if (login()) {
+                    PlaceViewport last = this.viewport;
+                    if (last != null) {
+                        setViewport(last);
+                    }
+                    return true;
+                }
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            } catch (InterruptedException e) {
+                return false;
+            }
         }
+        return false;
+    }
+
+    /**
+     * Applies a changed tile to the model and remembers it was seen.
+     *
+     * @param tile the tile
+     */
+    private void changeTile(PlaceTile tile) {
+        if (this.tracedMoves.isEmpty() || !this.userName.equals(tile.getOwner())) {
+            this.board.changeTile(tile);
+        } else {
+            long received = System.nanoTime();
+            Long sent = this.tracedMoves.remove(tracedKey(tile));
+            this.board.changeTile(tile);
+            if (sent != null) {
+                this.tracer.record(Tracer.Stage.CLIENT_ROUND_TRIP, received - sent, tile.getSequence());
+                this.tracer.record(Tracer.Stage.CLIENT_NOTIFY, System.nanoTime() - received, tile.getSequence());
+            }
+        }
+        this.lastSequence = Math.max(this.lastSequence, tile.getSequence());
+    }
+
+    /**
+     * Gets the key a traced move is remembered by.
+     *
+     * @param tile the tile moved
+     * @return its row and column
+     */
+    private static long tracedKey(PlaceTile tile) {
+        return ((long) tile.getRow() << 32) | (tile.getCol() & 0xffffffffL);
+    }
+
+    /**
+     * Gets the tracer following this client's moves.
+     *
+     * @return the tracer, {@link Tracer#OFF} unless -Dplace.trace is set
+     */
+    public Tracer getTracer() {
+        return this.tracer;
     }
 
     public void startListener() {
@@ -114,7 +267,20 @@ public class NetworkClient {
      * close the client connection.
      */
     public void close() {
-        sock = null;
+        if (!this.closed.compareAndSet(false, true)) {
+            return;
+        }
+        this.stop();
+        try {
+            if (this.sock != null) {
+                this.sock.close();
+            }
+        } catch (IOException e) {
+            //squash
+        }
+        if (this.tracer.isEnabled()) {
+            System.out.print(this.tracer.summary());
+        }
     }
 
     /**
@@ -122,9 +288,39 @@ public class NetworkClient {
      * @param tile tile being sent to server.
      */
     public void sendMove(PlaceTile tile) throws IOException {
-        PlaceRequest<PlaceTile> outReq = new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, tile);
-        this.networkOut.writeUnshared(outReq);
-        this.networkOut.flush();
+        if (this.tracer.sample()) {
+            if (this.tracedMoves.size() >= MAX_TRACED) {
+                //Moves that were refused never come back.
+                this.tracedMoves.clear();
+            }
+            this.tracedMoves.put(tracedKey(tile), System.nanoTime());
+        }
+        send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, tile));
+    }
+
+    /**
+     * Only get the tile changes inside a rectangle of the board from now
+     * on.  The tiles outside it go out of date until they are looked at
+     * again.
+     *
+     * @param viewport the rectangle, or {@link PlaceViewport#WHOLE_BOARD}
+     */
+    public void setViewport(PlaceViewport viewport) throws IOException {
+        this.viewport = viewport;
+        send(new PlaceRequest<>(PlaceRequest.RequestType.VIEWPORT, viewport));
+    }
+
+    /**
+     * Writes a request to the server.  Every request goes through here,
+     * from the UI and the listener thread alike.
+     *
+     * @param req the request
+     * @throws IOException if it can't be written
+     */
+    private void send(PlaceRequest<?> req) throws IOException {
+        synchronized (this.sending) {
+            PlaceExchange.writeRequest(this.networkOut, req, null);
+        }
     }
 
     /**
@@ -137,12 +333,24 @@ public class NetworkClient {
             try {
                 if(this.board.getStatus().equals("notDone")){
                     //Receiving server response to tile change request. (Should be a tile).
-                    PlaceRequest<?> inReq = (PlaceRequest<?>) this.networkIn.readUnshared();
+                    PlaceRequest<?> inReq = PlaceExchange.readRequest(this.networkIn, this.owners, PlaceExchange.MAX_SERVER_FRAME);
                     if (inReq.getType() == PlaceRequest.RequestType.TILE_CHANGED) {
                         PlaceTile tempTile = (PlaceTile) inReq.getData();
-                        sleep(500);
                         //Update the board model.
-                        this.board.changeTile(tempTile);
+                        changeTile(tempTile);
+                    }else if (inReq.getType() == PlaceRequest.RequestType.TILE_BATCH ||
+                            inReq.getType() == PlaceRequest.RequestType.CHUNK) {
+                        //A tick's worth of changes, or the next piece of a large board.
+                        for (PlaceTile tempTile : inReq.getTiles()) {
+                            changeTile(tempTile);
+                        }
+                    }else if (inReq.getType() == PlaceRequest.RequestType.CHUNK_SUMMARY) {
+                        //Changes outside the viewport, refreshed when the viewport moves there.
+                    }else if (inReq.getType() == PlaceRequest.RequestType.OWNER) {
+                        //The exchange already added the owner to the board.
+                    }else if (inReq.getType() == PlaceRequest.RequestType.ERROR) {
+                        //A refused move, such as one made while cooling down.
+                        System.out.println(inReq.getData());
                     }else{
                         this.stop();
                     }
@@ -155,9 +363,11 @@ public class NetworkClient {
                 this.error( "Lost connection to server." );
                 this.stop();
             } catch (IOException e) {
-                e.printStackTrace();
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
+                // The server closed the connection or sent something unreadable.
+                if (!this.reconnect()) {
+                    this.error( e.getMessage() );
+                    this.stop();
+                }
             }
             catch (Exception e) {
                 this.error(e.getMessage() + '?');
@@ -0,0 +1,641 @@
+package place.network;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.PlaceViewport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Sends and receives {@link PlaceRequest}s in a compact binary form.  Every
+ * request travels as one frame that starts with a type byte.
+ *
+ * Tile requests (CHANGE_TILE and TILE_CHANGED) are a fixed 24 byte record:
+ * type, color, row and column as unsigned shorts, the owner id as an int,
+ * the time as a six byte count of milliseconds and the sequence number the
+ * server applied the change under as a long.  Every other request is the
+ * type, a four byte length and that many bytes of payload.  A TILE_BATCH
+ * payload is a count followed by that many tile records without their type
+ * byte.  A board payload is the dimension, a flags byte saying whether the
+ * tile owners and times are included, the sequence number of the board's
+ * last change, then the packed board deflated.  A
+ * large board may instead be sent chunked: the board payload then only holds
+ * the owner table, and each CHUNK payload is the chunk number, the flags and
+ * the packed tiles of the chunk deflated.  A VIEWPORT payload is four ints,
+ * a CHUNK_SUMMARY payload a count followed by that many chunk numbers,
+ * a RESUME payload a sequence number and a RELAY payload the relay key.  A
+ * RELAY_CHANGE payload is the row and column as ints, the color and the
+ * owner's name, since the owner has no id on the server it is sent to yet.
+ * Knowing the size
+ * of a frame up front lets a reader tell whether a whole request has arrived
+ * without blocking, which the non-blocking server relies on.
+ *
+ * Tiles carry owner ids instead of names.  The ids come from the owner table
+ * of the board passed to the encode and decode methods, and the server
+ * announces new ids with OWNER requests.  The client sends its protocol
+ * {@link #VERSION} in its LOGIN request.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class PlaceExchange {
+    /** The protocol version, bumped whenever a frame layout changes */
+    public static final int VERSION = 7;
+    /** The size of a tile frame */
+    public static final int TILE_SIZE = 24;
+    /** The size of the type and length at the start of other frames */
+    public static final int HEADER_SIZE = 5;
+    /** The largest frame the server accepts from a client */
+    public static final int MAX_CLIENT_FRAME = 64 * 1024;
+    /** The largest frame a client accepts from the server */
+    public static final int MAX_SERVER_FRAME = Integer.MAX_VALUE - HEADER_SIZE;
+    /** The largest board dimension accepted, rows and columns travel as unsigned shorts */
+    public static final int MAX_DIM = 1 << 15;
+    /** The request types the server accepts from a client */
+    public static final Set<PlaceRequest.RequestType> CLIENT_REQUESTS = Collections.unmodifiableSet(EnumSet.of(
+            PlaceRequest.RequestType.LOGIN,
+            PlaceRequest.RequestType.CHANGE_TILE,
+            PlaceRequest.RequestType.VIEWPORT,
+            PlaceRequest.RequestType.RESUME,
+            PlaceRequest.RequestType.RELAY,
+            PlaceRequest.RequestType.RELAY_CHANGE));
+    /** Every request type, what a client accepts from the server */
+    private static final Set<PlaceRequest.RequestType> ANY_REQUEST =
+            Collections.unmodifiableSet(EnumSet.allOf(PlaceRequest.RequestType.class));
+
+    /** The request types, indexed by their code on the wire */
+    private static final PlaceRequest.RequestType[] TYPES = {
+            PlaceRequest.RequestType.BOARD,
+            PlaceRequest.RequestType.CHANGE_TILE,
+            PlaceRequest.RequestType.ERROR,
+            PlaceRequest.RequestType.LOGIN,
+            PlaceRequest.RequestType.LOGIN_SUCCESS,
+            PlaceRequest.RequestType.TILE_CHANGED,
+            PlaceRequest.RequestType.OWNER,
+            PlaceRequest.RequestType.TILE_BATCH,
+            PlaceRequest.RequestType.CHUNK,
+            PlaceRequest.RequestType.VIEWPORT,
+            PlaceRequest.RequestType.CHUNK_SUMMARY,
+            PlaceRequest.RequestType.RESUME,
+            PlaceRequest.RequestType.RELAY,
+            PlaceRequest.RequestType.RELAY_CHANGE
+    };
+
+    /** The largest time that fits in a tile frame */
+    private static final long TIME_MASK = 0xFFFFFFFFFFFFL;
+    /** The board flag saying the tile owners and times are included */
+    private static final int BOARD_METADATA = 1;
+    /** The board flag saying the tiles follow in CHUNK frames */
+    private static final int BOARD_CHUNKED = 2;
+    /** More than deflate can shrink anything by, to bound what a board frame inflates to */
+    private static final long MAX_DEFLATE_RATIO = 1100;
+    /** What a board with metadata takes per tile: half a byte of color, an int owner and a long time */
+    private static final double METADATA_TILE_BYTES = 0.5 + Integer.BYTES + Long.BYTES;
+
+    /**
+     * Utility class, not to be instantiated.
+     */
+    private PlaceExchange() {}
+
+    /**
+     * Encode a request into a frame.
+     *
+     * @param req the request
+     * @param board the board whose owner table gives tile owner ids, or
+     *              null to send owner id 0
+     * @return a buffer holding the whole frame, ready to be written
+     * @throws IOException if the request can't be encoded
+     */
+    public static ByteBuffer encode(PlaceRequest<?> req, PlaceBoard board) throws IOException {
+        int code = code(req.getType());
+        if (isTile(req.getType())) {
+            ByteBuffer frame = ByteBuffer.allocate(TILE_SIZE);
+            frame.put((byte) code);
+            writeTile(frame, (PlaceTile) req.getData(), board);
+            frame.flip();
+            return frame;
+        }
+        if (req.getType() == PlaceRequest.RequestType.TILE_BATCH) {
+            List<?> tiles = (List<?>) req.getData();
+            ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + Integer.BYTES + tiles.size() * (TILE_SIZE - 1));
+            frame.put((byte) code);
+            frame.putInt(frame.capacity() - HEADER_SIZE);
+            frame.putInt(tiles.size());
+            for (Object tile : tiles) {
+                writeTile(frame, (PlaceTile) tile, board);
+            }
+            frame.flip();
+            return frame;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(code);
+        out.writeInt(0);
+        switch (req.getType()) {
+            case LOGIN:
+                out.writeByte(VERSION);
+                out.writeUTF((String) req.getData());
+                break;
+            case ERROR:
+            case RELAY:
+                out.writeUTF((String) req.getData());
+                break;
+            case RELAY_CHANGE:
+                PlaceTile tile = (PlaceTile) req.getData();
+                out.writeInt(tile.getRow());
+                out.writeInt(tile.getCol());
+                out.writeByte(tile.getColor().getNumber());
+                out.writeUTF(tile.getOwner());
+                break;
+            case OWNER:
+                String owner = (String) req.getData();
+                out.writeInt(board.getOwnerId(owner));
+                out.writeUTF(owner);
+                break;
+            case VIEWPORT:
+                PlaceViewport viewport = (PlaceViewport) req.getData();
+                out.writeInt(viewport.getRow());
+                out.writeInt(viewport.getCol());
+                out.writeInt(viewport.getRows());
+                out.writeInt(viewport.getCols());
+                break;
+            case CHUNK_SUMMARY:
+                List<?> chunks = (List<?>) req.getData();
+                out.writeInt(chunks.size());
+                for (Object chunk : chunks) {
+                    out.writeInt((Integer) chunk);
+                }
+                break;
+            case RESUME:
+                out.writeLong((Long) req.getData());
+                break;
+            case CHUNK:
+                throw new IOException("Chunks are encoded straight from the board");
+            default:
+                return encodeBoard(req.getType(), (PlaceBoard) req.getData(), true);
+        }
+        out.flush();
+        ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+        frame.putInt(1, frame.remaining() - HEADER_SIZE);
+        return frame;
+    }
+
+    /**
+     * Encode a BOARD or LOGIN_SUCCESS request into a frame.  The board is
+     * deflated, and the owner and time of each tile may be left out so a
+     * client that only draws the colors gets a fraction of the bytes.
+     *
+     * @param type BOARD or LOGIN_SUCCESS
+     * @param board the board
+     * @param metadata whether to include the tile owners and times
+     * @return a buffer holding the whole frame, ready to be written
+     * @throws IOException if the board can't be encoded
+     */
+    public static ByteBuffer encodeBoard(PlaceRequest.RequestType type, PlaceBoard board, boolean metadata)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(code(type));
+        out.writeInt(0);
+        out.writeInt(board.DIM);
+        out.writeByte(metadata ? BOARD_METADATA : 0);
+        out.writeLong(board.getSequence());
+        DataOutputStream packed = deflate(bytes);
+        try {
+            board.writeTo(packed, metadata);
+        } finally {
+            packed.close();
+        }
+        return frame(bytes);
+    }
+
+    /**
+     * Encode a BOARD or LOGIN_SUCCESS request for a board whose tiles will
+     * follow in CHUNK frames.  Only the dimension and owner table are sent,
+     * so the frame stays small however large the board is.
+     *
+     * @param type BOARD or LOGIN_SUCCESS
+     * @param board the board
+     * @param metadata whether the chunks will include the tile owners and times
+     * @return a buffer holding the whole frame, ready to be written
+     * @throws IOException if the board can't be encoded
+     */
+    public static ByteBuffer encodeChunkedBoard(PlaceRequest.RequestType type, PlaceBoard board, boolean metadata)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(code(type));
+        out.writeInt(0);
+        out.writeInt(board.DIM);
+        out.writeByte(BOARD_CHUNKED | (metadata ? BOARD_METADATA : 0));
+        out.writeLong(board.getSequence());
+        DataOutputStream packed = deflate(bytes);
+        try {
+            board.writeOwners(packed);
+        } finally {
+            packed.close();
+        }
+        return frame(bytes);
+    }
+
+    /**
+     * Encode one chunk of a board into a CHUNK frame.
+     *
+     * @param board the board
+     * @param chunk the chunk number
+     * @param metadata whether to include the tile owners and times
+     * @return a buffer holding the whole frame, ready to be written
+     * @throws IOException if the chunk can't be encoded
+     */
+    public static ByteBuffer encodeChunk(PlaceBoard board, int chunk, boolean metadata) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(code(PlaceRequest.RequestType.CHUNK));
+        out.writeInt(0);
+        out.writeInt(chunk);
+        out.writeByte(metadata ? BOARD_METADATA : 0);
+        DataOutputStream packed = deflate(bytes);
+        try {
+            board.writeChunk(packed, chunk, metadata);
+        } finally {
+            packed.close();
+        }
+        return frame(bytes);
+    }
+
+    /**
+     * Start deflating the rest of a frame.  Closing the returned stream
+     * finishes the deflated data.
+     *
+     * @param bytes the frame so far
+     * @return a stream that deflates into the frame
+     */
+    private static DataOutputStream deflate(ByteArrayOutputStream bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        return new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(bytes, deflater, 8192) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        }, 8192));
+    }
+
+    /**
+     * Wrap the bytes of a frame and fill in its length.
+     *
+     * @param bytes the frame, starting with the type and a length placeholder
+     * @return a buffer holding the whole frame, ready to be written
+     */
+    private static ByteBuffer frame(ByteArrayOutputStream bytes) {
+        ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+        frame.putInt(1, frame.remaining() - HEADER_SIZE);
+        return frame;
+    }
+
+    /**
+     * Decode a request from a buffer if a whole frame is available.  On
+     * success the frame is consumed from the buffer, otherwise the buffer
+     * is left untouched.
+     *
+     * @param buffer a buffer in read mode
+     * @param board the board whose owner table names tile owners and
+     *              receives OWNER announcements, or null
+     * @param maxLength the largest frame length to accept
+     * @return the request, or null if the frame is not complete yet
+     * @throws IOException if the frame is not a valid request
+     */
+    public static PlaceRequest<?> decode(ByteBuffer buffer, PlaceBoard board, int maxLength) throws IOException {
+        return decode(buffer, board, maxLength, ANY_REQUEST);
+    }
+
+    /**
+     * Decode a request from a buffer if a whole frame is available,
+     * refusing any type not accepted before its payload is read.
+     *
+     * @param buffer a buffer in read mode
+     * @param board the board whose owner table names tile owners and
+     *              receives OWNER announcements, or null
+     * @param maxLength the largest frame length to accept
+     * @param accepted the request types to accept, such as {@link #CLIENT_REQUESTS}
+     * @return the request, or null if the frame is not complete yet
+     * @throws IOException if the frame is not a valid request of an accepted type
+     */
+    public static PlaceRequest<?> decode(ByteBuffer buffer, PlaceBoard board, int maxLength,
+                                         Set<PlaceRequest.RequestType> accepted) throws IOException {
+        if (!buffer.hasRemaining()) {
+            return null;
+        }
+        int start = buffer.position();
+        PlaceRequest.RequestType type = type(buffer.get(start), accepted);
+        if (isTile(type)) {
+            if (buffer.remaining() < TILE_SIZE) {
+                return null;
+            }
+            buffer.get();
+            return new PlaceRequest<>(type, readTile(buffer, board));
+        }
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int length = checkLength(buffer.getInt(start + 1), maxLength);
+        if (buffer.remaining() < HEADER_SIZE + length) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        buffer.position(start + HEADER_SIZE);
+        buffer.get(body);
+        return readBody(type, body, board);
+    }
+
+    /**
+     * Write a request to a stream and flush it.
+     *
+     * @param out the stream
+     * @param req the request
+     * @param board the board whose owner table gives tile owner ids, or null
+     * @throws IOException if the stream can't be written
+     */
+    public static void writeRequest(OutputStream out, PlaceRequest<?> req, PlaceBoard board) throws IOException {
+        ByteBuffer frame = encode(req, board);
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        out.flush();
+    }
+
+    /**
+     * Read the next request from a stream, blocking until it arrives.
+     *
+     * @param in the stream
+     * @param board the board whose owner table names tile owners and
+     *              receives OWNER announcements, or null
+     * @param maxLength the largest frame length to accept
+     * @return the request
+     * @throws IOException if the stream can't be read or the request is invalid
+     */
+    public static PlaceRequest<?> readRequest(DataInputStream in, PlaceBoard board, int maxLength) throws IOException {
+        return readRequest(in, board, maxLength, ANY_REQUEST);
+    }
+
+    /**
+     * Read the next request from a stream, blocking until it arrives, and
+     * refusing any type not accepted before its payload is read.
+     *
+     * @param in the stream
+     * @param board the board whose owner table names tile owners and
+     *              receives OWNER announcements, or null
+     * @param maxLength the largest frame length to accept
+     * @param accepted the request types to accept, such as {@link #CLIENT_REQUESTS}
+     * @return the request
+     * @throws IOException if the stream can't be read or the request is invalid or not accepted
+     */
+    public static PlaceRequest<?> readRequest(DataInputStream in, PlaceBoard board, int maxLength,
+                                              Set<PlaceRequest.RequestType> accepted) throws IOException {
+        PlaceRequest.RequestType type = type(in.readByte(), accepted);
+        if (isTile(type)) {
+            byte[] record = new byte[TILE_SIZE - 1];
+            in.readFully(record);
+            return new PlaceRequest<>(type, readTile(ByteBuffer.wrap(record), board));
+        }
+        byte[] body = new byte[checkLength(in.readInt(), maxLength)];
+        in.readFully(body);
+        return readBody(type, body, board);
+    }
+
+    /**
+     * Write a tile record, without the type byte.
+     *
+     * @param frame the frame to write into
+     * @param tile the tile
+     * @param board the board whose owner table gives the owner id, or null
+     */
+    private static void writeTile(ByteBuffer frame, PlaceTile tile, PlaceBoard board) {
+        frame.put((byte) tile.getColor().getNumber());
+        frame.putShort((short) tile.getRow());
+        frame.putShort((short) tile.getCol());
+        frame.putInt(board == null || tile.getOwner() == null ? 0 : board.getOwnerId(tile.getOwner()));
+        long time = tile.getTime() & TIME_MASK;
+        frame.putShort((short) (time >>> 32));
+        frame.putInt((int) time);
+        frame.putLong(tile.getSequence());
+    }
+
+    /**
+     * Read the rest of a tile frame, after the type byte.
+     *
+     * @param buffer the frame
+     * @param board the board whose owner table names the owner, or null
+     * @return the tile
+     * @throws IOException if the color is not valid
+     */
+    private static PlaceTile readTile(ByteBuffer buffer, PlaceBoard board) throws IOException {
+        int number = buffer.get() & 0xFF;
+        if (number >= PlaceColor.TOTAL_COLORS) {
+            throw new IOException("Invalid color " + number);
+        }
+        PlaceColor color = PlaceColor.getPlaceColor(number);
+        int row = buffer.getShort() & 0xFFFF;
+        int col = buffer.getShort() & 0xFFFF;
+        int owner = buffer.getInt();
+        long time = ((long) (buffer.getShort() & 0xFFFF) << 32) | (buffer.getInt() & 0xFFFFFFFFL);
+        long sequence = buffer.getLong();
+        String name = "";
+        if (board != null && owner > 0 && owner < board.getOwnerCount()) {
+            name = board.getOwnerName(owner);
+        }
+        PlaceTile tile = new PlaceTile(row, col, name, color, time);
+        tile.setSequence(sequence);
+        return tile;
+    }
+
+    /**
+     * Turn the payload of a frame back into a request.
+     *
+     * @param type the request type
+     * @param body the payload
+     * @param board the board that receives OWNER announcements, or null
+     * @return the request
+     * @throws IOException if the payload is not valid
+     */
+    private static PlaceRequest<?> readBody(PlaceRequest.RequestType type, byte[] body, PlaceBoard board)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        switch (type) {
+            case LOGIN:
+                int version = in.readUnsignedByte();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported protocol version " + version);
+                }
+                return new PlaceRequest<>(type, in.readUTF());
+            case ERROR:
+            case RELAY:
+                return new PlaceRequest<>(type, in.readUTF());
+            case RELAY_CHANGE:
+                int row = in.readInt();
+                int col = in.readInt();
+                int color = in.readUnsignedByte();
+                if (color >= PlaceColor.TOTAL_COLORS) {
+                    throw new IOException("Invalid color " + color);
+                }
+                return new PlaceRequest<>(type, new PlaceTile(row, col, in.readUTF(),
+                        PlaceColor.getPlaceColor(color), 0));
+            case OWNER:
+                int id = in.readInt();
+                String owner = in.readUTF();
+                if (board != null) {
+                    board.setOwnerName(id, owner);
+                }
+                return new PlaceRequest<>(type, owner);
+            case TILE_BATCH:
+                ByteBuffer records = ByteBuffer.wrap(body);
+                int count = records.remaining() < Integer.BYTES ? -1 : records.getInt();
+                if (count < 0 || (long) count * (TILE_SIZE - 1) != records.remaining()) {
+                    throw new IOException("Invalid tile batch of " + count + " tiles");
+                }
+                ArrayList<PlaceTile> tiles = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    tiles.add(readTile(records, board));
+                }
+                return new PlaceRequest<>(type, tiles);
+            case VIEWPORT:
+                return new PlaceRequest<>(type, new PlaceViewport(in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+            case CHUNK_SUMMARY:
+                int changed = in.readInt();
+                if (changed < 0 || (long) changed * Integer.BYTES != in.available()) {
+                    throw new IOException("Invalid chunk summary of " + changed + " chunks");
+                }
+                ArrayList<Integer> summary = new ArrayList<>(changed);
+                for (int i = 0; i < changed; i++) {
+                    summary.add(in.readInt());
+                }
+                return new PlaceRequest<>(type, summary);
+            case RESUME:
+                return new PlaceRequest<>(type, in.readLong());
+            case CHUNK:
+                int chunk = in.available() < 5 ? -1 : in.readInt();
+                if (board == null || chunk < 0 || chunk >= board.getChunkCount()) {
+                    throw new IOException("Invalid chunk " + chunk);
+                }
+                boolean chunkMetadata = (in.readUnsignedByte() & BOARD_METADATA) != 0;
+                try (DataInputStream packed = inflate(in)) {
+                    return new PlaceRequest<>(type, board.readChunk(packed, chunk, chunkMetadata));
+                }
+            default:
+                long dim = in.available() < 5 ? 0 : in.readInt();
+                int flags = body.length < 5 ? 0 : body[4];
+                boolean metadata = (flags & BOARD_METADATA) != 0;
+                // Don't let a bogus dimension allocate more than the frame could inflate to.  A
+                // board takes METADATA_TILE_BYTES a tile however it is sent, so a frame without
+                // metadata may still allocate 25 times what it inflates to, and a chunked board
+                // all of it up front.  Only servers send boards, the server refuses them.
+                double inflated = (double) dim * dim * (metadata ? METADATA_TILE_BYTES : 0.5);
+                if (dim <= 0 || dim > MAX_DIM
+                        || ((flags & BOARD_CHUNKED) == 0 && inflated > (double) body.length * MAX_DEFLATE_RATIO)) {
+                    throw new IOException("Invalid board dimension " + dim);
+                }
+                in.readUnsignedByte();
+                long sequence = in.readLong();
+                try (DataInputStream packed = inflate(in)) {
+                    PlaceBoard read;
+                    if ((flags & BOARD_CHUNKED) != 0) {
+                        read = new PlaceBoard((int) dim);
+                        read.readOwners(packed);
+                        read.expectChunks();
+                    } else {
+                        read = PlaceBoard.readFrom(packed, (int) dim, metadata);
+                    }
+                    read.setSequence(sequence);
+                    return new PlaceRequest<>(type, read);
+                }
+        }
+    }
+
+    /**
+     * Start inflating the rest of a payload.
+     *
+     * @param in the payload, positioned at the deflated data
+     * @return a stream of the inflated data
+     */
+    private static DataInputStream inflate(DataInputStream in) {
+        return new DataInputStream(new BufferedInputStream(new InflaterInputStream(in)));
+    }
+
+    /**
+     * Tells whether a request type travels as a fixed size tile frame.
+     *
+     * @param type the request type
+     * @return is it CHANGE_TILE or TILE_CHANGED?
+     */
+    private static boolean isTile(PlaceRequest.RequestType type) {
+        return type == PlaceRequest.RequestType.CHANGE_TILE ||
+                type == PlaceRequest.RequestType.TILE_CHANGED;
+    }
+
+    /**
+     * Get the wire code of a request type.
+     *
+     * @param type the request type
+     * @return the code
+     */
+    private static int code(PlaceRequest.RequestType type) {
+        for (int code = 0; code < TYPES.length; code++) {
+            if (TYPES[code] == type) {
+                return code;
+            }
+        }
+        throw new IllegalArgumentException("No wire code for " + type);
+    }
+
+    /**
+     * Get the request type of a wire code.
+     *
+     * @param code the code
+     * @param accepted the request types to accept
+     * @return the request type
+     * @throws IOException if the code is unknown or its type not accepted
+     */
+    private static PlaceRequest.RequestType type(int code, Set<PlaceRequest.RequestType> accepted)
+            throws IOException {
+        if (code < 0 || code >= TYPES.length) {
+            throw new IOException("Unknown request code " + code);
+        }
+        if (!accepted.contains(TYPES[code])) {
+            throw new IOException("Unexpected " + TYPES[code] + " request");
+        }
+        return TYPES[code];
+    }
+
+    /**
+     * Make sure a frame length is one we are willing to read.
+     *
+     * @param length the length from the frame header
+     * @param maxLength the largest length to accept
+     * @return the length
+     * @throws IOException if the length is negative or too large
+     */
+    private static int checkLength(int length, int maxLength) throws IOException {
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        return length;
+    }
+}
@@ -1,6 +1,10 @@
 package place.network;
 
+import place.PlaceTile;
+import place.PlaceViewport;
+
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * This is the class that represents the requests that are transmitted between
@@ -12,8 +16,16 @@ import java.io.Serializable;
  *      CHANGE_TILE: PlaceTile object<br>
  *      ERROR: String<br>
  *      LOGIN: String<br>
- *      LOGIN_SUCCESS: String<br>
+ *      LOGIN_SUCCESS: PlaceBoard object<br>
+ *      OWNER: String<br>
  *      TILE_CHANGED: PlaceTile object<br>
+ *      TILE_BATCH: ArrayList of PlaceTile objects<br>
+ *      CHUNK: ArrayList of PlaceTile objects<br>
+ *      VIEWPORT: PlaceViewport object<br>
+ *      CHUNK_SUMMARY: ArrayList of Integer chunk numbers<br>
+ *      RESUME: Long sequence number<br>
+ *      RELAY: String key<br>
+ *      RELAY_CHANGE: PlaceTile object with its owner<br>
  *
  * @author Sean Strout @ RIT CS
  */
@@ -55,13 +67,78 @@ public class PlaceRequest<E extends Serializable> implements Serializable {
          */
         LOGIN_SUCCESS,
 
+        /**
+         * Used by the server to tell all clients the username behind a new
+         * owner id.  Tiles carry owner ids rather than names, so this is
+         * sent before any tile owned by the new id.  It will contain the
+         * username.
+         */
+        OWNER,
+
         /**
          * Used by the server to indicate to all clients that a tile has
          * officially been changed.  It will contain the new Tile object.
          * The clients should update their view of the board each time
          * a tile change arrives.
          */
-        TILE_CHANGED
+        TILE_CHANGED,
+
+        /**
+         * Used by a server that broadcasts on a tick to send all the tiles
+         * changed during the tick at once.  It will contain the list of new
+         * Tile objects, with at most one tile per cell.  The clients should
+         * update their view of the board with each of them.
+         */
+        TILE_BATCH,
+
+        /**
+         * Used by the server to stream a large board after a LOGIN_SUCCESS
+         * that only carried the board's size and owners.  It will contain
+         * the tiles of one square chunk of the board.  Tile changes keep
+         * arriving in between chunks, the clients should apply both in the
+         * order they arrive.
+         */
+        CHUNK,
+
+        /**
+         * A client's request to only get the tile changes inside a
+         * rectangle of the board.  It will contain a PlaceViewport, an
+         * empty one asks for the whole board again.  The server answers
+         * with a CHUNK for each chunk that comes into view.
+         */
+        VIEWPORT,
+
+        /**
+         * Used by the server to tell clients with a viewport which chunks
+         * of the board changed lately.  It will contain the chunk numbers.
+         * The tiles of those chunks that are outside the client's viewport
+         * are out of date until it looks at them again.
+         */
+        CHUNK_SUMMARY,
+
+        /**
+         * Sent by a reconnecting client just before its LOGIN.  It will
+         * contain the sequence number of the last change the client saw.
+         * If the server still has every change since then it answers the
+         * LOGIN with a TILE_BATCH of them, in order, instead of a
+         * LOGIN_SUCCESS with the whole board.
+         */
+        RESUME,
+
+        /**
+         * Sent by a relay just before its LOGIN, see
+         * place.server.RelayUplink.  It will contain the key the server's
+         * relays share.  A relay always gets the whole board in its
+         * LOGIN_SUCCESS, never a chunked one, and may send RELAY_CHANGE.
+         */
+        RELAY,
+
+        /**
+         * A relay's request to change a tile for one of its own clients.
+         * It will contain a Tile object owned by that client, and is
+         * handled like a CHANGE_TILE from the owner.
+         */
+        RELAY_CHANGE
     }
 
     /** The request type */
@@ -94,6 +171,48 @@ public class PlaceRequest<E extends Serializable> implements Serializable {
      */
     public E getData() { return data; }
 
+    /**
+     * Get the tile of a CHANGE_TILE, TILE_CHANGED or RELAY_CHANGE request.
+     *
+     * @return the tile
+     * @throws IllegalStateException if the request carries no tile
+     */
+    public PlaceTile getTile() {
+        if (type != RequestType.CHANGE_TILE && type != RequestType.TILE_CHANGED
+                && type != RequestType.RELAY_CHANGE) {
+            throw new IllegalStateException(type + " carries no tile");
+        }
+        return (PlaceTile) data;
+    }
+
+    /**
+     * Get the viewport of a VIEWPORT request.
+     *
+     * @return the viewport
+     * @throws IllegalStateException if the request carries no viewport
+     */
+    public PlaceViewport getViewport() {
+        if (type != RequestType.VIEWPORT) {
+            throw new IllegalStateException(type + " carries no viewport");
+        }
+        return (PlaceViewport) data;
+    }
+
+    /**
+     * Get the tiles of a TILE_BATCH or CHUNK request.
+     *
+     * @return the tiles
+     * @throws IllegalStateException if the request carries no tiles
+     */
+    @SuppressWarnings("unchecked")
+    public List<PlaceTile> getTiles() {
+        if (type != RequestType.TILE_BATCH && type != RequestType.CHUNK) {
+            throw new IllegalStateException(type + " carries no tiles");
+        }
+        //Only the exchange builds these requests, always from a list of tiles.
+        return (List<PlaceTile>) data;
+    }
+
     /**
      * Utility method for debugging only.
      *
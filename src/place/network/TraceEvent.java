@@ -0,0 +1,31 @@
+package place.network;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A flight recorder event for one stage of a traced tile change.  It is
+ * committed when the stage ends, with how long the stage took.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+@Name("place.Trace")
+@Label("Tile Change Stage")
+@Category("Place")
+@Description("One stage of a traced tile change")
+public class TraceEvent extends Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("Sequence")
+    @Description("The sequence number of the change, 0 before it is applied")
+    long sequence;
+
+    @Label("Latency")
+    @Timespan(Timespan.NANOSECONDS)
+    long latency;
+}
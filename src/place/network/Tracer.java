@@ -0,0 +1,147 @@
+package place.network;
+
+import place.LatencyHistogram;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Follows a sample of tile changes through their stages and keeps a
+ * latency histogram for each stage.  The client times a change from
+ * sending it to the server's broadcast of it coming back, and how long
+ * its model takes to notify the views.  The server times how long a
+ * change waits for the sequencer, how long applying it and handing it to
+ * the clients take, and how long frames wait to be written.  The network
+ * is what is left of the client's round trip once the server's stages
+ * are taken out.
+ *
+ * Each stage also commits a {@link TraceEvent}, so a flight recording
+ * shows the stages next to garbage collections and safepoints.  The
+ * sequence number of the change ties the client's and server's events
+ * together.
+ *
+ * With tracing off {@link #sample()} is always false and nothing else is
+ * done.  Clients turn it on with -Dplace.trace=N, the server with
+ * --trace=N, to trace about one in every N changes.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class Tracer {
+    /**
+     * The stages of a change that are timed.
+     */
+    public enum Stage {
+        /** From the client sending a change to receiving it back */
+        CLIENT_ROUND_TRIP,
+        /** The client model notifying its views of a change */
+        CLIENT_NOTIFY,
+        /** From the server receiving a change to the sequencer taking it */
+        SERVER_QUEUE,
+        /** The sequencer applying a change to the board */
+        SERVER_APPLY,
+        /** From a change being applied to its broadcast being queued for every client */
+        SERVER_FANOUT,
+        /** From a frame being queued for a client to being written */
+        SERVER_FLUSH
+    }
+
+    /** The system property clients read their sampling from */
+    public static final String PROPERTY = "place.trace";
+
+    /** Tracing turned off */
+    public static final Tracer OFF = new Tracer(0);
+
+    /** Trace one in this many changes, 0 for none */
+    private final int every;
+    private final LatencyHistogram[] stages;
+
+    /**
+     * Creates a tracer.
+     *
+     * @param every trace about one in this many changes, 0 for none
+     */
+    public Tracer(int every) {
+        this.every = every;
+        this.stages = new LatencyHistogram[every > 0 ? Stage.values().length : 0];
+        for (int i = 0; i < this.stages.length; i++) {
+            this.stages[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Creates the tracer the place.trace system property asks for.
+     *
+     * @return the tracer, {@link #OFF} if the property is not set
+     */
+    public static Tracer fromProperty() {
+        int every = Integer.getInteger(PROPERTY, 0);
+        return every > 0 ? new Tracer(every) : OFF;
+    }
+
+    /**
+     * Tells whether tracing is on.
+     *
+     * @return whether any change is traced
+     */
+    public boolean isEnabled() {
+        return this.every > 0;
+    }
+
+    /**
+     * Decides whether to trace the next change.
+     *
+     * @return whether to trace it
+     */
+    public boolean sample() {
+        return this.every > 0 && (this.every == 1 || ThreadLocalRandom.current().nextInt(this.every) == 0);
+    }
+
+    /**
+     * Records a stage of a traced change.
+     *
+     * @param stage the stage
+     * @param nanos how long it took
+     * @param sequence the sequence number of the change, 0 if it has none yet
+     */
+    public void record(Stage stage, long nanos, long sequence) {
+        if (this.every == 0) {
+            return;
+        }
+        this.stages[stage.ordinal()].record(nanos);
+        TraceEvent event = new TraceEvent();
+        if (event.isEnabled()) {
+            event.stage = stage.name();
+            event.sequence = sequence;
+            event.latency = nanos;
+            event.commit();
+        }
+    }
+
+    /**
+     * Gets the histogram of a stage.
+     *
+     * @param stage the stage
+     * @return the histogram, null with tracing off
+     */
+    public LatencyHistogram get(Stage stage) {
+        return this.every == 0 ? null : this.stages[stage.ordinal()];
+    }
+
+    /**
+     * Describes the stages that have been recorded, one per line.
+     *
+     * @return the description
+     */
+    public String summary() {
+        StringBuilder out = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = get(stage);
+            if (h != null && h.getCount() > 0) {
+                out.append(String.format(Locale.ROOT, "%-18s n=%d p50=%dus p99=%dus max=%dus%n",
+                        stage.name().toLowerCase(Locale.ROOT), h.getCount(), h.getPercentile(0.5) / 1000,
+                        h.getPercentile(0.99) / 1000, h.getMax() / 1000));
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,1277 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceTile;
+import place.PlaceViewport;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+import place.network.Tracer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The only thread that changes the board.  Client threads publish their
+ * validated tile changes, logins and logouts into a lock-free ring buffer,
+ * and the sequencer thread applies them one at a time.  Each applied
+ * change gets the next sequence number and a server timestamp, and is then
+ * broadcast to the logged in clients.  With a tick, the changes are
+ * instead collected and broadcast as one TILE_BATCH per tick, keeping only
+ * the latest change to each cell.
+ *
+ * The latest applied changes are kept, so a client that
+ * reconnects and says which change it saw last only gets the changes since
+ * then.  Without a journal to continue from, changes are numbered from the
+ * clock, so a client of an earlier run never resumes into this one.
+ *
+ * Logins get the board as one deflated LOGIN_SUCCESS frame.  The frame is
+ * kept until the board changes, so a storm of logins after a restart
+ * encodes the board once.  A large board is streamed instead: the login
+ * gets only the board's size and owners, then the sequencer sends it one
+ * CHUNK at a time in between applying events, a few ahead of what the
+ * client has read.  Each chunk is read from the live board, so it already
+ * holds every change broadcast before it.  Encoded chunks are kept until a
+ * tile in them changes.  A relay always gets the whole board with
+ * every owner and time, to serve its own logins from.
+ *
+ * A client may narrow what it gets to a viewport.  Viewports are indexed by
+ * the chunks they cover: a change goes to the whole board clients and to
+ * the clients watching its chunk, and every client with a viewport gets a
+ * CHUNK_SUMMARY of the changed chunks once a second.  Chunks that come into
+ * view are streamed to the client like a login.
+ *
+ * With a {@link TileJournal}, every applied change is also appended to the
+ * journal, and the journal is written whenever the ring runs dry.  Under
+ * the ALWAYS fsync policy that write is a group commit: the group's
+ * changes are held back from the clients, the replicas and the other
+ * nodes of a cluster until the journal has forced them to disk, so nobody
+ * sees a change a crash could lose.  A long burst is committed every {@link #MAX_HELD} changes, and
+ * logins, chunk streams and ticks commit what is held before they go out.
+ *
+ * With a {@link HistoryStore}, every applied change is also recorded in it.
+ *
+ * How long each change takes to apply and to hand to the clients is
+ * recorded in the {@link ServerMetrics}.
+ *
+ * With a {@link ChangeRouter}, a server in a cluster decides which of its
+ * clients' changes it applies itself and hears about each one it applied.
+ * Changes other servers applied are handed in by tasks run on the
+ * sequencer thread, which keep their time and are not routed again.
+ *
+ * With a {@link ReplicationSource}, every applied change is also shipped
+ * to the replicas.  A replica's sequencer hands in the primary's changes
+ * the same way, keeping their sequence numbers, and installs the primary's
+ * snapshot when it is too far behind to catch up from the changes alone.
+ *
+ * A snapshot is captured a chunk at a time in between events, so applying
+ * changes never waits for a copy of the whole board.  Before a change is
+ * applied to a chunk that has not been copied yet, that chunk is copied
+ * first, so the snapshot holds the board exactly as of its request.
+ *
+ * Because one thread does all the writing, nothing is locked.  Anything
+ * that needs a consistent view of the board (a login, a snapshot) is also
+ * an event on the ring, so it sees the board exactly as of the last change
+ * before it and no change is broadcast to a client before its board.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class BoardSequencer implements Runnable {
+    /** How many idle polls to spin through before parking */
+    private static final int SPIN_TRIES = 100;
+    /** How many events to apply between rounds of streaming chunks and checking timers */
+    private static final int STREAM_EVERY = 64;
+    /** Chunks are only sent to a client with fewer frames than this queued */
+    private static final int STREAM_WINDOW = 8;
+    /** How many chunks to copy into a snapshot between events */
+    private static final int CAPTURE_EVERY = 16;
+    /** How long to park while streams wait on their clients */
+    private static final long STREAM_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    /** How often clients with a viewport hear which chunks changed */
+    private static final long SUMMARY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /** The most changes held back for a group commit before the journal is forced anyway */
+    private static final int MAX_HELD = 1024;
+
+    /**
+     * The kinds of events.
+     */
+    private enum Kind { CHANGE, JOIN, LEAVE, VIEWPORT, SNAPSHOT, TASK }
+
+    /**
+     * Something for the sequencer thread to do.
+     */
+    private static class Event {
+        private final Kind kind;
+        private final ClientConnection client;
+        private final PlaceTile tile;
+        private final PlaceViewport viewport;
+        private final Capture capture;
+        private final long resume;
+        /** When the server received a traced change, 0 if it is not traced */
+        private long traced;
+        /** The task to run, or null */
+        private Runnable task;
+        /** Whether a joining client gets the whole board even if logins are streamed */
+        private boolean wholeBoard;
+
+        /**
+         * Creates an event.
+         *
+         * @param kind what to do
+         * @param client the client, or null
+         * @param tile the changed tile, or null
+         * @param viewport the client's new viewport, or null
+         * @param capture the snapshot to take, or null
+         * @param resume the last change a joining client saw, or 0
+         */
+        private Event(Kind kind, ClientConnection client, PlaceTile tile, PlaceViewport viewport,
+                      Capture capture, long resume) {
+            this.kind = kind;
+            this.client = client;
+            this.tile = tile;
+            this.viewport = viewport;
+            this.capture = capture;
+            this.resume = resume;
+        }
+    }
+
+    /**
+     * An applied change held back until the journal forces it to disk, or
+     * a task waiting for the changes held before it.
+     */
+    private static class Held {
+        private final PlaceTile tile;
+        private final int chunk;
+        /** When the change was applied, in nanoTime */
+        private final long applied;
+        private final boolean traced;
+        private final Runnable task;
+
+        /**
+         * Holds a change.
+         *
+         * @param tile the tile, with its sequence number
+         * @param chunk the chunk it is in
+         * @param applied when it was applied, in nanoTime
+         * @param traced whether the change is traced
+         */
+        private Held(PlaceTile tile, int chunk, long applied, boolean traced) {
+            this.tile = tile;
+            this.chunk = chunk;
+            this.applied = applied;
+            this.traced = traced;
+            this.task = null;
+        }
+
+        /**
+         * Holds a task.
+         *
+         * @param task the task
+         */
+        private Held(Runnable task) {
+            this.tile = null;
+            this.chunk = 0;
+            this.applied = 0;
+            this.traced = false;
+            this.task = task;
+        }
+    }
+
+    /**
+     * A snapshot being copied from the board.
+     */
+    private static class Capture {
+        /** The copy, allocated by the thread that asked for it */
+        private final PlaceBoard copy;
+        private final CompletableFuture<BoardSnapshot> done;
+        /** The chunks not copied yet */
+        private final BitSet left;
+        private long sequence;
+        private long time;
+        private int segment;
+
+        /**
+         * Creates a capture into an empty board.
+         *
+         * @param copy the empty board
+         */
+        private Capture(PlaceBoard copy) {
+            this.copy = copy;
+            this.done = new CompletableFuture<>();
+            this.left = new BitSet();
+        }
+    }
+
+    private final PlaceBoard board;
+    private final MpscRingBuffer<Event> ring;
+    /** The clients that get the whole board's changes, only touched by the sequencer thread */
+    private final List<ClientConnection> subscribers;
+    /** Where each subscriber is in the list, for quick removal */
+    private final Map<ClientConnection, Integer> positions;
+    /** The chunks each client with a viewport is watching */
+    private final Map<ClientConnection, BitSet> viewports;
+    /** The clients watching each chunk, null for chunks nobody watches */
+    private final List<List<ClientConnection>> watchers;
+    private volatile Thread thread;
+    private volatile boolean running;
+    private volatile boolean parked;
+    /** The sequence number of the last applied change */
+    private volatile long sequence;
+    /** The time stamped on the last applied change */
+    private long lastTime;
+    /** How long to collect changes before broadcasting them, 0 to send each at once */
+    private final long tickNanos;
+    /** The changes of the current tick by cell, only touched by the sequencer thread */
+    private final Map<Integer, PlaceTile> pending;
+    /** When the current tick ends */
+    private long tickEnd;
+    /** The chunks changed since the last summary */
+    private final BitSet dirty;
+    /** When the next summary is due */
+    private long summaryEnd;
+    /** Whether login frames include the owner and time of every tile */
+    private final boolean snapshotMetadata;
+    /** The last login frame, null once the board has changed */
+    private ByteBuffer loginFrame;
+    /** The owner count when the login frame was encoded */
+    private int loginOwners;
+    /** Whether logins are streamed in chunks */
+    private final boolean streamLogins;
+    /** The encoded chunks, null where a chunk has changed since */
+    private final ByteBuffer[] chunkFrames;
+    /** The chunks still to send each streaming client, only touched by the sequencer thread */
+    private final Map<ClientConnection, BitSet> streams;
+    /** The journal of applied changes, or null */
+    private TileJournal journal;
+    /** The applied changes waiting for the journal to force them, only touched by the sequencer thread */
+    private final List<Held> held = new ArrayList<>();
+    /** The history of applied changes, or null */
+    private final HistoryStore history;
+    /** The latest applied changes, by sequence number modulo the length, or null */
+    private final PlaceTile[] recent;
+    /** The sequence number the recent changes start after */
+    private long recentFrom;
+    /** The snapshot being copied, or null */
+    private Capture capture;
+    /** Records how long changes take to apply and broadcast */
+    private final ServerMetrics metrics;
+    /** Follows a sample of the changes through their stages */
+    private final Tracer tracer;
+    /** When each traced change of the current tick was applied, and its sequence number */
+    private final List<long[]> tracedInTick;
+    /** Decides which changes this server applies in a cluster, or null */
+    private ChangeRouter router;
+    /** Ships the applied changes to the replicas, or null */
+    private ReplicationSource replication;
+
+    /**
+     * Creates a sequencer for a board.
+     *
+     * @param board the board, which only the sequencer may change from now on
+     * @param capacity the most events waiting to be applied
+     * @param tick the milliseconds to collect changes before broadcasting them, 0 to send each at once
+     * @param snapshotMetadata whether login frames include the owner and time of every tile
+     * @param streamLogins whether to stream the board to logins in chunks
+     * @param journal the journal the board was replayed from, or null
+     * @param history the history to record changes in, or null
+     * @param resumeWindow how many of the latest changes to keep for reconnecting clients
+     * @param metrics where to record how long changes take to apply and broadcast
+     */
+    public BoardSequencer(PlaceBoard board, int capacity, int tick, boolean snapshotMetadata,
+                          boolean streamLogins, TileJournal journal, HistoryStore history, int resumeWindow,
+                          ServerMetrics metrics) {
+        this.board = board;
+        this.ring = new MpscRingBuffer<>(capacity);
+        this.subscribers = new ArrayList<>();
+        this.positions = new HashMap<>();
+        this.viewports = new HashMap<>();
+        this.watchers = new ArrayList<>(Collections.nCopies(board.getChunkCount(), null));
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+        this.pending = new LinkedHashMap<>();
+        this.dirty = new BitSet();
+        this.snapshotMetadata = snapshotMetadata;
+        this.streamLogins = streamLogins;
+        this.chunkFrames = new ByteBuffer[board.getChunkCount()];
+        this.streams = new LinkedHashMap<>();
+        this.journal = journal;
+        this.history = history;
+        this.metrics = metrics;
+        this.tracer = metrics.getTracer();
+        this.tracedInTick = new ArrayList<>();
+        if (journal != null) {
+            this.sequence = journal.getLastSequence();
+            this.lastTime = journal.getLastTime();
+        }
+        if (this.sequence == 0) {
+            this.sequence = System.currentTimeMillis() << 20;
+        }
+        this.board.setSequence(this.sequence);
+        this.recent = resumeWindow > 0 ? new PlaceTile[resumeWindow] : null;
+        this.recentFrom = this.sequence;
+        this.running = true;
+    }
+
+    /**
+     * Publishes a validated tile change.
+     *
+     * @param client the client that made the change
+     * @param tile the tile, already owned by the client
+     * @return false if the ring is full and the change was dropped
+     */
+    public boolean publishChange(ClientConnection client, PlaceTile tile) {
+        return publishChange(client, tile, 0);
+    }
+
+    /**
+     * Publishes a validated tile change that may be traced.
+     *
+     * @param client the client that made the change
+     * @param tile the tile, already owned by the client
+     * @param traced the nanoTime the change was received if it is traced, otherwise 0
+     * @return false if the ring is full and the change was dropped
+     */
+    public boolean publishChange(ClientConnection client, PlaceTile tile, long traced) {
+        Event event = new Event(Kind.CHANGE, client, tile, null, null, 0);
+        event.traced = traced;
+        return publish(event, false);
+    }
+
+    /**
+     * Publishes a login.  The sequencer sends the client its board, or
+     * the changes since the last one it saw if it has them all, and starts
+     * broadcasting to it from the next change on.
+     *
+     * @param client the client, with its username set
+     * @param resume the sequence number of the last change the client saw, 0 for a new client
+     */
+    public void join(ClientConnection client, long resume) {
+        join(client, resume, false);
+    }
+
+    /**
+     * Publishes a login that may ask for the whole board in one frame with
+     * every owner and time, as relays do, however other logins get it.
+     *
+     * @param client the client, with its username set
+     * @param resume the sequence number of the last change the client saw, 0 for a new client
+     * @param wholeBoard whether to send the whole board in one frame with its metadata
+     */
+    public void join(ClientConnection client, long resume, boolean wholeBoard) {
+        Event event = new Event(Kind.JOIN, client, null, null, null, resume);
+        event.wholeBoard = wholeBoard;
+        publish(event, true);
+    }
+
+    /**
+     * Publishes a logout.  The sequencer stops broadcasting to the client.
+     *
+     * @param client the client
+     */
+    public void leave(ClientConnection client) {
+        publish(new Event(Kind.LEAVE, client, null, null, null, 0), true);
+    }
+
+    /**
+     * Publishes a client's new viewport.  From then on the client only gets
+     * the changes to the chunks its viewport covers.
+     *
+     * @param client the client
+     * @param viewport the viewport, or {@link PlaceViewport#WHOLE_BOARD}
+     */
+    public void setViewport(ClientConnection client, PlaceViewport viewport) {
+        publish(new Event(Kind.VIEWPORT, client, null, viewport, null, 0), true);
+    }
+
+    /**
+     * Asks for a copy of the board as of the last change applied before
+     * the request.  With a journal, the changes after it go to a new
+     * segment.  The caller never waits on the sequencer's work.  Only one
+     * snapshot is taken at a time, asking for another before the last one
+     * is done fails with an IllegalStateException.
+     *
+     * @return the snapshot, once the sequencer has copied the whole board
+     */
+    public CompletableFuture<BoardSnapshot> snapshot() {
+        Capture capture = new Capture(new PlaceBoard(this.board.DIM));
+        publish(new Event(Kind.SNAPSHOT, null, null, null, capture, 0), true);
+        return capture.done;
+    }
+
+    /**
+     * Runs a task on the sequencer thread, after every event published
+     * before it.  The task may read the board and hand in changes with
+     * {@link #applyRemote}, and must not block.
+     *
+     * @param task the task
+     */
+    public void execute(Runnable task) {
+        Event event = new Event(Kind.TASK, null, null, null, null, 0);
+        event.task = task;
+        publish(event, true);
+    }
+
+    /**
+     * Runs a task once every change applied so far is on disk: at once,
+     * unless changes are held back for a group commit, in which case it
+     * runs when they are released, in order with them.  Only called on the
+     * sequencer thread, by the router and by tasks.
+     *
+     * @param task the task
+     */
+    public void afterDurable(Runnable task) {
+        if (this.held.isEmpty()) {
+            task.run();
+        } else {
+            this.held.add(new Held(task));
+        }
+    }
+
+    /**
+     * Sets the router that decides which changes this server applies.
+     * Must be called before the sequencer thread starts.
+     *
+     * @param router the router, or null to apply every change
+     */
+    public void setRouter(ChangeRouter router) {
+        this.router = router;
+    }
+
+    /**
+     * Sets where the applied changes are shipped to replicas.  Must be
+     * called before the sequencer thread starts.
+     *
+     * @param replication the replication source, or null
+     */
+    public void setReplication(ReplicationSource replication) {
+        this.replication = replication;
+    }
+
+    /**
+     * Applies a change on behalf of the cluster or the primary.  Only
+     * called by tasks on the sequencer thread.
+     *
+     * @param tile the tile
+     * @param remote true if another server applied it first, false if this
+     *               server is applying a change forwarded to it
+     */
+    void applyRemote(PlaceTile tile, boolean remote) {
+        applyChange(tile, 0, remote);
+    }
+
+    /**
+     * Gets the changes applied after one, if they are all still kept.
+     * Only called by tasks on the sequencer thread.
+     *
+     * @param from the sequence number of the last change already seen
+     * @return the changes in order, or null if some are no longer kept
+     */
+    List<PlaceTile> changesSince(long from) {
+        if (!canResume(from)) {
+            return null;
+        }
+        List<PlaceTile> changes = new ArrayList<>((int) (this.sequence - from));
+        for (long s = from + 1; s <= this.sequence; s++) {
+            changes.add(this.recent[(int) (s % this.recent.length)]);
+        }
+        return changes;
+    }
+
+    /**
+     * Replaces the whole board with a snapshot of the primary's, and
+     * carries on numbering from it.  The clients are disconnected, so they
+     * log in again and get the new board.  Only called by tasks on the
+     * sequencer thread.
+     *
+     * @param snapshot the snapshot, of a board the same size
+     */
+    void install(BoardSnapshot snapshot) {
+        PlaceBoard from = snapshot.getBoard();
+        if (this.capture != null) {
+            this.capture.done.completeExceptionally(new IllegalStateException("The board was replaced"));
+            this.capture = null;
+        }
+        this.board.copyOwners(from);
+        for (int chunk = 0; chunk < this.board.getChunkCount(); chunk++) {
+            this.board.copyChunk(from, chunk);
+        }
+        this.sequence = snapshot.getSequence();
+        this.lastTime = snapshot.getTime();
+        this.board.setSequence(this.sequence);
+        this.recentFrom = this.sequence;
+        if (this.recent != null) {
+            Arrays.fill(this.recent, null);
+        }
+        this.loginFrame = null;
+        Arrays.fill(this.chunkFrames, null);
+        this.pending.clear();
+        this.tracedInTick.clear();
+        this.dirty.clear();
+        this.streams.clear();
+        for (ClientConnection client : new ArrayList<>(this.positions.keySet())) {
+            client.close();
+        }
+        for (ClientConnection client : new ArrayList<>(this.viewports.keySet())) {
+            client.close();
+        }
+    }
+
+    /**
+     * Gets the sequence number of the last applied change.
+     *
+     * @return the sequence number, 0 before the first change
+     */
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Gets the number of events waiting to be applied.
+     *
+     * @return the depth of the ring
+     */
+    public int getBacklog() {
+        return this.ring.size();
+    }
+
+    /**
+     * Puts an event on the ring and wakes the sequencer if it is parked.
+     *
+     * @param event the event
+     * @param mustSucceed keep trying while the ring is full
+     * @return whether the event was published
+     */
+    private boolean publish(Event event, boolean mustSucceed) {
+        while (!this.ring.offer(event)) {
+            if (!mustSucceed) {
+                return false;
+            }
+            LockSupport.parkNanos(10_000);
+        }
+        if (this.parked) {
+            LockSupport.unpark(this.thread);
+        }
+        return true;
+    }
+
+    /**
+     * Applies events until the sequencer is closed.  In between it streams
+     * chunks, broadcasts the pending changes whenever a tick ends and sends
+     * the chunk summaries.
+     */
+    @Override
+    public void run() {
+        this.thread = Thread.currentThread();
+        int idle = 0;
+        long applied = 0;
+        while (this.running) {
+            Event event = this.ring.poll();
+            if (event != null) {
+                apply(event);
+                idle = 0;
+                if (++applied % STREAM_EVERY != 0) {
+                    continue;
+                }
+            }
+            if (this.journal != null && this.journal.hasPending()
+                    && (event == null || this.held.size() >= MAX_HELD
+                        || (!this.held.isEmpty() && !this.streams.isEmpty()))) {
+                flushJournal();
+            }
+            boolean streamed = !this.streams.isEmpty() && streamChunks();
+            boolean captured = this.capture != null && captureChunks();
+            runTimers();
+            if (event != null || streamed || captured) {
+                idle = 0;
+            } else if (++idle < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else {
+                park();
+                idle = 0;
+            }
+        }
+        if (this.journal != null) {
+            try {
+                this.journal.close();
+            } catch (IOException e) {
+                System.out.println("Could not close the journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes the journal's buffered changes as one group, then sends the
+     * changes that were held back until they were on disk.
+     */
+    private void flushJournal() {
+        try {
+            this.journal.flush();
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+        releaseHeld();
+    }
+
+    /**
+     * Tells whether applied changes have to wait for the journal to force
+     * them before they go out.
+     *
+     * @return is there a journal with the ALWAYS fsync policy?
+     */
+    private boolean holding() {
+        return this.journal != null && this.journal.getPolicy() == TileJournal.FsyncPolicy.ALWAYS;
+    }
+
+    /**
+     * Sends the held changes to the replicas and, without a tick, to the
+     * clients, and runs the held tasks.  With a tick the changes are
+     * already in the tick's changes.
+     */
+    private void releaseHeld() {
+        for (Held change : this.held) {
+            if (change.task != null) {
+                change.task.run();
+                continue;
+            }
+            if (this.replication != null) {
+                this.replication.append(change.tile);
+            }
+            if (this.tickNanos == 0) {
+                broadcast(change.tile, change.chunk, change.applied, change.traced);
+            }
+        }
+        this.held.clear();
+    }
+
+    /**
+     * Stops journaling after the journal could not be written, so the
+     * board carries on in memory.
+     *
+     * @param e what went wrong
+     */
+    private void journalFailed(IOException e) {
+        System.out.println("The journal failed, changes are no longer saved: " + e.getMessage());
+        try {
+            this.journal.close();
+        } catch (IOException ignored) {
+            // It is already broken.
+        }
+        this.journal = null;
+        //Nothing held will be forced now.
+        releaseHeld();
+    }
+
+    /**
+     * Parks until an event is published or the next timer is due.
+     */
+    private void park() {
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        if (!this.pending.isEmpty()) {
+            wait = Math.min(wait, this.tickEnd - now);
+        }
+        if (!this.dirty.isEmpty()) {
+            wait = Math.min(wait, this.summaryEnd - now);
+        }
+        if (!this.streams.isEmpty()) {
+            wait = Math.min(wait, STREAM_PAUSE_NANOS);
+        }
+        this.parked = true;
+        if (this.ring.isEmpty() && this.running) {
+            if (wait == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+        this.parked = false;
+    }
+
+    /**
+     * Broadcasts the tick's changes and the chunk summary if they are due.
+     */
+    private void runTimers() {
+        long now = System.nanoTime();
+        if (!this.pending.isEmpty() && now - this.tickEnd >= 0) {
+            if (!this.held.isEmpty()) {
+                flushJournal();
+            }
+            flushTick();
+        }
+        if (!this.dirty.isEmpty() && now - this.summaryEnd >= 0) {
+            sendSummary();
+        }
+    }
+
+    /**
+     * Applies one event.
+     *
+     * @param event the event
+     */
+    private void apply(Event event) {
+        switch (event.kind) {
+            case CHANGE:
+                if (this.router == null || this.router.route(event.tile)) {
+                    applyChange(event.tile, event.traced, false);
+                }
+                break;
+            case JOIN:
+                applyJoin(event.client, event.resume, event.wholeBoard);
+                break;
+            case LEAVE:
+                applyLeave(event.client);
+                break;
+            case VIEWPORT:
+                applyViewport(event.client, event.viewport);
+                break;
+            case SNAPSHOT:
+                applySnapshot(event.capture);
+                break;
+            case TASK:
+                event.task.run();
+                break;
+        }
+    }
+
+    /**
+     * Changes a tile and broadcasts it, or adds it to the current
+     * tick's changes.
+     *
+     * @param tile the tile
+     * @param traced when the server received the change if it is traced, otherwise 0
+     * @param remote whether another server applied the change first, so it keeps its time
+     */
+    private void applyChange(PlaceTile tile, long traced, boolean remote) {
+        long start = System.nanoTime();
+        int chunk = this.board.getChunk(tile.getRow(), tile.getCol());
+        if (this.capture != null && this.capture.left.get(chunk)) {
+            this.capture.copy.copyChunk(this.board, chunk);
+            this.capture.left.clear(chunk);
+        }
+        if (remote) {
+            this.lastTime = Math.max(this.lastTime, tile.getTime());
+        } else {
+            this.lastTime = Math.max(this.lastTime, System.currentTimeMillis());
+            tile.setTime(this.lastTime);
+        }
+        if (tile.getOwner() != null) {
+            //Changes from other servers and relays may be owned by users who never logged in here.
+            announceOwner(tile.getOwner());
+        }
+        this.board.setTile(tile);
+        if (remote && this.router == null && tile.getSequence() > this.sequence) {
+            //A replica numbers its changes as the primary did.
+            this.sequence = tile.getSequence();
+        } else {
+            this.sequence++;
+        }
+        this.board.setSequence(this.sequence);
+        tile.setSequence(this.sequence);
+        if (this.recent != null) {
+            this.recent[(int) (this.sequence % this.recent.length)] = tile;
+        }
+        if (this.journal != null) {
+            try {
+                this.journal.append(this.board, this.sequence, tile);
+            } catch (IOException e) {
+                journalFailed(e);
+            }
+        }
+        if (this.history != null) {
+            this.history.record(this.board, tile);
+        }
+        boolean hold = holding();
+        if (this.replication != null && !hold) {
+            this.replication.append(tile);
+        }
+        this.loginFrame = null;
+        this.chunkFrames[chunk] = null;
+        if (!this.viewports.isEmpty()) {
+            if (this.dirty.isEmpty()) {
+                this.summaryEnd = System.nanoTime() + SUMMARY_NANOS;
+            }
+            this.dirty.set(chunk);
+        }
+        long applied = System.nanoTime();
+        this.metrics.changeApplied(applied - start);
+        if (traced != 0) {
+            this.tracer.record(Tracer.Stage.SERVER_QUEUE, start - traced, this.sequence);
+            this.tracer.record(Tracer.Stage.SERVER_APPLY, applied - start, this.sequence);
+        }
+        if (hold) {
+            this.held.add(new Held(tile, chunk, applied, traced != 0));
+        }
+        if (this.router != null && !remote) {
+            //Held behind the change if it is, see afterDurable.
+            this.router.applied(tile);
+        }
+        if (this.tickNanos == 0) {
+            if (!hold) {
+                broadcast(tile, chunk, applied, traced != 0);
+            }
+            return;
+        }
+        if (this.pending.isEmpty()) {
+            this.tickEnd = System.nanoTime() + this.tickNanos;
+        }
+        if (traced != 0) {
+            this.tracedInTick.add(new long[]{applied, this.sequence});
+        }
+        this.pending.put(tile.getRow() * this.board.DIM + tile.getCol(), tile);
+    }
+
+    /**
+     * Sends an applied change to the whole board clients and the clients
+     * watching its chunk.
+     *
+     * @param tile the tile, with its sequence number
+     * @param chunk the chunk it is in
+     * @param applied when it was applied, in nanoTime
+     * @param traced whether the change is traced
+     */
+    private void broadcast(PlaceTile tile, int chunk, long applied, boolean traced) {
+        ByteBuffer frame = encode(new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tile));
+        send(frame, this.subscribers);
+        send(frame, this.watchers.get(chunk));
+        long sent = System.nanoTime();
+        this.metrics.fanout(sent - applied);
+        if (traced) {
+            this.tracer.record(Tracer.Stage.SERVER_FANOUT, sent - applied, tile.getSequence());
+        }
+    }
+
+    /**
+     * Starts copying a snapshot as of now.  With a journal, the changes
+     * after it go to a new segment.
+     *
+     * @param capture the snapshot to take
+     */
+    private void applySnapshot(Capture capture) {
+        if (this.capture != null) {
+            capture.done.completeExceptionally(new IllegalStateException("A snapshot is already being taken"));
+            return;
+        }
+        capture.segment = -1;
+        if (this.journal != null) {
+            try {
+                capture.segment = this.journal.roll(this.board.DIM);
+            } catch (IOException e) {
+                journalFailed(e);
+            }
+        }
+        capture.copy.copyOwners(this.board);
+        capture.sequence = this.sequence;
+        capture.time = this.lastTime;
+        capture.left.set(0, this.board.getChunkCount());
+        this.capture = capture;
+    }
+
+    /**
+     * Copies the next few chunks into the snapshot being taken, and hands
+     * it over once every chunk is copied.
+     *
+     * @return whether any chunk was copied
+     */
+    private boolean captureChunks() {
+        BitSet left = this.capture.left;
+        int chunk = left.nextSetBit(0);
+        for (int i = 0; i < CAPTURE_EVERY && chunk >= 0; i++) {
+            this.capture.copy.copyChunk(this.board, chunk);
+            left.clear(chunk);
+            chunk = left.nextSetBit(chunk + 1);
+        }
+        if (left.isEmpty()) {
+            Capture done = this.capture;
+            this.capture = null;
+            done.done.complete(new BoardSnapshot(done.copy, done.sequence, done.time, done.segment));
+        }
+        return true;
+    }
+
+    /**
+     * Broadcasts the current tick's changes.  The whole board clients get
+     * them all in one batch, the clients with a viewport one batch for
+     * each watched chunk that changed.
+     */
+    private void flushTick() {
+        long start = System.nanoTime();
+        if (!this.subscribers.isEmpty()) {
+            ArrayList<PlaceTile> tiles = new ArrayList<>(this.pending.values());
+            send(encode(new PlaceRequest<>(PlaceRequest.RequestType.TILE_BATCH, tiles)), this.subscribers);
+        }
+        if (!this.viewports.isEmpty()) {
+            Map<Integer, ArrayList<PlaceTile>> byChunk = new LinkedHashMap<>();
+            for (PlaceTile tile : this.pending.values()) {
+                int chunk = this.board.getChunk(tile.getRow(), tile.getCol());
+                if (this.watchers.get(chunk) != null) {
+                    byChunk.computeIfAbsent(chunk, c -> new ArrayList<>()).add(tile);
+                }
+            }
+            for (Map.Entry<Integer, ArrayList<PlaceTile>> tiles : byChunk.entrySet()) {
+                send(encode(new PlaceRequest<>(PlaceRequest.RequestType.TILE_BATCH, tiles.getValue())),
+                        this.watchers.get(tiles.getKey()));
+            }
+        }
+        this.pending.clear();
+        long sent = System.nanoTime();
+        this.metrics.fanout(sent - start);
+        for (long[] traced : this.tracedInTick) {
+            this.tracer.record(Tracer.Stage.SERVER_FANOUT, sent - traced[0], traced[1]);
+        }
+        this.tracedInTick.clear();
+    }
+
+    /**
+     * Tells every client with a viewport which chunks changed since the
+     * last summary.
+     */
+    private void sendSummary() {
+        ArrayList<Integer> chunks = new ArrayList<>(this.dirty.cardinality());
+        for (int chunk = this.dirty.nextSetBit(0); chunk >= 0; chunk = this.dirty.nextSetBit(chunk + 1)) {
+            chunks.add(chunk);
+        }
+        this.dirty.clear();
+        send(encode(new PlaceRequest<>(PlaceRequest.RequestType.CHUNK_SUMMARY, chunks)), this.viewports.keySet());
+    }
+
+    /**
+     * Announces a new username to everyone, then sends the joining
+     * client the board, or the changes it missed, and subscribes it to
+     * broadcasts.
+     *
+     * @param client the client
+     * @param resume the last change the client saw, or 0
+     * @param wholeBoard whether to send the whole board in one frame with its metadata
+     */
+    private void applyJoin(ClientConnection client, long resume, boolean wholeBoard) {
+        if (!this.held.isEmpty()) {
+            //The login's board or missed changes include the held ones.
+            flushJournal();
+        }
+        announceOwner(client.getUserName());
+        if (canResume(resume)) {
+            resume(client, resume);
+            subscribe(client);
+            return;
+        }
+        if (wholeBoard) {
+            //Only relays ask for this, so the frame is not kept.
+            try {
+                client.sendFrame(PlaceExchange.encodeBoard(PlaceRequest.RequestType.LOGIN_SUCCESS,
+                        this.board, true).asReadOnlyBuffer());
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                client.close();
+                return;
+            }
+            subscribe(client);
+            return;
+        }
+        if (this.loginFrame == null || this.loginOwners != this.board.getOwnerCount()) {
+            try {
+                if (this.streamLogins) {
+                    this.loginFrame = PlaceExchange.encodeChunkedBoard(PlaceRequest.RequestType.LOGIN_SUCCESS,
+                            this.board, this.snapshotMetadata).asReadOnlyBuffer();
+                } else {
+                    this.loginFrame = PlaceExchange.encodeBoard(PlaceRequest.RequestType.LOGIN_SUCCESS,
+                            this.board, this.snapshotMetadata).asReadOnlyBuffer();
+                }
+                this.loginOwners = this.board.getOwnerCount();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                client.close();
+                return;
+            }
+        }
+        client.sendFrame(this.loginFrame);
+        subscribe(client);
+        if (this.streamLogins) {
+            BitSet chunks = new BitSet();
+            chunks.set(0, this.board.getChunkCount());
+            this.streams.put(client, chunks);
+        }
+    }
+
+    /**
+     * Tells everyone the name behind a new owner id, the first time a
+     * username is seen.
+     *
+     * @param userName the username
+     */
+    private void announceOwner(String userName) {
+        int owners = this.board.getOwnerCount();
+        this.board.getOwnerId(userName);
+        if (this.board.getOwnerCount() > owners) {
+            ByteBuffer frame = encode(new PlaceRequest<>(PlaceRequest.RequestType.OWNER, userName));
+            send(frame, this.subscribers);
+            send(frame, this.viewports.keySet());
+        }
+    }
+
+    /**
+     * Tells whether every change after one is still kept.
+     *
+     * @param resume the last change a client saw
+     * @return can the client be sent just the changes since?
+     */
+    private boolean canResume(long resume) {
+        return this.recent != null && resume > 0 && resume >= this.recentFrom && resume <= this.sequence
+                && this.sequence - resume <= this.recent.length;
+    }
+
+    /**
+     * Sends a reconnecting client the names of the owners in the changes
+     * it missed, then the changes in one TILE_BATCH.
+     *
+     * @param client the client
+     * @param resume the last change the client saw
+     */
+    private void resume(ClientConnection client, long resume) {
+        ArrayList<PlaceTile> missed = new ArrayList<>((int) (this.sequence - resume));
+        Set<String> owners = new LinkedHashSet<>();
+        owners.add(client.getUserName());
+        for (long s = resume + 1; s <= this.sequence; s++) {
+            PlaceTile tile = this.recent[(int) (s % this.recent.length)];
+            missed.add(tile);
+            owners.add(tile.getOwner());
+        }
+        List<ClientConnection> to = Collections.singletonList(client);
+        for (String owner : owners) {
+            send(encode(new PlaceRequest<>(PlaceRequest.RequestType.OWNER, owner)), to);
+        }
+        send(encode(new PlaceRequest<>(PlaceRequest.RequestType.TILE_BATCH, missed)), to);
+    }
+
+    /**
+     * Stops broadcasting to a client.
+     *
+     * @param client the client
+     */
+    private void applyLeave(ClientConnection client) {
+        this.streams.remove(client);
+        if (!unwatch(client)) {
+            unsubscribe(client);
+        }
+    }
+
+    /**
+     * Moves a client to a new viewport and streams it the chunks that came
+     * into view.  Chunks still on their way from an earlier stream that
+     * are out of view now are not sent.
+     *
+     * @param client the client
+     * @param viewport the new viewport
+     */
+    private void applyViewport(ClientConnection client, PlaceViewport viewport) {
+        BitSet old = this.viewports.get(client);
+        if (old == null && !this.positions.containsKey(client)) {
+            return;
+        }
+        BitSet now = viewport.isWholeBoard() ? null : chunksOf(viewport);
+        BitSet added = new BitSet();
+        if (old != null) {
+            if (now == null) {
+                added.set(0, this.board.getChunkCount());
+            } else {
+                added.or(now);
+            }
+            added.andNot(old);
+        }
+        if (!unwatch(client)) {
+            unsubscribe(client);
+        }
+        if (now == null) {
+            subscribe(client);
+        } else {
+            watch(client, now);
+        }
+        BitSet stream = this.streams.remove(client);
+        if (stream == null) {
+            stream = added;
+        } else {
+            if (now != null) {
+                stream.and(now);
+            }
+            stream.or(added);
+        }
+        if (!stream.isEmpty()) {
+            this.streams.put(client, stream);
+        }
+    }
+
+    /**
+     * Adds a client to the whole board subscribers.
+     *
+     * @param client the client
+     */
+    private void subscribe(ClientConnection client) {
+        this.positions.put(client, this.subscribers.size());
+        this.subscribers.add(client);
+    }
+
+    /**
+     * Removes a client from the whole board subscribers, moving the last
+     * subscriber into its place.
+     *
+     * @param client the client
+     */
+    private void unsubscribe(ClientConnection client) {
+        Integer position = this.positions.remove(client);
+        if (position == null) {
+            return;
+        }
+        ClientConnection last = this.subscribers.remove(this.subscribers.size() - 1);
+        if (last != client) {
+            this.subscribers.set(position, last);
+            this.positions.put(last, position);
+        }
+    }
+
+    /**
+     * Adds a client to the watchers of some chunks.
+     *
+     * @param client the client
+     * @param chunks the chunks in its viewport
+     */
+    private void watch(ClientConnection client, BitSet chunks) {
+        this.viewports.put(client, chunks);
+        for (int chunk = chunks.nextSetBit(0); chunk >= 0; chunk = chunks.nextSetBit(chunk + 1)) {
+            if (this.watchers.get(chunk) == null) {
+                this.watchers.set(chunk, new ArrayList<>());
+            }
+            this.watchers.get(chunk).add(client);
+        }
+    }
+
+    /**
+     * Removes a client from the watchers of the chunks in its viewport.
+     *
+     * @param client the client
+     * @return whether the client had a viewport
+     */
+    private boolean unwatch(ClientConnection client) {
+        BitSet chunks = this.viewports.remove(client);
+        if (chunks == null) {
+            return false;
+        }
+        for (int chunk = chunks.nextSetBit(0); chunk >= 0; chunk = chunks.nextSetBit(chunk + 1)) {
+            List<ClientConnection> watching = this.watchers.get(chunk);
+            watching.remove(client);
+            if (watching.isEmpty()) {
+                this.watchers.set(chunk, null);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the chunks a viewport covers, clipped to the board.
+     *
+     * @param viewport the viewport
+     * @return the chunk numbers
+     */
+    private BitSet chunksOf(PlaceViewport viewport) {
+        BitSet chunks = new BitSet();
+        int size = PlaceBoard.CHUNK_SIZE;
+        long top = Math.max(0, viewport.getRow());
+        long left = Math.max(0, viewport.getCol());
+        long bottom = Math.min(this.board.DIM, (long) viewport.getRow() + viewport.getRows());
+        long right = Math.min(this.board.DIM, (long) viewport.getCol() + viewport.getCols());
+        for (long row = top / size; row * size < bottom; row++) {
+            for (long col = left / size; col * size < right; col++) {
+                chunks.set(this.board.getChunk((int) row * size, (int) col * size));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Sends the streaming clients their next chunks, as long as they have
+     * room in their queues, and forgets the ones that have all they asked for.
+     *
+     * @return whether any chunk was sent
+     */
+    private boolean streamChunks() {
+        boolean sent = false;
+        Iterator<Map.Entry<ClientConnection, BitSet>> it = this.streams.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<ClientConnection, BitSet> stream = it.next();
+            ClientConnection client = stream.getKey();
+            BitSet chunks = stream.getValue();
+            try {
+                int chunk = chunks.nextSetBit(0);
+                while (chunk >= 0 && client.getBacklog() < STREAM_WINDOW) {
+                    if (this.chunkFrames[chunk] == null) {
+                        this.chunkFrames[chunk] = PlaceExchange.encodeChunk(this.board, chunk,
+                                this.snapshotMetadata).asReadOnlyBuffer();
+                    }
+                    client.sendFrame(this.chunkFrames[chunk]);
+                    chunks.clear(chunk);
+                    chunk = chunks.nextSetBit(chunk + 1);
+                    sent = true;
+                }
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                client.close();
+                chunks.clear();
+            }
+            if (chunks.isEmpty()) {
+                it.remove();
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Encodes a request once, to be shared by every client it is sent to.
+     *
+     * @param req the request
+     * @return the read-only frame, or null if it could not be encoded
+     */
+    private ByteBuffer encode(PlaceRequest<?> req) {
+        try {
+            return PlaceExchange.encode(req, this.board).asReadOnlyBuffer();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Queues a frame for some clients.
+     *
+     * @param frame the frame, or null to send nothing
+     * @param clients the clients, or null for none
+     */
+    private void send(ByteBuffer frame, Collection<ClientConnection> clients) {
+        if (frame == null || clients == null) {
+            return;
+        }
+        for (ClientConnection c : clients) {
+            c.sendFrame(frame);
+        }
+    }
+
+    /**
+     * Stops the sequencer thread.
+     */
+    public void close() {
+        this.running = false;
+        if (this.thread != null) {
+            LockSupport.unpark(this.thread);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package place.server;
+
+import place.PlaceBoard;
+
+/**
+ * A copy of the board as of one applied change, along with where in the
+ * journal the changes after it start.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class BoardSnapshot {
+    private final PlaceBoard board;
+    private final long sequence;
+    private final long time;
+    private final int segment;
+
+    /**
+     * Creates a snapshot.
+     *
+     * @param board the copy of the board
+     * @param sequence the sequence number of the last change in the copy
+     * @param time the time of the last change in the copy
+     * @param segment the first journal segment with changes after the copy, -1 without a journal
+     */
+    public BoardSnapshot(PlaceBoard board, long sequence, long time, int segment) {
+        this.board = board;
+        this.sequence = sequence;
+        this.time = time;
+        this.segment = segment;
+    }
+
+    /**
+     * @return the copy of the board
+     */
+    public PlaceBoard getBoard() { return this.board; }
+
+    /**
+     * @return the sequence number of the last change in the copy
+     */
+    public long getSequence() { return this.sequence; }
+
+    /**
+     * @return the time of the last change in the copy
+     */
+    public long getTime() { return this.time; }
+
+    /**
+     * @return the first journal segment with changes after the copy, -1 without a journal
+     */
+    public int getSegment() { return this.segment; }
+}
@@ -0,0 +1,31 @@
+package place.server;
+
+import place.PlaceTile;
+
+/**
+ * Decides which tile changes a server in a cluster applies itself, and
+ * hears about the ones it applied so it can pass them on to the other
+ * servers.  Both methods are called on the {@link BoardSequencer} thread,
+ * in the order the changes are applied, and must not block.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public interface ChangeRouter {
+    /**
+     * Called before a change made by a client of this server is applied.
+     *
+     * @param tile the change
+     * @return true to apply it here, false if it was sent to another server
+     */
+    boolean route(PlaceTile tile);
+
+    /**
+     * Called after this server applied a change, with its time and
+     * sequence number set.  Under the ALWAYS fsync policy the change may
+     * not be on disk yet, anything sent on should go through
+     * {@link BoardSequencer#afterDurable(Runnable)}.
+     *
+     * @param tile the change
+     */
+    void applied(PlaceTile tile);
+}
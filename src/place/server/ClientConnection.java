@@ -0,0 +1,71 @@
+package place.server;
+
+import place.network.PlaceRequest;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * A client connected to the PlaceServer.  The threaded server gives every
+ * connection its own {@link PlaceServerClient} thread, the non-blocking
+ * server shares a few {@link NioEventLoop}s between all connections.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public interface ClientConnection extends Closeable {
+    /**
+     * Start handling requests from the client once it has logged in.
+     */
+    void start();
+
+    /**
+     * Sends a request to the client.
+     *
+     * @param req the request
+     */
+    void sendRequest(PlaceRequest<?> req);
+
+    /**
+     * Sends an already encoded frame to the client.  Broadcasts encode a
+     * request once and hand the same read-only frame to every client, so
+     * implementations must not move the frame's position or change it.
+     *
+     * @param frame the frame, as made by {@link place.network.PlaceExchange}
+     */
+    void sendFrame(ByteBuffer frame);
+
+    /**
+     * Gets the number of frames queued for the client but not yet written.
+     * A client that keeps a deep backlog is lagging behind the board.
+     *
+     * @return the queue depth
+     */
+    int getBacklog();
+
+    /**
+     * Sets the username for the client.
+     *
+     * @param userName the username
+     */
+    void setUserName(String userName);
+
+    /**
+     * Gets the username of the client.
+     *
+     * @return username
+     */
+    String getUserName();
+
+    /**
+     * Gets the ip the client connected from.
+     *
+     * @return ip string
+     */
+    String getIp();
+
+    /**
+     * Closes the connection to the client.
+     */
+    @Override
+    void close();
+}
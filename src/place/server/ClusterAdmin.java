@@ -0,0 +1,61 @@
+package place.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Sends a command to a node of a cluster over its bus port and prints the
+ * answer.  It is run on the command line as:
+ *
+ * $ java place.server.ClusterAdmin host:busport KEY routes
+ * $ java place.server.ClusterAdmin host:busport KEY move SHARD NODE
+ * $ java place.server.ClusterAdmin host:busport KEY rebalance
+ *
+ * KEY is the cluster key the nodes were started with.  routes prints the
+ * node's routing table.  move moves a shard to a node, the node asked
+ * passes the move on to the shard's owner if it is not the owner itself.
+ * rebalance moves shards from the nodes with the most to the nodes with
+ * the fewest until every node has the same number, give or take one.
+ * Moves to a node that the owner has no link to are refused.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class ClusterAdmin {
+    /** The usage message printed for bad arguments */
+    public static final String USAGE =
+            "Usage: java place.server.ClusterAdmin host:busport KEY routes | move SHARD NODE | rebalance";
+
+    /**
+     * Sends the command.
+     *
+     * @param args the node's bus address, the cluster key and the command
+     */
+    public static void main(String[] args) {
+        int colon = args.length < 3 ? -1 : args[0].lastIndexOf(':');
+        if (colon < 0) {
+            System.out.println(USAGE);
+            return;
+        }
+        String command = String.join(" ", Arrays.copyOfRange(args, 2, args.length));
+        try (Socket socket = new Socket(args[0].substring(0, colon), Integer.parseInt(args[0].substring(colon + 1)))) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeByte(ClusterNode.HELLO);
+            out.writeInt(ClusterNode.ADMIN);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeUTF(args[1]);
+            out.writeByte(ClusterNode.COMMAND);
+            out.writeUTF(command);
+            out.flush();
+            System.out.println(new DataInputStream(socket.getInputStream()).readUTF().trim());
+        } catch (NumberFormatException e) {
+            System.out.println(USAGE);
+        } catch (IOException e) {
+            System.out.println("Could not reach " + args[0] + ": " + e.getMessage());
+        }
+    }
+}
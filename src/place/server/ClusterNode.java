@@ -0,0 +1,674 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One server of a cluster that splits the board into regions, the shards
+ * of a {@link RoutingTable}.  Every node keeps the whole board and serves
+ * its own clients as usual, but only sequences the changes to the shards
+ * it owns.  A client's change to another node's shard is forwarded to
+ * that node, which applies it and sends it to every other node over the
+ * bus, and each of them applies it and broadcasts it to its clients.  So
+ * clients may log in to any node and see the whole board.
+ *
+ * The nodes are listed in the same order on every node, a node's number
+ * is its place in the list.  Every node listens for its peers on its bus
+ * address, and only on that address, and opens a {@link PeerLink} to each
+ * of them.  Peers and admins say hello with the cluster key, a connection
+ * with any other key is closed before anything it sends is read.  When a
+ * link connects the node claims its shards, sending the peer what is in
+ * them, so a node that starts late or loses a link catches up.
+ *
+ * Moving a shard (see {@link ClusterAdmin}) is done by the node that owns
+ * it: it stops applying changes to the shard, bumps the shard's epoch and
+ * sends every node a handoff with what is in the shard.  Each change sent
+ * over the bus carries the epoch it was applied in, and a node only
+ * applies changes from the shard's current epoch.  Changes and handoffs
+ * from a later epoch, which arrive when the new owner's link is faster
+ * than the old owner's, are held until the handoff before them arrives,
+ * so every node applies a shard's changes in the same order.
+ *
+ * All of the routing happens on the sequencer thread, through the
+ * {@link ChangeRouter} calls and tasks the bus readers run on it, so the
+ * table is never locked and a change is never applied by a node after it
+ * gave its shard away.
+ *
+ * A node that restarts starts from the first table and learns where the
+ * shards went from its peers' claims.  Usernames are only unique on each
+ * node.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class ClusterNode implements ChangeRouter, Closeable {
+    /** The node number admin connections say hello with */
+    static final int ADMIN = -1;
+    static final byte HELLO = 1;
+    static final byte CHANGE = 2;
+    static final byte FORWARD = 3;
+    static final byte CLAIM = 4;
+    static final byte HANDOFF = 5;
+    static final byte MOVE = 6;
+    static final byte COMMAND = 7;
+    static final byte PING = 8;
+    /** How many times a forwarded change may be passed on while the nodes disagree on its owner */
+    private static final int MAX_HOPS = 4;
+    /** The most messages held for a later epoch */
+    private static final int MAX_HELD = 65536;
+    private static final int COMMAND_TIMEOUT_SECONDS = 5;
+
+    /**
+     * A message read from a peer.
+     */
+    private static class Message {
+        private final byte type;
+        private final int from;
+        private int shard;
+        private int owner;
+        private int epoch;
+        private int hops;
+        private PlaceTile tile;
+        private List<PlaceTile> tiles;
+
+        private Message(byte type, int from) {
+            this.type = type;
+            this.from = from;
+        }
+
+        /**
+         * Gets the epoch the sender owned the shard in when it sent this.
+         *
+         * @return the epoch
+         */
+        private int tenure() {
+            return this.type == HANDOFF ? this.epoch - 1 : this.epoch;
+        }
+    }
+
+    private final int id;
+    private final List<InetSocketAddress> nodes;
+    private final int side;
+    private final String key;
+    private final PlaceBoard board;
+    private final BoardSequencer sequencer;
+    /** Only touched by the sequencer thread, like everything below it */
+    private final RoutingTable routes;
+    /** Whether this node's handoff made each shard's entry, so it resends it on sync */
+    private final boolean[] handedOff;
+    /** Messages from a later epoch of a shard, by shard */
+    private final Map<Integer, ArrayDeque<Message>> held;
+    private int heldCount;
+    private final PeerLink[] links;
+    private final ServerSocket bus;
+    private final AtomicInteger readers;
+
+    /**
+     * Opens the bus port of a node.
+     *
+     * @param options the server options, with the cluster set
+     * @param board the board
+     * @param sequencer the sequencer that changes the board, not started yet
+     * @throws IOException if the bus port can't be opened
+     */
+    public ClusterNode(ServerOptions options, PlaceBoard board, BoardSequencer sequencer) throws IOException {
+        this.id = options.getNode();
+        this.nodes = options.getCluster();
+        this.side = options.getShards();
+        this.key = options.getClusterKey();
+        this.board = board;
+        this.sequencer = sequencer;
+        this.routes = new RoutingTable(board.DIM, this.side, this.nodes.size());
+        this.handedOff = new boolean[this.routes.getShardCount()];
+        this.held = new HashMap<>();
+        this.links = new PeerLink[this.nodes.size()];
+        this.readers = new AtomicInteger();
+        InetSocketAddress address = this.nodes.get(this.id);
+        this.bus = new ServerSocket(address.getPort(), 50, InetAddress.getByName(address.getHostString()));
+        System.out.println("Cluster node " + this.id + " of " + this.nodes.size() + " on bus " + this.bus);
+    }
+
+    /**
+     * Routes the sequencer's changes through this node, then starts
+     * listening for peers and linking to them.  Must be called before the
+     * sequencer thread starts.
+     */
+    public void start() {
+        this.sequencer.setRouter(this);
+        for (int node = 0; node < this.links.length; node++) {
+            if (node != this.id) {
+                InetSocketAddress address = this.nodes.get(node);
+                this.links[node] = new PeerLink(this, node,
+                        new InetSocketAddress(address.getHostString(), address.getPort()));
+                daemon(this.links[node], "place-link-" + node).start();
+            }
+        }
+        daemon(this::accept, "place-bus").start();
+    }
+
+    /**
+     * Makes a daemon thread.
+     */
+    private static Thread daemon(Runnable task, String name) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Accepts connections from peers and admins until closed.
+     */
+    private void accept() {
+        while (!this.bus.isClosed()) {
+            try {
+                Socket socket = this.bus.accept();
+                daemon(() -> read(socket), "place-bus-" + this.readers.incrementAndGet()).start();
+            } catch (IOException e) {
+                if (!this.bus.isClosed()) {
+                    System.out.println("Bus: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a peer's messages and hands them to the sequencer thread, or
+     * answers an admin's command.
+     *
+     * @param socket the connection
+     */
+    private void read(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+            if (in.readByte() != HELLO) {
+                throw new IOException("No hello from " + s.getRemoteSocketAddress());
+            }
+            int from = in.readInt();
+            int nodes = in.readInt();
+            int side = in.readInt();
+            int dim = in.readInt();
+            if (!this.key.equals(in.readUTF())) {
+                throw new IOException("Wrong cluster key from " + s.getRemoteSocketAddress());
+            }
+            if (from == ADMIN) {
+                if (in.readByte() == COMMAND) {
+                    DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                    out.writeUTF(command(in.readUTF()));
+                    out.flush();
+                }
+                return;
+            }
+            if (from < 0 || from >= this.links.length || from == this.id || nodes != this.links.length
+                    || side != this.side || dim != this.board.DIM) {
+                throw new IOException("Node " + from + " of " + nodes + " with " + side + " shards a side on a "
+                        + dim + " board does not belong in this cluster");
+            }
+            while (true) {
+                Message message = readMessage(in, from);
+                if (message.type != PING) {
+                    this.sequencer.execute(() -> receive(message));
+                }
+            }
+        } catch (EOFException e) {
+            //The peer went away, it reconnects when it is back.
+        } catch (IOException e) {
+            System.out.println("Bus: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads one message.
+     *
+     * @param in the peer's stream
+     * @param from the peer
+     * @return the message
+     * @throws IOException if it can't be read
+     */
+    private Message readMessage(DataInputStream in, int from) throws IOException {
+        Message message = new Message(in.readByte(), from);
+        switch (message.type) {
+            case CHANGE:
+                message.epoch = in.readInt();
+                message.tile = readTile(in);
+                break;
+            case FORWARD:
+                message.hops = in.readInt();
+                message.tile = readTile(in);
+                break;
+            case CLAIM:
+            case HANDOFF:
+                message.shard = readShard(in);
+                message.owner = in.readInt();
+                message.epoch = in.readInt();
+                int count = in.readInt();
+                message.tiles = new ArrayList<>(Math.min(count, 1 << 16));
+                for (int i = 0; i < count; i++) {
+                    message.tiles.add(readTile(in));
+                }
+                break;
+            case MOVE:
+                message.shard = readShard(in);
+                message.owner = in.readInt();
+                break;
+            case PING:
+                break;
+            default:
+                throw new IOException("Unknown bus message " + message.type + " from node " + from);
+        }
+        if ((message.type == CLAIM || message.type == HANDOFF || message.type == MOVE)
+                && (message.owner < 0 || message.owner >= this.links.length)) {
+            throw new IOException("Unknown node " + message.owner + " from node " + from);
+        }
+        return message;
+    }
+
+    private int readShard(DataInputStream in) throws IOException {
+        int shard = in.readInt();
+        if (shard < 0 || shard >= this.routes.getShardCount()) {
+            throw new IOException("Unknown shard " + shard);
+        }
+        return shard;
+    }
+
+    private PlaceTile readTile(DataInputStream in) throws IOException {
+        int row = in.readInt();
+        int col = in.readInt();
+        int color = in.readUnsignedByte();
+        String owner = in.readUTF();
+        long time = in.readLong();
+        if (row < 0 || row >= this.board.DIM || col < 0 || col >= this.board.DIM
+                || color >= PlaceColor.TOTAL_COLORS) {
+            throw new IOException("Bad tile " + row + "," + col + " color " + color);
+        }
+        return new PlaceTile(row, col, owner, PlaceColor.getPlaceColor(color), time);
+    }
+
+    private static void writeTile(DataOutputStream out, PlaceTile tile) throws IOException {
+        out.writeInt(tile.getRow());
+        out.writeInt(tile.getCol());
+        out.writeByte(tile.getColor().getNumber());
+        out.writeUTF(tile.getOwner() == null ? "" : tile.getOwner());
+        out.writeLong(tile.getTime());
+    }
+
+    /**
+     * Encodes the hello a link starts with.
+     *
+     * @return the message
+     */
+    byte[] hello() {
+        return encode(out -> {
+            out.writeByte(HELLO);
+            out.writeInt(this.id);
+            out.writeInt(this.links.length);
+            out.writeInt(this.side);
+            out.writeInt(this.board.DIM);
+            out.writeUTF(this.key);
+        });
+    }
+
+    /**
+     * Writes a message.
+     */
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Encodes a message.
+     *
+     * @param writer writes it
+     * @return the message
+     */
+    private static byte[] encode(Writer writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writer.write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes a claim or handoff with what is in the shard now.
+     *
+     * @param type CLAIM or HANDOFF
+     * @param shard the shard
+     * @return the message
+     */
+    private byte[] encodeShard(byte type, int shard) {
+        List<PlaceTile> tiles = new ArrayList<>();
+        for (int row = this.routes.firstRow(shard); row < this.routes.endRow(shard); row++) {
+            for (int col = this.routes.firstCol(shard); col < this.routes.endCol(shard); col++) {
+                PlaceTile tile = this.board.getTile(row, col);
+                if (tile.getOwner() != null && !tile.getOwner().isEmpty()) {
+                    tiles.add(tile);
+                }
+            }
+        }
+        return encode(out -> {
+            out.writeByte(type);
+            out.writeInt(shard);
+            out.writeInt(this.routes.getOwner(shard));
+            out.writeInt(this.routes.getEpoch(shard));
+            out.writeInt(tiles.size());
+            for (PlaceTile tile : tiles) {
+                writeTile(out, tile);
+            }
+        });
+    }
+
+    /**
+     * Applies a client's change here if this node owns its shard, or
+     * forwards it to the owner.
+     *
+     * @param tile the change
+     * @return whether to apply it here
+     */
+    @Override
+    public boolean route(PlaceTile tile) {
+        int owner = this.routes.getOwner(this.routes.shardOf(tile.getRow(), tile.getCol()));
+        if (owner == this.id) {
+            return true;
+        }
+        forward(owner, tile, 1);
+        return false;
+    }
+
+    /**
+     * Sends a change this node applied to every peer.
+     *
+     * @param tile the change
+     */
+    @Override
+    public void applied(PlaceTile tile) {
+        int epoch = this.routes.getEpoch(this.routes.shardOf(tile.getRow(), tile.getCol()));
+        byte[] message = encode(out -> {
+            out.writeByte(CHANGE);
+            out.writeInt(epoch);
+            writeTile(out, tile);
+        });
+        //The epoch is the one the change was applied in, even if the shard moves before it is sent.
+        this.sequencer.afterDurable(() -> {
+            for (PeerLink link : this.links) {
+                if (link != null) {
+                    link.send(message);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a change to the node that owns its shard.  If that node is not
+     * linked the change is lost, like one sent to a server that is down.
+     *
+     * @param owner the node
+     * @param tile the change
+     * @param hops how many nodes have passed it on so far
+     */
+    private void forward(int owner, PlaceTile tile, int hops) {
+        this.links[owner].send(encode(out -> {
+            out.writeByte(FORWARD);
+            out.writeInt(hops);
+            writeTile(out, tile);
+        }));
+    }
+
+    /**
+     * Queues a sync for a link that just connected: a claim for each
+     * shard this node owns, and the handoff of each shard it was the last
+     * to move.
+     *
+     * @param link the link
+     */
+    void sync(PeerLink link) {
+        this.sequencer.execute(() -> this.sequencer.afterDurable(() -> {
+            for (int shard = 0; shard < this.routes.getShardCount(); shard++) {
+                if (this.routes.getOwner(shard) == this.id) {
+                    link.sendSync(encodeShard(CLAIM, shard));
+                } else if (this.handedOff[shard]) {
+                    link.sendSync(encodeShard(HANDOFF, shard));
+                }
+            }
+            link.synced();
+        }));
+    }
+
+    /**
+     * Handles a message from a peer on the sequencer thread.
+     *
+     * @param message the message
+     */
+    private void receive(Message message) {
+        switch (message.type) {
+            case CHANGE:
+                gate(this.routes.shardOf(message.tile.getRow(), message.tile.getCol()), message);
+                break;
+            case HANDOFF:
+                gate(message.shard, message);
+                break;
+            case CLAIM:
+                if (message.epoch >= this.routes.getEpoch(message.shard)) {
+                    take(message);
+                    release(message.shard);
+                }
+                break;
+            case FORWARD:
+                int owner = this.routes.getOwner(this.routes.shardOf(message.tile.getRow(), message.tile.getCol()));
+                if (owner == this.id) {
+                    this.sequencer.applyRemote(message.tile, false);
+                } else if (message.hops < MAX_HOPS) {
+                    forward(owner, message.tile, message.hops + 1);
+                }
+                break;
+            case MOVE:
+                if (this.routes.getOwner(message.shard) == this.id) {
+                    System.out.println(move(message.shard, message.owner));
+                }
+                break;
+        }
+    }
+
+    /**
+     * Handles a change or handoff now if it is from the shard's current
+     * epoch, holds it if it is from a later one and drops it if it is
+     * from an earlier one.
+     *
+     * @param shard the shard
+     * @param message the message
+     */
+    private void gate(int shard, Message message) {
+        int epoch = this.routes.getEpoch(shard);
+        if (message.tenure() == epoch) {
+            if (message.type == CHANGE) {
+                this.sequencer.applyRemote(message.tile, true);
+            } else {
+                take(message);
+                release(shard);
+            }
+        } else if (message.tenure() > epoch) {
+            if (this.heldCount >= MAX_HELD) {
+                System.out.println("Too many bus messages held, dropping one from node " + message.from);
+                return;
+            }
+            this.held.computeIfAbsent(shard, s -> new ArrayDeque<>()).add(message);
+            this.heldCount++;
+        }
+    }
+
+    /**
+     * Moves a shard as a claim or handoff says, and applies what is in it.
+     *
+     * @param message the claim or handoff
+     */
+    private void take(Message message) {
+        this.routes.set(message.shard, message.owner, message.epoch);
+        this.handedOff[message.shard] = false;
+        for (PlaceTile tile : message.tiles) {
+            PlaceTile now = this.board.getTile(tile.getRow(), tile.getCol());
+            if (now.getColor() != tile.getColor() || now.getTime() != tile.getTime()
+                    || !now.getOwner().equals(tile.getOwner())) {
+                this.sequencer.applyRemote(tile, true);
+            }
+        }
+    }
+
+    /**
+     * Handles the held messages of a shard that are from its epoch now,
+     * in the order they arrived, and drops the ones from earlier epochs.
+     *
+     * @param shard the shard
+     */
+    private void release(int shard) {
+        ArrayDeque<Message> waiting = this.held.get(shard);
+        boolean again = waiting != null;
+        while (again) {
+            again = false;
+            Iterator<Message> it = waiting.iterator();
+            while (it.hasNext()) {
+                Message message = it.next();
+                int epoch = this.routes.getEpoch(shard);
+                if (message.tenure() > epoch) {
+                    continue;
+                }
+                it.remove();
+                this.heldCount--;
+                if (message.tenure() < epoch) {
+                    continue;
+                }
+                if (message.type == CHANGE) {
+                    this.sequencer.applyRemote(message.tile, true);
+                } else {
+                    take(message);
+                    again = true;
+                    break;
+                }
+            }
+        }
+        if (waiting != null && waiting.isEmpty()) {
+            this.held.remove(shard);
+        }
+    }
+
+    /**
+     * Moves a shard to another node.  The owner does the move, any other
+     * node asks the owner to.  Runs on the sequencer thread.
+     *
+     * @param shard the shard
+     * @param node the node to move it to
+     * @return what was done
+     */
+    private String move(int shard, int node) {
+        if (shard < 0 || shard >= this.routes.getShardCount() || node < 0 || node >= this.links.length) {
+            return "No shard " + shard + " or node " + node;
+        }
+        int owner = this.routes.getOwner(shard);
+        if (owner == node) {
+            return "Shard " + shard + " is already on node " + node;
+        }
+        if (owner != this.id) {
+            boolean sent = this.links[owner].send(encode(out -> {
+                out.writeByte(MOVE);
+                out.writeInt(shard);
+                out.writeInt(node);
+            }));
+            return sent ? "Asked node " + owner + " to move shard " + shard + " to node " + node
+                    : "Node " + owner + ", which owns shard " + shard + ", is not linked";
+        }
+        if (!this.links[node].isLive()) {
+            return "Node " + node + " is not linked";
+        }
+        this.routes.set(shard, node, this.routes.getEpoch(shard) + 1);
+        this.handedOff[shard] = true;
+        byte[] message = encodeShard(HANDOFF, shard);
+        //After the changes of the old epoch, which peers drop once they have the handoff.
+        this.sequencer.afterDurable(() -> {
+            for (PeerLink link : this.links) {
+                if (link != null) {
+                    link.send(message);
+                }
+            }
+        });
+        return "Moved shard " + shard + " to node " + node;
+    }
+
+    /**
+     * Runs an admin command on the sequencer thread.  The commands are
+     * "routes", "move SHARD NODE" and "rebalance".
+     *
+     * @param command the command
+     * @return the answer
+     */
+    private String command(String command) {
+        String[] words = command.trim().split("\\s+");
+        CompletableFuture<String> answer = new CompletableFuture<>();
+        this.sequencer.execute(() -> {
+            try {
+                if (words[0].equals("routes")) {
+                    answer.complete(this.routes.toString());
+                } else if (words[0].equals("move") && words.length == 3) {
+                    answer.complete(move(Integer.parseInt(words[1]), Integer.parseInt(words[2])));
+                } else if (words[0].equals("rebalance")) {
+                    StringBuilder done = new StringBuilder();
+                    for (int[] step : this.routes.plan()) {
+                        done.append(move(step[0], step[1])).append('\n');
+                    }
+                    answer.complete(done.length() == 0 ? "The shards are already even" : done.toString());
+                } else {
+                    answer.complete("Unknown command " + command + "\n" + ClusterAdmin.USAGE);
+                }
+            } catch (NumberFormatException e) {
+                answer.complete("Bad number " + e.getMessage());
+            }
+        });
+        try {
+            return answer.get(COMMAND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Interrupted";
+        } catch (ExecutionException | TimeoutException e) {
+            return "No answer: " + e;
+        }
+    }
+
+    /**
+     * Stops listening and closes the links.
+     */
+    @Override
+    public void close() {
+        try {
+            this.bus.close();
+        } catch (IOException e) {
+            //squash
+        }
+        for (PeerLink link : this.links) {
+            if (link != null) {
+                link.close();
+            }
+        }
+    }
+}
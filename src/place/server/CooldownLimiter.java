@@ -0,0 +1,67 @@
+package place.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often each user may change a tile.  Every key (a username or
+ * an ip) may make rate changes per second on average, with bursts of up to
+ * burst changes after it has been quiet.
+ *
+ * Each key keeps the time at which its next change is due, and a change is
+ * allowed when that time is no more than a burst ahead of now.  Checking and
+ * updating it is a single compare and set, so a check never blocks or
+ * sleeps, whatever the other keys are doing.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class CooldownLimiter {
+    /** The time between changes, in nanoseconds */
+    private final long interval;
+    /** How far ahead of now the due time may get */
+    private final long tolerance;
+    /** The time the next change of each key is due, in nanoseconds */
+    private final ConcurrentHashMap<String, AtomicLong> due;
+
+    /**
+     * Creates a limiter.
+     *
+     * @param rate changes per second allowed for each key
+     * @param burst changes allowed at once after a quiet period
+     */
+    public CooldownLimiter(double rate, int burst) {
+        this.interval = (long) (1_000_000_000L / rate);
+        this.tolerance = this.interval * (burst - 1);
+        this.due = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Takes one change for a key if the key is not cooling down.
+     *
+     * @param key the username or ip making the change
+     * @return 0 if the change is allowed, otherwise the milliseconds until it would be
+     */
+    public long tryAcquire(String key) {
+        AtomicLong next = this.due.computeIfAbsent(key, k -> new AtomicLong(Long.MIN_VALUE));
+        long now = System.nanoTime();
+        while (true) {
+            long current = next.get();
+            long start = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+            if (start - now > this.tolerance) {
+                return Math.max(1, (start - now - this.tolerance) / 1_000_000);
+            }
+            if (next.compareAndSet(current, start + this.interval)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Forgets the keys that are no longer cooling down, they would be
+     * allowed their full burst anyway.
+     */
+    public void sweep() {
+        long now = System.nanoTime();
+        this.due.values().removeIf(next -> next.get() - now < 0);
+    }
+}
@@ -0,0 +1,296 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceTile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Collectors;
+
+/**
+ * The recent history of the board, for looking at the board as it was at
+ * any time since the history started: the server started, or the last
+ * snapshot before it if it replayed a journal.  Every applied change is
+ * recorded, in time order, into blocks of a fixed number of changes.  Each
+ * block has a keyframe, a copy of the board before its first change, which
+ * a background thread builds from the keyframe and changes of the block
+ * before it.  Only the latest blocks are kept, once there are more the
+ * oldest is dropped and the history starts at the next one's keyframe.
+ *
+ * The board at a time is the latest keyframe before that time with the
+ * changes after it applied, up to the time.  Reconstructing a board does
+ * not touch the live board or lock anything, so any number of boards can
+ * be reconstructed at once, and {@link #boardsAt(long...)} does so in
+ * parallel.
+ *
+ * Only the sequencer thread records changes.  The changes are written
+ * before the count of a block is raised, so a reader never sees a change
+ * that is half written.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class HistoryStore {
+    /**
+     * A run of recorded changes and the board before the first of them.
+     */
+    private static class Block {
+        private final long[] times;
+        private final int[] cells;
+        private final int[] owners;
+        private final byte[] colors;
+        /** How many changes are recorded, raised after each is written */
+        private volatile int count;
+        /** The board before the first change, null until it is built */
+        private volatile PlaceBoard keyframe;
+
+        /**
+         * Creates an empty block.
+         *
+         * @param size the most changes it holds
+         */
+        private Block(int size) {
+            this.times = new long[size];
+            this.cells = new int[size];
+            this.owners = new int[size];
+            this.colors = new byte[size];
+        }
+    }
+
+    /** The board when the history starts, moved up as old blocks are dropped */
+    private volatile PlaceBoard origin;
+    /** How many changes each block holds */
+    private final int blockSize;
+    /** The most blocks kept */
+    private final int maxBlocks;
+    /** The blocks in time order, every one holding at least one change */
+    private final List<Block> blocks;
+    /** The owner names, indexed by owner id */
+    private final List<String> ownerNames;
+    /** Builds the keyframes off the sequencer thread */
+    private final ExecutorService keyframes;
+    /** The block being recorded into, only touched by the sequencer thread */
+    private Block current;
+
+    /**
+     * Starts a history.
+     *
+     * @param board the board as it is now, which is copied
+     * @param keyframeEvery how many changes to record between keyframes
+     * @param maxBlocks the most blocks of keyframeEvery changes to keep, at least 1
+     */
+    public HistoryStore(PlaceBoard board, int keyframeEvery, int maxBlocks) {
+        this.origin = new PlaceBoard(board);
+        this.blockSize = keyframeEvery;
+        this.maxBlocks = maxBlocks;
+        this.blocks = new CopyOnWriteArrayList<>();
+        this.ownerNames = new ArrayList<>();
+        for (int id = 0; id < board.getOwnerCount(); id++) {
+            this.ownerNames.add(board.getOwnerName(id));
+        }
+        this.keyframes = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "place-history");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Records an applied change.  Only the sequencer thread may call this.
+     *
+     * @param board the live board, after the change
+     * @param tile the tile as applied
+     */
+    public void record(PlaceBoard board, PlaceTile tile) {
+        int owner = board.getOwnerId(tile.getOwner());
+        if (owner >= this.ownerNames.size()) {
+            synchronized (this.ownerNames) {
+                for (int id = this.ownerNames.size(); id < board.getOwnerCount(); id++) {
+                    this.ownerNames.add(board.getOwnerName(id));
+                }
+            }
+        }
+        Block block = this.current;
+        boolean added = false;
+        if (block == null || block.count == this.blockSize) {
+            block = new Block(this.blockSize);
+            added = true;
+        }
+        int i = block.count;
+        block.times[i] = tile.getTime();
+        block.cells[i] = tile.getRow() * board.DIM + tile.getCol();
+        block.owners[i] = owner;
+        block.colors[i] = (byte) tile.getColor().getNumber();
+        block.count = i + 1;
+        if (added) {
+            Block previous = this.current;
+            this.current = block;
+            this.blocks.add(block);
+            if (previous == null) {
+                block.keyframe = this.origin;
+            } else {
+                Block next = block;
+                this.keyframes.execute(() -> {
+                    next.keyframe = replay(previous, previous.count, Long.MAX_VALUE);
+                    trim();
+                });
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest blocks while there are too many, as long as the
+     * block after each has its keyframe.  Runs on the keyframe thread.
+     */
+    private void trim() {
+        while (this.blocks.size() > this.maxBlocks && this.blocks.get(1).keyframe != null) {
+            this.origin = this.blocks.get(1).keyframe;
+            this.blocks.remove(0);
+        }
+    }
+
+    /**
+     * Reconstructs the board as it was at a time.  Before the history
+     * starts, that is the board when it starts.
+     *
+     * @param time the time in milliseconds
+     * @return a new board holding every change made up to and including the time
+     */
+    public PlaceBoard boardAt(long time) {
+        Block[] blocks = this.blocks.toArray(new Block[0]);
+        int last = -1;
+        int low = 0;
+        int high = blocks.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (blocks[mid].times[0] <= time) {
+                last = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (last < 0) {
+            return new PlaceBoard(this.origin);
+        }
+        int first = last;
+        while (blocks[first].keyframe == null) {
+            first--;
+        }
+        PlaceBoard board = new PlaceBoard(blocks[first].keyframe);
+        addOwners(board);
+        for (int b = first; b < last; b++) {
+            apply(board, blocks[b], blocks[b].count, Long.MAX_VALUE);
+        }
+        apply(board, blocks[last], blocks[last].count, time);
+        return board;
+    }
+
+    /**
+     * Reconstructs the board at several times, in parallel.
+     *
+     * @param times the times in milliseconds
+     * @return the boards, in the order of the times
+     */
+    public List<PlaceBoard> boardsAt(long... times) {
+        return Arrays.stream(times).parallel().mapToObj(this::boardAt).collect(Collectors.toList());
+    }
+
+    /**
+     * Reconstructs evenly spaced frames of a timelapse, in parallel, and
+     * hands each to a consumer as soon as it is done.  Frames may arrive
+     * out of order and from several threads at once, and are not kept, so
+     * a long timelapse does not need every frame in memory.
+     *
+     * @param from the time of the first frame
+     * @param to the time of the last frame
+     * @param frames the number of frames, at least 2
+     * @param frame gets each board and its frame number
+     */
+    public void timelapse(long from, long to, int frames, ObjIntConsumer<PlaceBoard> frame) {
+        IntStream.range(0, frames).parallel().forEach(i ->
+                frame.accept(boardAt(from + (to - from) * i / (frames - 1)), i));
+    }
+
+    /**
+     * Gets the time of the first change kept.
+     *
+     * @return the time in milliseconds, 0 before any change
+     */
+    public long getStart() {
+        Block first = this.blocks.isEmpty() ? null : this.blocks.get(0);
+        return first == null ? 0 : first.times[0];
+    }
+
+    /**
+     * Stops building keyframes.
+     */
+    public void close() {
+        this.keyframes.shutdownNow();
+    }
+
+    /**
+     * Builds the board after the changes of a block up to a time, starting
+     * from the block's keyframe.
+     *
+     * @param block the block, which has a keyframe
+     * @param count how many of its changes to look at
+     * @param time the last time to apply
+     * @return the new board
+     */
+    private PlaceBoard replay(Block block, int count, long time) {
+        PlaceBoard board = new PlaceBoard(block.keyframe);
+        addOwners(board);
+        apply(board, block, count, time);
+        return board;
+    }
+
+    /**
+     * Applies the changes of a block up to a time.
+     *
+     * @param board the board
+     * @param block the block
+     * @param count how many of its changes to look at
+     * @param time the last time to apply
+     */
+    private void apply(PlaceBoard board, Block block, int count, long time) {
+        int end = count;
+        if (time != Long.MAX_VALUE) {
+            int low = 0;
+            int high = count - 1;
+            end = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (block.times[mid] <= time) {
+                    end = mid + 1;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+        }
+        int DIM = board.DIM;
+        for (int i = 0; i < end; i++) {
+            int cell = block.cells[i];
+            board.setTile(cell / DIM, cell % DIM, block.owners[i], block.colors[i], block.times[i]);
+        }
+    }
+
+    /**
+     * Gives a board the owner names it is missing.
+     *
+     * @param board the board
+     */
+    private void addOwners(PlaceBoard board) {
+        synchronized (this.ownerNames) {
+            for (int id = board.getOwnerCount(); id < this.ownerNames.size(); id++) {
+                board.setOwnerName(id, this.ownerNames.get(id));
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package place.server;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serves the {@link ServerMetrics} as plain text on a local port, to be
+ * scraped by Prometheus or read with curl.  It answers every request on
+ * the port with the metrics, one connection at a time, and only listens
+ * on the loopback address.
+ *
+ * If the server keeps a {@link HistoryStore}, two more paths read it:
+ * /board?at=MILLIS answers with the board as it was at that time, and
+ * /timelapse?from=MILLIS&amp;to=MILLIS&amp;frames=N with N evenly spaced
+ * boards, in the order they are reconstructed.  Each board comes after a
+ * line with its frame number and time, as a line of hex color numbers for
+ * each row.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class MetricsEndpoint implements Runnable, Closeable {
+    /** How long a scraper has to send its request */
+    private static final int READ_TIMEOUT_MS = 1000;
+    /** The most frames a timelapse may ask for */
+    private static final int MAX_FRAMES = 1000;
+    private static final String TEXT = "text/plain; charset=utf-8";
+
+    private final ServerMetrics metrics;
+    private final HistoryStore history;
+    private final ServerSocket server;
+
+    /**
+     * Opens the port.
+     *
+     * @param metrics the metrics to serve
+     * @param history the history to serve boards from, or null
+     * @param port the port on the loopback address
+     * @throws IOException if the port can't be opened
+     */
+    public MetricsEndpoint(ServerMetrics metrics, HistoryStore history, int port) throws IOException {
+        this.metrics = metrics;
+        this.history = history;
+        this.server = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Answers scrapes until closed.
+     */
+    @Override
+    public void run() {
+        while (!this.server.isClosed()) {
+            try (Socket socket = this.server.accept()) {
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.US_ASCII));
+                String request = in.readLine();
+                String line;
+                while ((line = in.readLine()) != null && !line.isEmpty()) {
+                    //Skip the headers.
+                }
+                String[] words = request == null ? new String[0] : request.split(" ");
+                answer(words.length < 2 ? "/" : words[1], socket.getOutputStream());
+            } catch (IOException e) {
+                if (!this.server.isClosed()) {
+                    System.out.println("Metrics: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers a request for a path, with the metrics unless it is a
+     * history path.
+     *
+     * @param target the path and query asked for
+     * @param out where to write the response
+     * @throws IOException if the response can't be written
+     */
+    private void answer(String target, OutputStream out) throws IOException {
+        int question = target.indexOf('?');
+        String path = question < 0 ? target : target.substring(0, question);
+        if (!path.equals("/board") && !path.equals("/timelapse")) {
+            respond(out, "200 OK", "text/plain; version=0.0.4; charset=utf-8", this.metrics.toText());
+            return;
+        }
+        if (this.history == null) {
+            respond(out, "404 Not Found", TEXT, "The server keeps no history\n");
+            return;
+        }
+        Map<String, Long> query = new HashMap<>();
+        try {
+            for (String pair : question < 0 ? new String[0] : target.substring(question + 1).split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    query.put(pair.substring(0, eq), Long.parseLong(pair.substring(eq + 1)));
+                }
+            }
+        } catch (NumberFormatException e) {
+            respond(out, "400 Bad Request", TEXT, "Bad number " + e.getMessage() + "\n");
+            return;
+        }
+        if (path.equals("/board")) {
+            if (!query.containsKey("at")) {
+                respond(out, "400 Bad Request", TEXT, "Usage: /board?at=MILLIS, the history starts at "
+                        + this.history.getStart() + "\n");
+                return;
+            }
+            respond(out, "200 OK", TEXT, "board at " + query.get("at") + this.history.boardAt(query.get("at"))
+                    + "\n");
+            return;
+        }
+        long frames = query.getOrDefault("frames", 0L);
+        if (!query.containsKey("from") || !query.containsKey("to") || frames < 2 || frames > MAX_FRAMES) {
+            respond(out, "400 Bad Request", TEXT, "Usage: /timelapse?from=MILLIS&to=MILLIS&frames=2.."
+                    + MAX_FRAMES + ", the history starts at " + this.history.getStart() + "\n");
+            return;
+        }
+        long from = query.get("from");
+        long to = query.get("to");
+        //The frames are written as they are done, in any order, so the response has no length.
+        out.write(("HTTP/1.0 200 OK\r\nContent-Type: " + TEXT + "\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        try {
+            this.history.timelapse(from, to, (int) frames, (board, i) -> {
+                byte[] frame = ("frame " + i + " at " + (from + (to - from) * i / (frames - 1))
+                        + board + "\n").getBytes(StandardCharsets.UTF_8);
+                synchronized (out) {
+                    try {
+                        out.write(frame);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes a whole response.
+     *
+     * @param out where to write it
+     * @param status the status line's code and reason
+     * @param type the content type
+     * @param text the body
+     * @throws IOException if it can't be written
+     */
+    private static void respond(OutputStream out, String status, String type, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        out.write(("HTTP/1.0 " + status + "\r\nContent-Type: " + type + "\r\n"
+                + "Content-Length: " + body.length + "\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Gets the port being listened on.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return this.server.getLocalPort();
+    }
+
+    /**
+     * Closes the port, which ends the loop.
+     */
+    @Override
+    public void close() {
+        try {
+            this.server.close();
+        } catch (IOException e) {
+            //squash
+        }
+    }
+}
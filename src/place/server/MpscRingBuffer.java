@@ -0,0 +1,98 @@
+package place.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for many producer threads and a single
+ * consumer thread.  Each slot of the ring has a sequence number that says
+ * whether the slot is free for the producer claiming a position or holds
+ * an element for the consumer.  Producers claim positions with a compare
+ * and set on the tail, the consumer owns the head outright.
+ *
+ * @param <E> the element type
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class MpscRingBuffer<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail;
+    /** Only read and written by the consumer */
+    private long head;
+
+    /**
+     * Creates a ring buffer.
+     *
+     * @param capacity the most elements it holds, rounded up to a power of two
+     */
+    public MpscRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+        this.tail = new AtomicLong();
+    }
+
+    /**
+     * Adds an element if there is room.  Safe to call from any thread.
+     *
+     * @param element the element
+     * @return false if the ring is full
+     */
+    public boolean offer(E element) {
+        while (true) {
+            long position = this.tail.get();
+            int index = (int) position & this.mask;
+            long diff = this.sequences.get(index) - position;
+            if (diff == 0) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    this.elements.lazySet(index, element);
+                    this.sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element.  Only the consumer thread may call this.
+     *
+     * @return the element, or null if the ring is empty
+     */
+    public E poll() {
+        int index = (int) this.head & this.mask;
+        if (this.sequences.get(index) != this.head + 1) {
+            return null;
+        }
+        E element = this.elements.get(index);
+        this.elements.lazySet(index, null);
+        this.sequences.set(index, this.head + this.mask + 1);
+        this.head++;
+        return element;
+    }
+
+    /**
+     * Tells whether the ring looks empty.  Only meaningful to the consumer.
+     *
+     * @return true if there is nothing to poll right now
+     */
+    public boolean isEmpty() {
+        return this.sequences.get((int) this.head & this.mask) != this.head + 1;
+    }
+
+    /**
+     * Gets the number of elements waiting, roughly.
+     *
+     * @return the number of elements
+     */
+    public int size() {
+        return (int) Math.max(0, this.tail.get() - this.head);
+    }
+}
@@ -0,0 +1,330 @@
+package place.server;
+
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client of the non-blocking server.  Reading and writing happen on the
+ * {@link NioEventLoop} that owns the connection, any thread may queue a
+ * request to be sent.  A client whose queue grows past the server's queue
+ * size is disconnected rather than buffered without end.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class NioClientConnection implements ClientConnection {
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final PlaceServer server;
+    private final Queue<ByteBuffer> out;
+    private final AtomicInteger backlog;
+    /** Whether the loop has been asked to write and not started writing yet */
+    private final AtomicBoolean writeRequested;
+    private final String ip;
+    private SelectionKey key;
+    private ByteBuffer in;
+    private volatile String userName;
+    private volatile boolean loggedIn;
+    private volatile boolean closing;
+    private volatile boolean overflowed;
+    /** The last change a reconnecting client saw, 0 for a new client */
+    private long resume;
+    /** The key a relay logs in with, null for other clients */
+    private String relay;
+    /** When the connection was accepted, in nanoTime */
+    private final long connectedAt;
+    /** When the connection has to have logged in by, in nanoTime */
+    private final long loginDeadline;
+    private final SendProbe probe;
+    /** Whether the connection still holds a login slot, only touched by the owning loop */
+    private boolean loggingIn;
+
+    /**
+     * Creates the connection for a channel accepted by the server.
+     *
+     * @param channel the non-blocking channel
+     * @param loop the loop that owns the channel
+     * @param server the server
+     * @throws IOException if the remote address can't be read
+     */
+    public NioClientConnection(SocketChannel channel, NioEventLoop loop, PlaceServer server) throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        this.server = server;
+        this.out = new ConcurrentLinkedQueue<>();
+        this.backlog = new AtomicInteger();
+        this.writeRequested = new AtomicBoolean();
+        this.ip = channel.getRemoteAddress().toString().split(":")[0];
+        this.in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.connectedAt = System.nanoTime();
+        this.loginDeadline = this.connectedAt + server.getLoginTimeout() * 1000000L;
+        this.probe = new SendProbe(server.getMetrics());
+        this.loggingIn = true;
+    }
+
+    /**
+     * Sets the selection key of the channel.
+     *
+     * @param key the key
+     */
+    void setKey(SelectionKey key){
+        this.key = key;
+    }
+
+    /**
+     * Reads what the channel has and handles every complete request.
+     * Only called by the owning loop.
+     */
+    void read(){
+        try{
+            if(!this.in.hasRemaining()){
+                ByteBuffer bigger = ByteBuffer.allocate(this.in.capacity() * 2);
+                this.in.flip();
+                bigger.put(this.in);
+                this.in = bigger;
+            }
+            if(this.channel.read(this.in) < 0){
+                closeNow();
+                return;
+            }
+            this.in.flip();
+            PlaceRequest<?> req;
+            while(!this.closing && (req = PlaceExchange.decode(this.in, null,
+                    PlaceExchange.MAX_CLIENT_FRAME, PlaceExchange.CLIENT_REQUESTS)) != null){
+                handle(req);
+            }
+            this.in.compact();
+        }catch(IOException e){
+            closeNow();
+        }catch(RuntimeException e){
+            System.out.println("Dropping " + this.channel + ": " + e);
+            closeNow();
+        }
+    }
+
+    /**
+     * Handles one request, the first one must be the login, or a
+     * RESUME or RELAY followed by the login.
+     *
+     * @param req the request
+     */
+    private void handle(PlaceRequest<?> req){
+        if(!this.loggedIn && req.getType() == PlaceRequest.RequestType.RESUME){
+            this.resume = (Long)req.getData();
+        }else if(!this.loggedIn && req.getType() == PlaceRequest.RequestType.RELAY){
+            this.relay = (String)req.getData();
+        }else if(!this.loggedIn){
+            if(!this.server.loginClient(this, req, this.resume, this.relay)){
+                close();
+            }else{
+                this.server.getMetrics().loggedIn(System.nanoTime() - this.connectedAt);
+            }
+        }else if(req.getType() == PlaceRequest.RequestType.CHANGE_TILE
+                || req.getType() == PlaceRequest.RequestType.RELAY_CHANGE){
+            this.server.processRequest(this, req);
+        }else if(req.getType() == PlaceRequest.RequestType.VIEWPORT){
+            this.server.processViewport(this, req);
+        }
+    }
+
+    /**
+     * Writes queued frames until they are all sent or the channel
+     * is full.  Only called by the owning loop.
+     */
+    void write(){
+        //Frames queued from here on ask for another write.
+        this.writeRequested.set(false);
+        if(!this.key.isValid()){
+            return;
+        }
+        if(this.overflowed){
+            closeNow();
+            return;
+        }
+        try{
+            ByteBuffer frame;
+            while((frame = this.out.peek()) != null){
+                this.channel.write(frame);
+                if(frame.hasRemaining()){
+                    this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                this.out.poll();
+                this.backlog.decrementAndGet();
+                this.probe.written(frame);
+            }
+            this.key.interestOps(SelectionKey.OP_READ);
+            if(this.closing){
+                closeNow();
+            }
+        }catch(IOException e){
+            closeNow();
+        }
+    }
+
+    /**
+     * Marks the client as logged in so its tile changes are processed.
+     */
+    @Override
+    public void start(){
+        this.loggedIn = true;
+        endLogin();
+    }
+
+    /**
+     * Drops the connection if it is still logging in after the login
+     * timeout.  Only called by the owning loop.
+     *
+     * @param now the current nanoTime
+     * @return whether the connection is done logging in, one way or the other
+     */
+    boolean checkLogin(long now){
+        if(!this.loggingIn){
+            return true;
+        }
+        if(now - this.loginDeadline < 0){
+            return false;
+        }
+        System.out.println("Login timed out, dropping " + this.channel);
+        closeNow();
+        return true;
+    }
+
+    /**
+     * Gives back the login slot, once.
+     */
+    private void endLogin(){
+        if(this.loggingIn){
+            this.loggingIn = false;
+            this.server.endLogin();
+        }
+    }
+
+    /**
+     * Queues a request for the loop to send.
+     *
+     * @param req the request
+     */
+    @Override
+    public void sendRequest(PlaceRequest<?> req){
+        try{
+            sendFrame(PlaceExchange.encode(req, this.server.getBoard()));
+        }catch (IOException e){
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Queues an encoded frame for the loop to send.  The loop writes
+     * from a duplicate so the shared frame is never moved.  The loop is
+     * only woken for the first frame queued since it last wrote.
+     *
+     * @param frame the frame, shared with other clients
+     */
+    @Override
+    public void sendFrame(ByteBuffer frame){
+        if(this.backlog.incrementAndGet() > this.server.getQueueSize()){
+            if(!this.overflowed){
+                this.overflowed = true;
+                System.out.println(this.userName + " fell " + this.backlog.get() + " frames behind, disconnecting.");
+                this.loop.requestWrite(this);
+            }
+            this.backlog.decrementAndGet();
+            return;
+        }
+        ByteBuffer queued = frame.duplicate();
+        this.probe.queued(queued);
+        this.out.add(queued);
+        if(this.writeRequested.compareAndSet(false, true)){
+            this.loop.requestWrite(this);
+        }
+    }
+
+    /**
+     * Gets the number of frames waiting to be written.
+     *
+     * @return the queue depth
+     */
+    @Override
+    public int getBacklog(){
+        return this.backlog.get();
+    }
+
+    /**
+     * Sets the username for the client.
+     *
+     * @param userName the username
+     */
+    @Override
+    public void setUserName(String userName){
+        this.userName = userName;
+    }
+
+    /**
+     * gets the username of the client
+     *
+     * @return username
+     */
+    @Override
+    public String getUserName(){
+        return this.userName;
+    }
+
+    /**
+     * Gets the ip of the client channel
+     *
+     * @return ip string
+     */
+    @Override
+    public String getIp(){
+        return this.ip;
+    }
+
+    /**
+     * Closes the channel once the queued requests have been sent.
+     */
+    @Override
+    public void close(){
+        this.closing = true;
+        this.loop.requestWrite(this);
+    }
+
+    /**
+     * Closes the channel right away, once.  Only called by the owning loop.
+     */
+    void closeNow(){
+        if(!this.channel.isOpen()){
+            return;
+        }
+        endLogin();
+        this.key.cancel();
+        try{
+            this.channel.close();
+        }catch(IOException e){
+            //squash
+        }
+        if(this.loggedIn){
+            this.server.disconnectClient(this);
+        }
+    }
+
+    /**
+     * string representation of NioClientConnection
+     *
+     * @return
+     */
+    @Override
+    public String toString(){
+        return this.channel.toString() + " backlog=" + getBacklog();
+    }
+}
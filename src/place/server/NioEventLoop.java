@@ -0,0 +1,178 @@
+package place.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector loop of the non-blocking server.  It reads and writes for
+ * every connection registered with it.  Other threads never touch the
+ * selector directly, they queue their work and wake the loop up.
+ * Connections that have not logged in by the login timeout are dropped.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class NioEventLoop implements Runnable, Closeable {
+    private final PlaceServer server;
+    private final Selector selector;
+    private final Queue<SocketChannel> newChannels;
+    private final Queue<NioClientConnection> pendingWrites;
+    /** The connections still logging in, oldest first, only touched by this loop */
+    private final ArrayDeque<NioClientConnection> loggingIn;
+
+    /**
+     * Creates a loop for the server.
+     *
+     * @param server the server the connections belong to
+     * @throws IOException if the selector can't be opened
+     */
+    public NioEventLoop(PlaceServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.newChannels = new ConcurrentLinkedQueue<>();
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+        this.loggingIn = new ArrayDeque<>();
+    }
+
+    /**
+     * Hands a newly accepted channel to this loop.
+     *
+     * @param channel the channel
+     */
+    public void register(SocketChannel channel){
+        this.newChannels.add(channel);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to write the queued frames of a connection.
+     *
+     * @param conn the connection
+     */
+    void requestWrite(NioClientConnection conn){
+        this.pendingWrites.add(conn);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Selects and handles ready channels until the loop is closed.
+     */
+    @Override
+    public void run(){
+        try{
+            while(this.selector.isOpen()){
+                if(this.loggingIn.isEmpty()){
+                    this.selector.select();
+                }else{
+                    this.selector.select(this.server.getLoginTimeout());
+                }
+                expireLogins();
+                registerNewChannels();
+                flushPendingWrites();
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioClientConnection conn = (NioClientConnection)key.attachment();
+                    try{
+                        if(key.isValid() && key.isReadable()){
+                            conn.read();
+                        }
+                        if(key.isValid() && key.isWritable()){
+                            conn.write();
+                        }
+                    }catch(RuntimeException e){
+                        drop(conn, e);
+                    }
+                }
+            }
+        }catch(IOException | ClosedSelectorException e){
+            //squash, the loop is shutting down.
+        }
+    }
+
+    /**
+     * Registers the channels accepted since the last select.
+     */
+    private void registerNewChannels(){
+        SocketChannel channel;
+        while((channel = this.newChannels.poll()) != null){
+            try{
+                channel.configureBlocking(false);
+                NioClientConnection conn = new NioClientConnection(channel, this, this.server);
+                conn.setKey(channel.register(this.selector, SelectionKey.OP_READ, conn));
+                this.loggingIn.add(conn);
+            }catch(IOException e){
+                System.out.println(e.getMessage());
+                this.server.endLogin();
+                try{
+                    channel.close();
+                }catch(IOException e2){
+                    //squash
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the connections that took too long to log in, and forgets
+     * the ones that are done.  Connections are accepted in order, so
+     * the oldest still logging in is the first to time out.
+     */
+    private void expireLogins(){
+        long now = System.nanoTime();
+        NioClientConnection conn;
+        while((conn = this.loggingIn.peek()) != null && conn.checkLogin(now)){
+            this.loggingIn.poll();
+        }
+    }
+
+    /**
+     * Writes for the connections that queued frames since the last select.
+     */
+    private void flushPendingWrites(){
+        NioClientConnection conn;
+        while((conn = this.pendingWrites.poll()) != null){
+            try{
+                conn.write();
+            }catch(RuntimeException e){
+                drop(conn, e);
+            }
+        }
+    }
+
+    /**
+     * Closes a connection whose handling failed, so one bad connection
+     * can't end the loop and strand the others.
+     *
+     * @param conn the connection
+     * @param e what went wrong
+     */
+    private void drop(NioClientConnection conn, RuntimeException e){
+        System.out.println("Dropping " + conn + ": " + e);
+        try{
+            conn.closeNow();
+        }catch(RuntimeException e2){
+            //squash, the channel is closed as far as it can be.
+        }
+    }
+
+    /**
+     * Closes the selector, which ends the loop.
+     */
+    @Override
+    public void close(){
+        try{
+            this.selector.close();
+        }catch(IOException e){
+            //squash
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package place.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connection a {@link ClusterNode} sends its messages to another node
+ * over.  Each pair of nodes talks over two connections, one each way, so
+ * a node only ever writes to its links and only ever reads what its peers
+ * opened.
+ *
+ * The link keeps reconnecting until it is closed.  Each time it connects
+ * it asks the node to sync the peer, and only takes messages from then
+ * on, so nothing queued for an earlier connection is sent on a new one.
+ * A peer that lets too many messages pile up is disconnected, and synced
+ * again when the link reconnects.  An idle link writes a heartbeat every
+ * second, so a peer that went away is noticed and synced when it is back.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+class PeerLink implements Runnable {
+    /** The most messages waiting to be written */
+    private static final int MAX_QUEUED = 65536;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final int RECONNECT_MS = 1000;
+    private static final int HEARTBEAT_MS = 1000;
+    private static final byte[] HEARTBEAT = {ClusterNode.PING};
+
+    private final ClusterNode node;
+    private final int peer;
+    private final InetSocketAddress address;
+    private final BlockingQueue<byte[]> queue;
+    private volatile Socket socket;
+    /** Whether the link is connected and the peer has been synced */
+    private volatile boolean live;
+    private volatile boolean running;
+    private volatile Thread thread;
+
+    /**
+     * Creates a link.
+     *
+     * @param node the node sending
+     * @param peer the node at the other end
+     * @param address the peer's bus address
+     */
+    PeerLink(ClusterNode node, int peer, InetSocketAddress address) {
+        this.node = node;
+        this.peer = peer;
+        this.address = address;
+        this.queue = new ArrayBlockingQueue<>(MAX_QUEUED);
+        this.running = true;
+    }
+
+    /**
+     * Queues a message once the peer has been synced.  Called by the
+     * sequencer thread.
+     *
+     * @param message the encoded message
+     * @return whether it was queued
+     */
+    boolean send(byte[] message) {
+        if (!this.live) {
+            return false;
+        }
+        if (!this.queue.offer(message)) {
+            System.out.println("Node " + this.peer + " is too far behind, resyncing it");
+            this.live = false;
+            closeSocket();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Marks the peer synced, so later messages are sent.  Called by the
+     * sequencer thread right after it queued the sync.
+     */
+    void synced() {
+        this.live = true;
+    }
+
+    /**
+     * Queues part of a sync.  Called by the sequencer thread before
+     * {@link #synced()}.
+     *
+     * @param message the encoded message
+     */
+    void sendSync(byte[] message) {
+        if (!this.queue.offer(message)) {
+            closeSocket();
+        }
+    }
+
+    /**
+     * Tells whether the peer is connected and synced.
+     *
+     * @return whether messages are being sent to it
+     */
+    boolean isLive() {
+        return this.live;
+    }
+
+    /**
+     * Connects to the peer and writes its messages until the link is
+     * closed.
+     */
+    @Override
+    public void run() {
+        this.thread = Thread.currentThread();
+        boolean reported = false;
+        while (this.running) {
+            try (Socket s = new Socket()) {
+                s.connect(this.address, CONNECT_TIMEOUT_MS);
+                s.setTcpNoDelay(true);
+                this.socket = s;
+                OutputStream out = new BufferedOutputStream(s.getOutputStream(), 1 << 16);
+                out.write(this.node.hello());
+                this.queue.clear();
+                this.node.sync(this);
+                System.out.println("Linked to node " + this.peer + " at " + this.address);
+                reported = false;
+                while (this.running) {
+                    byte[] message = this.queue.poll();
+                    if (message == null) {
+                        out.flush();
+                        message = this.queue.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+                        if (message == null) {
+                            message = HEARTBEAT;
+                        }
+                    }
+                    out.write(message);
+                }
+            } catch (IOException e) {
+                if (!reported && this.running) {
+                    System.out.println("No link to node " + this.peer + ": " + e.getMessage());
+                    reported = true;
+                }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                this.live = false;
+                this.socket = null;
+            }
+            try {
+                Thread.sleep(RECONNECT_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Closes the connection, which makes the link reconnect.
+     */
+    private void closeSocket() {
+        Socket s = this.socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                //squash
+            }
+        }
+    }
+
+    /**
+     * Stops the link.
+     */
+    void close() {
+        this.running = false;
+        this.live = false;
+        closeSocket();
+        Thread t = this.thread;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+}
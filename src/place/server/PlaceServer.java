@@ -3,155 +3,649 @@ package place.server;
 import place.PlaceBoard;
 import place.PlaceTile;
 import place.network.PlaceRequest;
+import place.network.Tracer;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-
-import static java.lang.Thread.sleep;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
 
 /**
  * The Place server is run on the command line as:
  *
- * $ java PlaceServer port DIM
+ * $ java PlaceServer port DIM [--mode=threaded|virtual|nio] [--io-loops=N]
+ *                   [--max-clients=N] [--max-same-ip=N] [--queue-size=N]
+ *                   [--rate=CHANGES_PER_SECOND] [--burst=N] [--cooldown-key=user|ip]
+ *                   [--tick=MS] [--snapshot=full|colors] [--stream-dim=N]
+ *                   [--journal=PATH] [--fsync=always|interval|os] [--fsync-ms=N]
+ *                   [--snapshot-every=SECONDS] [--history=KEYFRAME_CHANGES]
+ *                   [--history-blocks=N]
+ *                   [--resume-window=N] [--login-timeout=MS] [--max-logins=N]
+ *                   [--metrics-port=N] [--trace=N]
+ *                   [--cluster=HOST:BUSPORT,HOST:BUSPORT,... --node=N --cluster-key=KEY]
+ *                   [--shards=N]
+ *                   [--replication-port=N] [--replication-host=HOST]
+ *                   [--replica-of=HOST:REPLICATIONPORT] [--replication-key=KEY]
+ *                   [--relay-key=KEY] [--relay-of=HOST:PORT]
+ *
+ * Where port is the port number of the host and DIM is the square
+ * dimension of the board.
+ *
+ * The threaded mode gives every client its own thread, the virtual mode
+ * does the same with virtual threads (Java 21 or newer), the nio mode
+ * shares io-loops selector loops between all clients.  Every client has a
+ * queue of at most queue-size frames waiting to be sent, clients that fall
+ * further behind are disconnected.
+ *
+ * Each user (or ip) may change rate tiles per second, with bursts of up to
+ * burst changes.  All changes to the board go through a single
+ * {@link BoardSequencer}.  With a tick, the changes of each tick are
+ * broadcast together as one batch instead of one by one.
+ *
+ * Logins get a deflated copy of the board, with only the tile colors if
+ * the snapshot option is colors.  Boards of stream-dim or more are
+ * streamed to logins one chunk at a time instead.  A client that sends a
+ * viewport only gets the changes inside it.
+ *
+ * With a journal the board is rebuilt from it on startup and every change
+ * is appended to it, forced to disk after every group of changes, every
+ * fsync-ms milliseconds or whenever the operating system likes.  With
+ * fsync always, clients only see a change once its group is on disk.  Every
+ * snapshot-every seconds the board is saved next to the journal and the
+ * journal segments before it are deleted, so a restart only loads the
+ * snapshot and replays the changes since.
+ *
+ * With a history, the latest history-blocks blocks of history changes are
+ * kept in memory, each with a keyframe, so the board can be looked at as
+ * it was at any time since.  With a journal the history starts at the
+ * snapshot the server loaded and holds the replayed changes.  The board
+ * at a time and timelapses are served from the metrics-port, see
+ * {@link MetricsEndpoint}.
+ *
+ * A client that reconnects within resume-window changes of the last one it
+ * saw only gets the changes it missed.  New connections log in away from
+ * the thread accepting them, at most max-logins at once, and are dropped
+ * if they have not logged in within login-timeout milliseconds.
+ *
+ * The {@link ServerMetrics} are registered with JMX, and with a
+ * metrics-port they are also served as text on that local port.  With a
+ * trace, about one in every trace changes is timed through each stage of
+ * the server, see {@link Tracer}.
+ *
+ * With a cluster, this server is node number node of the listed nodes, the
+ * board is cut into shards by shards regions and each node only applies
+ * the changes to its own shards, see {@link ClusterNode}.  The bus port is
+ * only opened on this node's own address in the list, and every node of
+ * the cluster is started with the same cluster-key.
  *
- * Where port is the port number of the host and DIM is the square dimension
- * of the board.
+ * With a replication-port, replicas may connect to it and follow the
+ * board, see {@link ReplicationSource}.  The port is only opened on the
+ * replication-host, localhost unless another is given.  A server that is
+ * a replica-of a primary gets its board and changes from the primary's
+ * replication port and only serves spectators: its clients see the
+ * primary's board and changes, but may not change tiles themselves.  The
+ * primary and its replicas are started with the same replication-key.
+ *
+ * With a relay-key, relays that log in with the same key get the whole
+ * board and may change tiles for their own clients.  A server that is a
+ * relay-of another server, with that server's relay-key, logs in to it as
+ * a relay, serves its board to its own clients and passes their changes
+ * up, see {@link RelayUplink}.
  *
  * @author David Pitoniak dhp6397@rit.edu
  */
 public class PlaceServer implements Closeable {
-    private static int MAX_CLIENTS = 10;
-    private static int MAX_SAME_IP = 3;
+    private static final int LAG_REPORT_SECONDS = 5;
+    private static final int COOLDOWN_SWEEP_SECONDS = 60;
+    /** The most board events waiting for the sequencer */
+    private static final int RING_SIZE = 65536;
 
-    private static ArrayList<PlaceServerClient> clients;
-    private static PlaceBoard board;
-    private static ServerSocket server;
+    private SessionRegistry clients;
+    private PlaceBoard board;
+    private ServerOptions options;
+    private ServerSocket server;
+    private ServerSocketChannel channel;
+    private NioEventLoop[] loops;
+    private ThreadFactory clientThreads;
+    private BoardSequencer sequencer;
+    private ScheduledExecutorService housekeeping;
+    private CooldownLimiter cooldown;
+    private TileJournal journal;
+    private SnapshotStore snapshots;
+    private ScheduledExecutorService snapshotWriter;
+    private HistoryStore history;
+    /** A permit for every connection that may be logging in at once */
+    private Semaphore loginSlots;
+    /** Runs the logins of the threaded modes */
+    private ExecutorService logins;
+    private ServerMetrics metrics;
+    private MetricsEndpoint metricsEndpoint;
+    private ClusterNode cluster;
+    private ReplicationSource replication;
+    private ReplicaFeed replicaFeed;
+    private RelayUplink uplink;
+    /** The clients that logged in as relays */
+    private final Set<ClientConnection> relays = ConcurrentHashMap.newKeySet();
 
     /**
      * Constructor for the server.
      *
-     * @param port
-     * @param dim
+     * @param options the command line options
      * @throws IOException
      */
-    public PlaceServer(int port, int dim) throws IOException {
-        this.server = new ServerSocket(port);
-        System.out.println("Server Socket: " + this.server);
-        clients = new ArrayList<>();
-        this.board = new PlaceBoard(dim);
+    public PlaceServer(ServerOptions options) throws IOException {
+        this.options = options;
+        if(options.getJournal() == null){
+            this.board = new PlaceBoard(options.getDim());
+            if(options.getHistoryKeyframe() > 0){
+                this.history = new HistoryStore(this.board, options.getHistoryKeyframe(), options.getHistoryBlocks());
+            }
+        }else{
+            loadJournal();
+        }
+        if(options.getMode() == ServerOptions.Mode.VIRTUAL){
+            this.clientThreads = virtualThreadFactory();
+        }else{
+            this.clientThreads = Thread::new;
+        }
+        if (options.getMode() == ServerOptions.Mode.NIO) {
+            this.channel = ServerSocketChannel.open();
+            this.channel.bind(new InetSocketAddress(options.getPort()));
+            System.out.println("Server Channel: " + this.channel);
+        } else {
+            this.server = new ServerSocket(options.getPort());
+            System.out.println("Server Socket: " + this.server);
+        }
+        this.loginSlots = new Semaphore(options.getMaxLogins());
+        this.cooldown = new CooldownLimiter(options.getRate(), options.getBurst());
+        this.clients = new SessionRegistry(options.getMaxClients(), options.getMaxSameIp());
+        this.metrics = new ServerMetrics(this.clients,
+                options.getTrace() > 0 ? new Tracer(options.getTrace()) : Tracer.OFF);
+        try{
+            this.metrics.register();
+        }catch(JMException e){
+            System.out.println("Metrics not registered with JMX: " + e.getMessage());
+        }
+        this.sequencer = new BoardSequencer(this.board, RING_SIZE, options.getTick(), options.isSnapshotMetadata(),
+                this.board.DIM >= options.getStreamDim(), this.journal, this.history,
+                options.getResumeWindow(), this.metrics);
+        if(options.getCluster() != null){
+            this.cluster = new ClusterNode(options, this.board, this.sequencer);
+        }
+        if(options.getReplicationPort() > 0){
+            this.replication = new ReplicationSource(this.sequencer, this.board.DIM, options.getReplicationHost(),
+                    options.getReplicationPort(), options.getReplicationKey());
+            this.metrics.setReplicas(this.replication);
+        }
+        if(this.cluster != null){
+            this.cluster.start();
+        }
+        if(this.replication != null){
+            this.replication.start();
+        }
+        new Thread(this.sequencer, "place-sequencer").start();
+        if(options.getReplicaOf() != null){
+            this.replicaFeed = new ReplicaFeed(options.getReplicaOf(), options.getReplicationKey(), this.sequencer, this.metrics, this.board.DIM);
+            Thread t = new Thread(this.replicaFeed, "place-replica");
+            t.setDaemon(true);
+            t.start();
+        }
+        if(options.getRelayOf() != null){
+            this.uplink = new RelayUplink(options.getRelayOf(), options.getRelayKey(), "relay-" + options.getPort(),
+                    this.sequencer, this.board.DIM);
+            Thread t = new Thread(this.uplink, "place-relay");
+            t.setDaemon(true);
+            t.start();
+        }
+        if(options.getMetricsPort() > 0){
+            this.metricsEndpoint = new MetricsEndpoint(this.metrics, this.history, options.getMetricsPort());
+            Thread t = new Thread(this.metricsEndpoint, "place-metrics");
+            t.setDaemon(true);
+            t.start();
+            System.out.println("Metrics on http://localhost:" + this.metricsEndpoint.getPort() + "/metrics");
+        }
     }
 
     /**
-     * Takes a client thread and gets the Login request
-     * from the client and sends the success message back
-     * to the client. Then adds the client to the list
-     * of clients and starts the Thread. Only if the username
-     * is unique and there are not too many clients on the
-     * server or if there are too many people on the same ip address.
+     * Rebuilds the board from the last saved snapshot and the journal
+     * segments after it, or starts a new journal.  The history, if kept,
+     * starts at the snapshot and records the changes replayed.
+     *
+     * @throws IOException if the snapshot or journal can't be read
+     */
+    private void loadJournal() throws IOException {
+        long start = System.nanoTime();
+        this.snapshots = new SnapshotStore(this.options.getJournal() + ".snap");
+        BoardSnapshot saved = this.snapshots.load(this.options.getDim());
+        if(saved == null){
+            saved = new BoardSnapshot(new PlaceBoard(this.options.getDim()), 0, 0, 0);
+        }
+        this.board = saved.getBoard();
+        if(this.options.getHistoryKeyframe() > 0){
+            this.history = new HistoryStore(this.board, this.options.getHistoryKeyframe(),
+                    this.options.getHistoryBlocks());
+        }
+        this.journal = new TileJournal(this.options.getJournal(), this.options.getFsync());
+        try{
+            long replayed = this.journal.replay(saved, this.history);
+            System.out.println("Loaded the board at change " + saved.getSequence() + " and replayed "
+                    + replayed + " changes from " + this.options.getJournal() + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }catch(IOException e){
+            this.journal.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes a snapshot of the board, saves it and deletes the journal
+     * segments it holds.  Runs on its own thread, since saving a large
+     * board takes a while.
+     */
+    private void saveSnapshot(){
+        try{
+            BoardSnapshot snapshot = this.sequencer.snapshot().get();
+            if(snapshot.getSegment() < 0){
+                return;
+            }
+            this.snapshots.save(snapshot);
+            this.journal.compact(snapshot.getSegment());
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }catch(ExecutionException | IOException e){
+            System.out.println("Could not save a snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Takes the Login request of a client and has the
+     * sequencer send it the board. Then adds the
+     * client to the session registry and starts it. Only if
+     * the username is unique and there are not too many
+     * clients on the server or if there are too many people
+     * on the same ip address.
+     *
+     * @param client client logging in
+     * @param inReq the login request the client sent
+     * @param resume the last change a reconnecting client saw, from its RESUME request, or 0
+     * @return whether the client was logged in
+     */
+    protected boolean loginClient(ClientConnection client, PlaceRequest<?> inReq, long resume){
+        return loginClient(client, inReq, resume, null);
+    }
+
+    /**
+     * Logs in a client that may be a relay.  A relay
+     * must know the relay key, and gets the whole
+     * board.
      *
      * @param client client logging in
+     * @param inReq the login request the client sent
+     * @param resume the last change a reconnecting client saw, from its RESUME request, or 0
+     * @param relay the key from a relay's RELAY request, or null
+     * @return whether the client was logged in
      */
-    private static void loginClient(PlaceServerClient client){
-        PlaceRequest<?> inReq = client.getRequest();
-        if(inReq.getType() == PlaceRequest.RequestType.LOGIN){
-            if(!uniqueUserName((String)inReq.getData())){
+    protected boolean loginClient(ClientConnection client, PlaceRequest<?> inReq, long resume, String relay){
+        boolean loggedIn = false;
+        if(relay != null && !relay.equals(this.options.getRelayKey())){
+            client.sendRequest(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Not a relay of this server."));
+        }else if(inReq != null && inReq.getType() == PlaceRequest.RequestType.LOGIN && inReq.getData() != null){
+            String userName = (String)inReq.getData();
+            SessionRegistry.Result added = clients.add(client, userName);
+            if(added == SessionRegistry.Result.NAME_TAKEN){
                 client.sendRequest(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "User Name Not Unique."));
-            }else if(!uniqueIP(client.getIp())){
+            }else if(added == SessionRegistry.Result.IP_FULL){
                 client.sendRequest(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Too many users on ip."));
-            }else if(clients.size() + 1 > MAX_CLIENTS){
+            }else if(added == SessionRegistry.Result.SERVER_FULL){
                 client.sendRequest(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Too many users logged in."));
             }else{
-                //Tell client it was logged in successfully.
-                PlaceRequest<PlaceBoard> outReq = new PlaceRequest<>(PlaceRequest.RequestType.LOGIN_SUCCESS, board);
-                client.sendRequest(outReq);
-                client.setUserName((String)inReq.getData());
-                clients.add(client);
+                client.setUserName(userName);
+                if(relay != null){
+                    this.relays.add(client);
+                }
+                //The board and the changes after it come from the sequencer, in order.
+                this.sequencer.join(client, resume, relay != null);
                 client.start();
+                loggedIn = true;
             }
         }else{
             client.sendRequest(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Invalid login request."));
         }
+        if(!loggedIn){
+            this.metrics.loginRejected();
+        }
         System.out.println(client);
+        return loggedIn;
     }
 
     /**
-     * Checks all the clients usernames to see
-     * if the passed in username is unique.
+     * Removes the client from the session registry
+     * and stops broadcasting to it.
      *
-     * @param userName username being checked
-     * @return if the username was unique
+     * @param client client disconnecting
      */
-    private static boolean uniqueUserName(String userName){
-        for(PlaceServerClient c : clients){
-            if(c.getUserName().equals(userName)){
-                return false;
-            }
+    protected void disconnectClient(ClientConnection client){
+        if(this.clients.remove(client, client.getUserName())){
+            this.relays.remove(client);
+            this.sequencer.leave(client);
         }
-        return true;
     }
 
     /**
-     * Removes the client from the list of clients.
+     * Gets the board.  Only the sequencer thread may read or change it,
+     * the clients do so when they encode requests for a broadcast or login.
+     * Anyone else should ask the sequencer for a snapshot.
      *
-     * @param client client disconnecting
+     * @return the board
+     */
+    PlaceBoard getBoard(){
+        return this.board;
+    }
+
+    /**
+     * Gets the most frames that may be queued for one client.
+     *
+     * @return the queue size
+     */
+    int getQueueSize(){
+        return this.options.getQueueSize();
+    }
+
+    /**
+     * Gets how long a new connection has to log in.
+     *
+     * @return the login timeout in milliseconds
+     */
+    int getLoginTimeout(){
+        return this.options.getLoginTimeout();
+    }
+
+    /**
+     * Gets the metrics of the server.
+     *
+     * @return the metrics
+     */
+    ServerMetrics getMetrics(){
+        return this.metrics;
+    }
+
+    /**
+     * Gets the history of the board.
+     *
+     * @return the history, or null if the server keeps none
      */
-    protected void disconnectClient(PlaceServerClient client){
-        this.clients.remove(client);
+    public HistoryStore getHistory(){
+        return this.history;
     }
 
     /**
-     * Takes a request and updates the board
-     * accordingly and sends the other clients
-     * the change request.
+     * Prints the clients whose queues are at least a quarter full
+     * every few seconds, so lagging clients can be spotted before
+     * they are disconnected.  The replicas that are behind are
+     * printed along with them.
      *
+     * Also forgets the users that are no longer cooling down once a
+     * minute, and forces the journal to disk if that is done on an
+     * interval.
+     */
+    private void startHousekeeping(){
+        this.housekeeping = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "place-housekeeping");
+            t.setDaemon(true);
+            return t;
+        });
+        this.housekeeping.scheduleAtFixedRate(this.metrics::sample, 1, 1, TimeUnit.SECONDS);
+        this.housekeeping.scheduleAtFixedRate(this.cooldown::sweep,
+                COOLDOWN_SWEEP_SECONDS, COOLDOWN_SWEEP_SECONDS, TimeUnit.SECONDS);
+        this.housekeeping.scheduleAtFixedRate(() -> {
+            for(ClientConnection c : clients.clients()){
+                if(c.getBacklog() >= getQueueSize() / 4){
+                    System.out.println("Lagging: " + c.getUserName() + " " + c);
+                }
+            }
+            if(this.replication != null){
+                for(Map.Entry<String, Long> lag : this.replication.getLags().entrySet()){
+                    if(lag.getValue() > 0){
+                        System.out.println("Lagging replica: " + lag.getKey() + " " + lag.getValue() + " changes behind");
+                    }
+                }
+            }
+            if(this.replicaFeed != null && this.metrics.getReplicaLag() > 0){
+                System.out.println("Lagging behind the primary: " + this.metrics.getReplicaLag() + " changes");
+            }
+        }, LAG_REPORT_SECONDS, LAG_REPORT_SECONDS, TimeUnit.SECONDS);
+        if(this.journal != null && this.journal.getPolicy() == TileJournal.FsyncPolicy.INTERVAL){
+            this.housekeeping.scheduleAtFixedRate(() -> {
+                try{
+                    this.journal.force();
+                }catch(IOException e){
+                    //The sequencer reports a broken journal when it next writes.
+                }
+            }, this.options.getFsyncMillis(), this.options.getFsyncMillis(), TimeUnit.MILLISECONDS);
+        }
+        if(this.journal != null && this.options.getSnapshotSeconds() > 0){
+            this.snapshotWriter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "place-snapshot");
+                t.setDaemon(true);
+                return t;
+            });
+            this.snapshotWriter.scheduleWithFixedDelay(this::saveSnapshot,
+                    this.options.getSnapshotSeconds(), this.options.getSnapshotSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Takes a request and hands the change to
+     * the sequencer, which updates the board and
+     * sends the other clients the change request.
+     * The tile is owned by the client that sent
+     * it, whatever the request says.  A client
+     * that is still cooling down, or that sends
+     * while the sequencer is full, gets an error
+     * instead, as does every client of a replica.
+     * A relay's change is owned by the relay's
+     * client, which the relay already cooled down.
+     * A relay passes the change to its own upstream
+     * server instead of the sequencer.
+     *
+     * @param client client that sent the request
      * @param req request being processed
-     * @throws InterruptedException
      */
-    protected synchronized void processRequest(PlaceRequest<PlaceTile> req) throws InterruptedException {
-        if(req.getType() == PlaceRequest.RequestType.CHANGE_TILE){
-            PlaceTile tempTile = req.getData();
-            if(this.board.isValid(tempTile)){
-                this.board.setTile(tempTile);
-                PlaceRequest<PlaceTile> outReq = new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tempTile);
-                sendClientsUpdate(outReq);
-                sleep(500);
+    protected void processRequest(ClientConnection client, PlaceRequest<?> req){
+        boolean relayed = req.getType() == PlaceRequest.RequestType.RELAY_CHANGE && this.relays.contains(client);
+        if(req.getType() == PlaceRequest.RequestType.CHANGE_TILE || relayed){
+            if(this.replicaFeed != null){
+                this.metrics.changeRejected();
+                client.sendRequest(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Read only, change tiles on the primary."));
+                return;
+            }
+            long received = this.metrics.getTracer().sample() ? System.nanoTime() : 0;
+            PlaceTile tempTile = req.getTile();
+            if(!relayed){
+                tempTile.setOwner(client.getUserName());
             }
+            if(this.board.isValid(tempTile) && !tempTile.getOwner().isEmpty()){
+                long wait = relayed ? 0 : this.cooldown.tryAcquire(this.options.isCooldownByIp() ? client.getIp() : client.getUserName());
+                if(wait > 0){
+                    this.metrics.changeRejected();
+                    client.sendRequest(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Cooling down, wait " + wait + " ms."));
+                    return;
+                }
+                if(this.uplink != null ? this.uplink.forward(tempTile)
+                        : this.sequencer.publishChange(client, tempTile, received)){
+                    this.metrics.changeAccepted();
+                }else{
+                    this.metrics.changeRejected();
+                    client.sendRequest(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Server busy, try again."));
+                }
+            }else{
+                this.metrics.changeRejected();
+            }
+        }
+    }
+
+    /**
+     * Takes a client's viewport and hands it to the
+     * sequencer, which only sends the client the
+     * changes inside it from then on.
+     *
+     * @param client client that sent the request
+     * @param req request being processed
+     */
+    protected void processViewport(ClientConnection client, PlaceRequest<?> req){
+        this.sequencer.setViewport(client, req.getViewport());
+    }
+
+    /**
+     * Makes the thread that runs a logged in client.
+     *
+     * @param client the client
+     * @return the new, unstarted thread
+     */
+    protected Thread newClientThread(Runnable client){
+        return this.clientThreads.newThread(client);
+    }
+
+    /**
+     * Looks up the virtual thread factory.  It is found reflectively so the
+     * server still builds and runs its other modes on older Java versions.
+     *
+     * @return a factory making virtual threads named place-client-N
+     * @throws IllegalStateException if virtual threads are not available
+     */
+    private static ThreadFactory virtualThreadFactory(){
+        try{
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "place-client-", 0L);
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        }catch(ReflectiveOperationException e){
+            throw new IllegalStateException("Virtual threads need Java 21 or newer.", e);
         }
     }
 
     /**
-     * Sends a Place Request to all the client in a list.
+     * Accepts clients until the server is closed, each one
+     * gets its own thread once it has logged in.
      *
-     * @param req
+     * @throws IOException
      */
-    private void sendClientsUpdate(PlaceRequest<?> req){
-        for(PlaceServerClient c : clients){
-            c.sendRequest(req);
+    private void serveThreaded() throws IOException {
+        AtomicInteger loginCount = new AtomicInteger();
+        this.logins = Executors.newCachedThreadPool(r -> {
+            Thread t = this.clientThreads.newThread(r);
+            t.setName("place-login-" + loginCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        while(true){
+            Socket socket = this.server.accept();
+            if(startLogin(socket)){
+                this.logins.execute(() -> handshake(socket));
+            }
         }
     }
 
     /**
-     * Checks if the ip that the user connected
-     * with is under the max number of the same ip address.
+     * Takes a login slot for a new connection, or drops the connection
+     * if too many are logging in already.
      *
-     * @param ip ip being compared
-     * @return
+     * @param socket the connection
+     * @return whether the connection may log in
+     * @throws IOException if a dropped connection can't be closed
+     */
+    private boolean startLogin(Closeable socket) throws IOException {
+        if(this.loginSlots.tryAcquire()){
+            return true;
+        }
+        System.out.println("Too many logins at once, dropping " + socket);
+        socket.close();
+        return false;
+    }
+
+    /**
+     * Gives back the login slot of a connection that logged in or gave up.
      */
-    private static boolean uniqueIP(String ip){
-        int numSameIp = 0;
+    void endLogin(){
+        this.loginSlots.release();
+    }
 
-        for(PlaceServerClient c : clients){
-            if(c.getIp().split(":")[0].equals(ip)){
-                numSameIp++;
+    /**
+     * Reads the login of a new connection in the threaded modes, and an
+     * optional RESUME and RELAY before it.  The socket is closed if the
+     * login does not arrive in time, which ends the read.
+     *
+     * @param socket the connection
+     */
+    private void handshake(Socket socket){
+        long start = System.nanoTime();
+        ScheduledFuture<?> timeout = this.housekeeping.schedule(() -> {
+            try{
+                socket.close();
+            }catch(IOException e){
+                //squash
+            }
+        }, this.options.getLoginTimeout(), TimeUnit.MILLISECONDS);
+        try{
+            PlaceServerClient client = new PlaceServerClient(socket, this);
+            PlaceRequest<?> first = client.getRequest();
+            long resume = 0;
+            String relay = null;
+            while(first != null && (first.getType() == PlaceRequest.RequestType.RESUME
+                    || first.getType() == PlaceRequest.RequestType.RELAY)){
+                if(first.getType() == PlaceRequest.RequestType.RESUME){
+                    resume = (Long)first.getData();
+                }else{
+                    relay = (String)first.getData();
+                }
+                first = client.getRequest();
+            }
+            if(!timeout.cancel(false) || !loginClient(client, first, resume, relay)){
+                client.close();
+            }else{
+                this.metrics.loggedIn(System.nanoTime() - start);
             }
+        }finally{
+            endLogin();
         }
-        if(numSameIp >= MAX_SAME_IP){
-            return false;
+    }
+
+    /**
+     * Starts the selector loops and accepts clients until the
+     * server is closed, handing each one to the next loop.
+     *
+     * @throws IOException
+     */
+    private void serveNio() throws IOException {
+        this.loops = new NioEventLoop[this.options.getIoLoops()];
+        for(int i = 0; i < this.loops.length; i++){
+            this.loops[i] = new NioEventLoop(this);
+            new Thread(this.loops[i], "place-io-" + i).start();
+        }
+        int next = 0;
+        while(true){
+            SocketChannel socket = this.channel.accept();
+            if(startLogin(socket)){
+                this.loops[next].register(socket);
+                next = (next + 1) % this.loops.length;
+            }
         }
-        return true;
     }
 
     /**
@@ -161,17 +655,25 @@ public class PlaceServer implements Closeable {
      * @param args the command line arguments
      */
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Usage: java PlaceServer port DIM");
+        ServerOptions options;
+        try{
+            options = ServerOptions.parse(args);
+        }catch(IllegalArgumentException e){
+            System.out.println(e.getMessage());
+            return;
         }
 
-        try(PlaceServer serverTest = new PlaceServer(Integer.parseInt(args[0]), Integer.parseInt(args[1]))){
-            while(true){
-                Socket socket = server.accept();
-                PlaceServerClient client = new PlaceServerClient(socket, serverTest);
-                loginClient(client);
+        try(PlaceServer serverTest = new PlaceServer(options)){
+            serverTest.startHousekeeping();
+            if(options.getMode() == ServerOptions.Mode.NIO){
+                serverTest.serveNio();
+            }else{
+                serverTest.serveThreaded();
             }
+        }catch(IllegalStateException | IOException e){
+            System.out.println(e.getMessage());
         }catch(Exception e){
+            System.out.println("Server stopped: " + e);
         }
     }
 
@@ -181,10 +683,49 @@ public class PlaceServer implements Closeable {
     @Override
     public void close(){
         try{
-            this.server.close();
+            if(this.housekeeping != null){
+                this.housekeeping.shutdownNow();
+            }
+            if(this.snapshotWriter != null){
+                this.snapshotWriter.shutdownNow();
+            }
+            if(this.logins != null){
+                this.logins.shutdownNow();
+            }
+            if(this.metricsEndpoint != null){
+                this.metricsEndpoint.close();
+            }
+            this.metrics.unregister();
+            if(this.cluster != null){
+                this.cluster.close();
+            }
+            if(this.replication != null){
+                this.replication.close();
+            }
+            if(this.replicaFeed != null){
+                this.replicaFeed.close();
+            }
+            if(this.uplink != null){
+                this.uplink.close();
+            }
+            if(this.history != null){
+                this.history.close();
+            }
+            this.sequencer.close();
+            if(this.server != null){
+                this.server.close();
+            }
+            if(this.channel != null){
+                this.channel.close();
+            }
+            if(this.loops != null){
+                for(NioEventLoop loop : this.loops){
+                    loop.close();
+                }
+            }
             joinClients();
         }catch(IOException e){
-
+            System.out.println(e.getMessage());
         }
     }
 
@@ -193,11 +734,13 @@ public class PlaceServer implements Closeable {
      */
     private void joinClients(){
         try{
-            for(PlaceServerClient c : clients){
-                c.join();
+            for(ClientConnection c : clients.clients()){
+                if(c instanceof PlaceServerClient){
+                    ((PlaceServerClient)c).join();
+                }
             }
         }catch (InterruptedException e){
             System.out.println(e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
@@ -1,29 +1,52 @@
 package place.server;
 
-import place.PlaceTile;
+import place.network.PlaceExchange;
 import place.network.PlaceRequest;
 
-import java.io.Closeable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
- * Class for the client thread on the PlaceServer.
+ * Class for the client thread on the PlaceServer.  The threads come from
+ * the server, so they are either platform threads or virtual threads
+ * depending on the server mode.
+ *
+ * Sending only queues a frame.  A writer thread per client drains the
+ * queue into the socket, so a client that reads slowly backs up its own
+ * queue instead of the threads sending to it.  A client whose queue
+ * fills up is disconnected.
  *
  * @author David Pitoniak dhp6397@rit.edu
  */
-public class PlaceServerClient extends Thread implements Closeable {
+public class PlaceServerClient implements Runnable, ClientConnection {
+    /** Queued after the last frame to make the writer close the socket */
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
     private String userName;
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
+    private DataInputStream in;
+    private OutputStream out;
+    private WritableByteChannel outChannel;
     private Socket socket;
     private PlaceServer server;
     private boolean connected;
+    private Thread thread;
+    private Thread writer;
+    private final BlockingQueue<ByteBuffer> outbound;
+    private final String ip;
+    private final SendProbe probe;
 
     /**
-     * Constructor sets the client socket and gets the input and output streams.
+     * Constructor sets the client socket, gets the input and output streams
+     * and starts the writer thread.
      *
      * @param socket
      * @param server
@@ -31,11 +54,17 @@ public class PlaceServerClient extends Thread implements Closeable {
     public PlaceServerClient(Socket socket, PlaceServer server){
         this.socket = socket;
         this.server = server;
+        this.ip = socket.getRemoteSocketAddress().toString().split(":")[0];
+        this.probe = new SendProbe(server.getMetrics());
         this.userName = null;
+        this.outbound = new ArrayBlockingQueue<>(server.getQueueSize());
         try{
-            this.out = new ObjectOutputStream(socket.getOutputStream());
-            this.in = new ObjectInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.outChannel = Channels.newChannel(this.out);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
             connected = true;
+            this.writer = server.newClientThread(this::writeFrames);
+            this.writer.start();
         }catch (IOException e){
             System.out.println(e.getMessage());
         }
@@ -46,33 +75,76 @@ public class PlaceServerClient extends Thread implements Closeable {
      *
      * @param userName
      */
+    @Override
     public void setUserName(String userName){
         this.userName = userName;
     }
 
+    /**
+     * Starts the thread that handles this client's requests.
+     */
+    @Override
+    public void start(){
+        this.thread = this.server.newClientThread(this);
+        this.thread.start();
+    }
+
+    /**
+     * Waits for the client thread to finish.
+     *
+     * @throws InterruptedException
+     */
+    public void join() throws InterruptedException {
+        if(this.thread != null){
+            this.thread.join();
+        }
+    }
+
     /**
      * Run method for the thread that gets requests
      * from the client and processes them on the server
      */
     @Override
     public void run(){
-        try{
-            while(connected){
-                try{
-                    PlaceRequest<?> tempReq = getRequest();
-                    if(tempReq.getType() == PlaceRequest.RequestType.CHANGE_TILE){
-                        this.server.processRequest((PlaceRequest<PlaceTile>)tempReq);
-                    }
-                    sleep(500);
-                }catch(NullPointerException e){
-                    this.server.disconnectClient(this);
-                    connected = false;
-                    this.join();
+        while(connected){
+            try{
+                PlaceRequest<?> tempReq = getRequest();
+                if(tempReq.getType() == PlaceRequest.RequestType.CHANGE_TILE
+                        || tempReq.getType() == PlaceRequest.RequestType.RELAY_CHANGE){
+                    this.server.processRequest(this, tempReq);
+                }else if(tempReq.getType() == PlaceRequest.RequestType.VIEWPORT){
+                    this.server.processViewport(this, tempReq);
                 }
+            }catch(NullPointerException e){
+                this.server.disconnectClient(this);
+                connected = false;
+                close();
+            }
+        }
+    }
 
+    /**
+     * Run method for the writer thread.  It writes queued
+     * frames and flushes once the queue is empty, so a burst
+     * of frames goes out together.
+     */
+    private void writeFrames(){
+        try{
+            while(true){
+                ByteBuffer frame = this.outbound.take();
+                do{
+                    if(frame == CLOSE){
+                        this.out.flush();
+                        closeSocket();
+                        return;
+                    }
+                    this.outChannel.write(frame);
+                    this.probe.written(frame);
+                }while((frame = this.outbound.poll()) != null);
+                this.out.flush();
             }
-        }catch (InterruptedException e){
-            //squash.
+        }catch (IOException | InterruptedException e){
+            closeSocket();
         }
     }
 
@@ -81,15 +153,41 @@ public class PlaceServerClient extends Thread implements Closeable {
      *
      * @param req
      */
+    @Override
     public void sendRequest(PlaceRequest<?> req){
         try{
-            this.out.writeUnshared(req);
-            this.out.flush();
+            sendFrame(PlaceExchange.encode(req, this.server.getBoard()));
         }catch (IOException e){
             System.out.println(e.getMessage());
         }
     }
 
+    /**
+     * Queues an encoded frame for the writer thread.  If the queue
+     * is full the client is too far behind and gets disconnected.
+     *
+     * @param frame the frame, shared with other clients
+     */
+    @Override
+    public void sendFrame(ByteBuffer frame){
+        ByteBuffer queued = frame.duplicate();
+        this.probe.queued(queued);
+        if(!this.outbound.offer(queued)){
+            System.out.println(this.userName + " fell " + this.outbound.size() + " frames behind, disconnecting.");
+            closeSocket();
+        }
+    }
+
+    /**
+     * Gets the number of frames waiting to be written.
+     *
+     * @return the queue depth
+     */
+    @Override
+    public int getBacklog(){
+        return this.outbound.size();
+    }
+
     /**
      * Gets requests from the client attached to the client socket.
      *
@@ -97,8 +195,9 @@ public class PlaceServerClient extends Thread implements Closeable {
      */
     public PlaceRequest<?> getRequest(){
         try{
-            return (PlaceRequest<?>)this.in.readUnshared();
-        }catch (ClassNotFoundException | IOException e){
+            return PlaceExchange.readRequest(this.in, null, PlaceExchange.MAX_CLIENT_FRAME,
+                    PlaceExchange.CLIENT_REQUESTS);
+        }catch (IOException e){
             System.out.println(e.getMessage());
         }
         return null;
@@ -109,6 +208,7 @@ public class PlaceServerClient extends Thread implements Closeable {
      *
      * @return username
      */
+    @Override
     public String getUserName(){
         return this.userName;
     }
@@ -118,20 +218,33 @@ public class PlaceServerClient extends Thread implements Closeable {
      *
      * @return ip string
      */
+    @Override
     public String getIp(){
-        return this.socket.getRemoteSocketAddress().toString().split(":")[0];
+        return this.ip;
     }
 
     /**
-     * closes the socket to the user.
+     * closes the socket to the user once the queued frames are written.
      */
     @Override
     public void close(){
+        if(this.writer == null || !this.outbound.offer(CLOSE)){
+            closeSocket();
+        }
+    }
+
+    /**
+     * closes the socket to the user right away.
+     */
+    private void closeSocket(){
         try{
             this.socket.close();
         }catch (IOException e){
             //squash
         }
+        if(this.writer != null){
+            this.writer.interrupt();
+        }
     }
 
     /**
@@ -140,6 +253,6 @@ public class PlaceServerClient extends Thread implements Closeable {
      * @return
      */
     public String toString(){
-        return this.socket.toString();
+        return this.socket.toString() + " backlog=" + getBacklog();
     }
 }
@@ -0,0 +1,238 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceTile;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The connection a relay keeps to the server above it.  A relay is a
+ * server that takes no changes of its own: it logs in to its upstream
+ * server, the origin or another relay, as one client and serves the board
+ * it is sent to its own clients.  So the origin only sends each change to
+ * its relays, and each relay to its clients, and relays may be chained
+ * into a tree as deep as needed.
+ *
+ * The uplink logs in with a RELAY request carrying the key the upstream
+ * server's relays share, which gets it the whole board in one frame, and
+ * installs that board in the relay's sequencer.  Every change it is sent
+ * after that is handed to the sequencer, which applies it with its time
+ * and owner and broadcasts it to the relay's clients.  The relay numbers
+ * the changes itself, so its clients resume against the relay.
+ *
+ * The relay's clients' changes are queued and sent upstream as
+ * RELAY_CHANGEs in their owners' names, and come back down like any other
+ * change once the origin applied them.  The uplink reconnects until it is
+ * closed, resuming from the last change it was sent.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class RelayUplink implements Runnable, Closeable {
+    private static final int RECONNECT_MS = 1000;
+    /** The most changes waiting to be sent upstream */
+    private static final int MAX_QUEUED = 65536;
+
+    private final InetSocketAddress upstream;
+    private final String key;
+    private final String userName;
+    private final BoardSequencer sequencer;
+    private final int dim;
+    private final BlockingQueue<PlaceTile> outbox;
+    /** The upstream stream once logged in, or null */
+    private volatile OutputStream out;
+    private volatile Socket socket;
+    private volatile boolean running;
+    private volatile Thread writer;
+
+    /**
+     * Creates an uplink.
+     *
+     * @param upstream the upstream server's address, unresolved
+     * @param key the key the upstream server's relays share
+     * @param userName the name the relay logs in upstream with
+     * @param sequencer the relay's sequencer
+     * @param dim the square dimension of the board
+     */
+    public RelayUplink(InetSocketAddress upstream, String key, String userName, BoardSequencer sequencer, int dim) {
+        this.upstream = upstream;
+        this.key = key;
+        this.userName = userName;
+        this.sequencer = sequencer;
+        this.dim = dim;
+        this.outbox = new ArrayBlockingQueue<>(MAX_QUEUED);
+        this.running = true;
+    }
+
+    /**
+     * Queues a change of one of the relay's clients to be sent upstream.
+     *
+     * @param tile the tile, owned by the client
+     * @return false if the relay is not logged in upstream or too many changes are waiting
+     */
+    public boolean forward(PlaceTile tile) {
+        return this.out != null && this.outbox.offer(tile);
+    }
+
+    /**
+     * Follows the upstream server until the uplink is closed.
+     */
+    @Override
+    public void run() {
+        Thread t = new Thread(this::send, "place-relay-up");
+        t.setDaemon(true);
+        this.writer = t;
+        t.start();
+        boolean reported = false;
+        long resume = 0;
+        PlaceBoard owners = null;
+        while (this.running) {
+            try (Socket s = new Socket(this.upstream.getHostString(), this.upstream.getPort())) {
+                s.setTcpNoDelay(true);
+                this.socket = s;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+                OutputStream out = new BufferedOutputStream(s.getOutputStream());
+                PlaceExchange.writeRequest(out, new PlaceRequest<>(PlaceRequest.RequestType.RELAY, this.key), null);
+                if (owners != null && resume > 0) {
+                    PlaceExchange.writeRequest(out, new PlaceRequest<>(PlaceRequest.RequestType.RESUME, resume), null);
+                }
+                PlaceExchange.writeRequest(out, new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, this.userName), null);
+                reported = false;
+                while (true) {
+                    PlaceRequest<?> req = PlaceExchange.readRequest(in, owners, PlaceExchange.MAX_SERVER_FRAME);
+                    switch (req.getType()) {
+                        case LOGIN_SUCCESS:
+                            PlaceBoard board = (PlaceBoard) req.getData();
+                            if (board.DIM != this.dim) {
+                                System.out.println("The upstream board is " + board.DIM + " by " + board.DIM
+                                        + ", not " + this.dim + " by " + this.dim);
+                                this.running = false;
+                                return;
+                            }
+                            owners = board;
+                            resume = board.getSequence();
+                            install(new PlaceBoard(board));
+                            this.out = out;
+                            System.out.println("Relaying " + this.upstream.getHostString() + ":"
+                                    + this.upstream.getPort() + " from change " + resume);
+                            break;
+                        case TILE_CHANGED:
+                            resume = Math.max(resume, apply(req.getTile()));
+                            this.out = out;
+                            break;
+                        case TILE_BATCH:
+                        case CHUNK:
+                            for (PlaceTile tile : req.getTiles()) {
+                                resume = Math.max(resume, apply(tile));
+                            }
+                            this.out = out;
+                            break;
+                        case ERROR:
+                            System.out.println("Upstream: " + req.getData());
+                            break;
+                        default:
+                            //The exchange already added any new owner to the board.
+                            break;
+                    }
+                }
+            } catch (IOException e) {
+                if (!reported && this.running) {
+                    String why = e.getMessage() == null ? "connection closed" : e.getMessage();
+                    System.out.println("Lost the upstream server at " + this.upstream.getHostString() + ":"
+                            + this.upstream.getPort() + ": " + why);
+                    reported = true;
+                }
+            } finally {
+                this.out = null;
+                this.socket = null;
+            }
+            try {
+                Thread.sleep(RECONNECT_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Replaces the relay's board with the upstream board.  The relay's
+     * changes go on being numbered after the ones before, so none of its
+     * clients resumes into the new board.
+     *
+     * @param board a copy of the upstream board
+     */
+    private void install(PlaceBoard board) {
+        this.sequencer.execute(() -> this.sequencer.install(
+                new BoardSnapshot(board, this.sequencer.getSequence() + 1, 0, -1)));
+    }
+
+    /**
+     * Hands an upstream change to the relay's sequencer.
+     *
+     * @param tile the tile
+     * @return the upstream sequence number of the change
+     */
+    private long apply(PlaceTile tile) {
+        long sequence = tile.getSequence();
+        tile.setSequence(0);
+        this.sequencer.execute(() -> this.sequencer.applyRemote(tile, true));
+        return sequence;
+    }
+
+    /**
+     * Sends the queued changes upstream until the uplink is closed.
+     * Changes queued while the relay is not logged in are dropped.
+     */
+    private void send() {
+        while (this.running) {
+            try {
+                PlaceTile tile = this.outbox.take();
+                OutputStream out = this.out;
+                if (out == null) {
+                    continue;
+                }
+                ByteBuffer frame = PlaceExchange.encode(
+                        new PlaceRequest<>(PlaceRequest.RequestType.RELAY_CHANGE, tile), null);
+                out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                if (this.outbox.isEmpty()) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                //The reader notices the connection is gone and reconnects.
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops following the upstream server.
+     */
+    @Override
+    public void close() {
+        this.running = false;
+        Socket s = this.socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                //squash
+            }
+        }
+        Thread t = this.writer;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceTile;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Keeps a replica's board in step with its primary's.  The feed connects
+ * to the primary's {@link ReplicationSource} and hands every change it is
+ * sent to the replica's sequencer, which applies it with the primary's
+ * sequence number and time and broadcasts it to the replica's clients.
+ * A snapshot replaces the replica's whole board.
+ *
+ * The feed connects with the primary's replication key and reconnects
+ * until it is closed, each time saying which change the replica applied
+ * last, so a replica that lost its primary for a while only gets the
+ * changes it missed if the primary still has them.
+ * A replica that just started has applied none of the primary's changes
+ * and always starts from a snapshot.
+ *
+ * How many changes the replica is behind, and how long after the primary
+ * applied them its changes are applied, go into the {@link ServerMetrics}.
+ * The delay is read from the two servers' clocks, so it is only as good
+ * as they are in step.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class ReplicaFeed implements Runnable, Closeable {
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final int RECONNECT_MS = 1000;
+
+    private final InetSocketAddress primary;
+    private final String key;
+    private final BoardSequencer sequencer;
+    private final ServerMetrics metrics;
+    private final int dim;
+    /** Whether the replica's board has been the primary's since its first snapshot */
+    private volatile boolean following;
+    private volatile boolean running;
+    private volatile Socket socket;
+
+    /**
+     * Creates a feed.
+     *
+     * @param primary the primary's replication address, unresolved
+     * @param key the primary's replication key
+     * @param sequencer the replica's sequencer
+     * @param metrics where to record the lag
+     * @param dim the square dimension of the board
+     */
+    public ReplicaFeed(InetSocketAddress primary, String key, BoardSequencer sequencer, ServerMetrics metrics,
+            int dim) {
+        this.primary = primary;
+        this.key = key;
+        this.sequencer = sequencer;
+        this.metrics = metrics;
+        this.dim = dim;
+        this.running = true;
+    }
+
+    /**
+     * Follows the primary until the feed is closed.
+     */
+    @Override
+    public void run() {
+        boolean reported = false;
+        while (this.running) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress(this.primary.getHostString(), this.primary.getPort()),
+                        CONNECT_TIMEOUT_MS);
+                s.setTcpNoDelay(true);
+                this.socket = s;
+                DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+                out.writeInt(ReplicationSource.MAGIC);
+                out.writeInt(this.dim);
+                out.writeLong(this.following ? this.sequencer.getSequence() : 0);
+                out.writeUTF(this.key);
+                out.flush();
+                System.out.println("Following the primary at " + this.primary.getHostString() + ":" + this.primary.getPort());
+                reported = false;
+                follow(in, out);
+            } catch (IOException e) {
+                if (!reported && this.running) {
+                    System.out.println("Lost the primary at " + this.primary.getHostString() + ":" + this.primary.getPort()
+                            + ": " + e.getMessage());
+                    reported = true;
+                }
+            } finally {
+                this.socket = null;
+            }
+            try {
+                Thread.sleep(RECONNECT_MS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads the primary's messages until the connection ends.
+     *
+     * @param in the primary's stream
+     * @param out the stream heartbeats are answered on
+     * @throws IOException if the connection ends or a message is bad
+     */
+    private void follow(DataInputStream in, DataOutputStream out) throws IOException {
+        while (true) {
+            byte type = in.readByte();
+            switch (type) {
+                case ReplicationSource.SNAPSHOT:
+                    long sequence = in.readLong();
+                    long time = in.readLong();
+                    PlaceBoard board = PlaceBoard.readFrom(in, this.dim, true);
+                    BoardSnapshot snapshot = new BoardSnapshot(board, sequence, time, -1);
+                    this.sequencer.execute(() -> this.sequencer.install(snapshot));
+                    this.following = true;
+                    System.out.println("Installed the primary's board at change " + sequence);
+                    break;
+                case ReplicationSource.CHANGE:
+                    PlaceTile tile = ReplicationSource.readChange(in, this.dim);
+                    this.sequencer.execute(() -> {
+                        //A reconnect may send again changes that were still waiting to be applied.
+                        if (tile.getSequence() > this.sequencer.getSequence()) {
+                            this.sequencer.applyRemote(tile, true);
+                            this.metrics.replicated(System.currentTimeMillis() - tile.getTime());
+                        }
+                    });
+                    this.following = true;
+                    break;
+                case ReplicationSource.HEARTBEAT:
+                    long latest = in.readLong();
+                    long applied = this.sequencer.getSequence();
+                    this.metrics.replicaLag(Math.max(0, latest - applied));
+                    out.writeLong(applied);
+                    out.flush();
+                    break;
+                default:
+                    throw new IOException("Unknown replication message " + type);
+            }
+        }
+    }
+
+    /**
+     * Stops following the primary.
+     */
+    @Override
+    public void close() {
+        this.running = false;
+        Socket s = this.socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                //squash
+            }
+        }
+    }
+}
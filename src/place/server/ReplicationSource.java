@@ -0,0 +1,373 @@
+package place.server;
+
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ships a primary server's applied changes to its replicas, read-only
+ * servers that keep their own copy of the board for spectators (see
+ * {@link ReplicaFeed}).
+ *
+ * A replica connects to the replication port, which is only opened on the
+ * replication host, with the replication key and says which change it
+ * applied last.  A connection with any other key is closed.  If the
+ * sequencer still keeps every change since, the replica gets just those,
+ * otherwise it gets a snapshot of the board first.  From then on it gets
+ * every change in the order the sequencer applied it, with its sequence
+ * number, so the replica's board is always the primary's board as of some
+ * change.
+ *
+ * Changes are encoded once on the sequencer thread and queued for each
+ * replica, a writer thread per replica sends them.  A replica that falls
+ * too far behind is disconnected and catches up from a snapshot when it
+ * reconnects.  Every second a replica is also sent the primary's latest
+ * sequence number and answers with its own, which is how far behind each
+ * replica is reported.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class ReplicationSource implements Closeable {
+    /** What a replica says first, with the board's dimension and its last change */
+    static final int MAGIC = 0x504C5250;
+    static final byte SNAPSHOT = 1;
+    static final byte CHANGE = 2;
+    static final byte HEARTBEAT = 3;
+    /** The most changes waiting to be sent to one replica */
+    private static final int MAX_QUEUED = 65536;
+    private static final int HEARTBEAT_MS = 1000;
+
+    /**
+     * A connected replica.
+     */
+    private static class Replica {
+        private final Socket socket;
+        private final String name;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(MAX_QUEUED);
+        /** The last change the replica said it applied */
+        private volatile long applied;
+        private volatile boolean closed;
+
+        private Replica(Socket socket, long applied) {
+            this.socket = socket;
+            this.name = String.valueOf(socket.getRemoteSocketAddress());
+            this.applied = applied;
+        }
+
+        /**
+         * Queues a change, or disconnects the replica if it is too far behind.
+         */
+        private void offer(byte[] change) {
+            if (!this.closed && !this.queue.offer(change)) {
+                System.out.println("Replica " + this.name + " is too far behind, disconnecting it");
+                close();
+            }
+        }
+
+        private void close() {
+            this.closed = true;
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                //squash
+            }
+        }
+    }
+
+    private final BoardSequencer sequencer;
+    private final int dim;
+    private final String key;
+    private final ServerSocket server;
+    /** The replicas changes are queued for, only touched by the sequencer thread */
+    private final List<Replica> replicas;
+    /** Every connected replica, for the lag report */
+    private final Set<Replica> connected;
+    private final AtomicInteger count;
+
+    /**
+     * Opens the replication port.
+     *
+     * @param sequencer the sequencer whose changes are shipped, not started yet
+     * @param dim the square dimension of the board
+     * @param host the address the port is opened on
+     * @param port the port replicas connect to
+     * @param key the key replicas connect with
+     * @throws IOException if the port can't be opened
+     */
+    public ReplicationSource(BoardSequencer sequencer, int dim, String host, int port, String key)
+            throws IOException {
+        this.sequencer = sequencer;
+        this.dim = dim;
+        this.key = key;
+        this.server = new ServerSocket(port, 50, InetAddress.getByName(host));
+        this.replicas = new ArrayList<>();
+        this.connected = ConcurrentHashMap.newKeySet();
+        this.count = new AtomicInteger();
+        System.out.println("Replication on " + this.server);
+    }
+
+    /**
+     * Ships the sequencer's changes through this source and starts
+     * accepting replicas.  Must be called before the sequencer thread
+     * starts.
+     */
+    public void start() {
+        this.sequencer.setReplication(this);
+        daemon(this::accept, "place-replication").start();
+    }
+
+    /**
+     * Makes a daemon thread.
+     */
+    private static Thread daemon(Runnable task, String name) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Accepts replicas until closed.
+     */
+    private void accept() {
+        while (!this.server.isClosed()) {
+            try {
+                Socket socket = this.server.accept();
+                daemon(() -> serve(socket), "place-replication-" + this.count.incrementAndGet()).start();
+            } catch (IOException e) {
+                if (!this.server.isClosed()) {
+                    System.out.println("Replication: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues an applied change for every replica.  Called by the
+     * sequencer thread, after the change got its sequence number.
+     *
+     * @param tile the tile
+     */
+    void append(PlaceTile tile) {
+        if (this.replicas.isEmpty()) {
+            return;
+        }
+        byte[] change = encode(tile);
+        Iterator<Replica> it = this.replicas.iterator();
+        while (it.hasNext()) {
+            Replica replica = it.next();
+            replica.offer(change);
+            if (replica.closed) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Catches a replica up and then sends it the changes as they are
+     * applied, until it goes away.
+     *
+     * @param socket the replica's connection
+     */
+    private void serve(Socket socket) {
+        Replica replica = null;
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+            int magic = in.readInt();
+            int dim = in.readInt();
+            long from = in.readLong();
+            if (magic != MAGIC || dim != this.dim) {
+                throw new IOException("Not a replica of a " + this.dim + " board: " + s.getRemoteSocketAddress());
+            }
+            if (!this.key.equals(in.readUTF())) {
+                throw new IOException("Wrong replication key from " + s.getRemoteSocketAddress());
+            }
+            Replica r = new Replica(s, from);
+            replica = r;
+            //Attaching on the sequencer thread puts the changes since from, or
+            //the snapshot after it, exactly before the next change queued.
+            CompletableFuture<Boolean> caughtUp = new CompletableFuture<>();
+            this.sequencer.execute(() -> {
+                List<PlaceTile> missed = this.sequencer.changesSince(from);
+                if (missed != null) {
+                    for (PlaceTile tile : missed) {
+                        r.offer(encode(tile));
+                    }
+                }
+                this.replicas.add(r);
+                caughtUp.complete(missed != null);
+            });
+            long skip = 0;
+            if (!caughtUp.get()) {
+                BoardSnapshot snapshot = this.sequencer.snapshot().get();
+                out.writeByte(SNAPSHOT);
+                out.writeLong(snapshot.getSequence());
+                out.writeLong(snapshot.getTime());
+                snapshot.getBoard().writeTo(out, true);
+                skip = snapshot.getSequence();
+                r.applied = skip;
+                System.out.println("Replica " + r.name + " sent the board at change " + skip);
+            } else {
+                System.out.println("Replica " + r.name + " resumed after change " + from);
+            }
+            this.connected.add(r);
+            daemon(() -> readAcks(r, in), Thread.currentThread().getName() + "-acks").start();
+            send(r, out, skip);
+        } catch (EOFException e) {
+            //The replica went away, it reconnects when it is back.
+        } catch (IOException | ExecutionException e) {
+            System.out.println("Replication: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (replica != null) {
+                replica.close();
+                this.connected.remove(replica);
+            }
+        }
+    }
+
+    /**
+     * Writes a replica's queued changes, and a heartbeat every second.
+     *
+     * @param replica the replica
+     * @param out its stream
+     * @param skip the changes up to this one are already in the snapshot it was sent
+     */
+    private void send(Replica replica, DataOutputStream out, long skip) throws IOException, InterruptedException {
+        long heartbeat = 0;
+        while (!replica.closed) {
+            byte[] change = replica.queue.poll();
+            if (change == null) {
+                out.flush();
+                change = replica.queue.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+            }
+            if (change != null && ByteBuffer.wrap(change).getLong(1) > skip) {
+                out.write(change);
+            }
+            long now = System.currentTimeMillis();
+            if (now - heartbeat >= HEARTBEAT_MS) {
+                out.writeByte(HEARTBEAT);
+                out.writeLong(this.sequencer.getSequence());
+                heartbeat = now;
+            }
+        }
+    }
+
+    /**
+     * Reads the sequence numbers a replica answers heartbeats with.
+     *
+     * @param replica the replica
+     * @param in its stream
+     */
+    private void readAcks(Replica replica, DataInputStream in) {
+        try {
+            while (!replica.closed) {
+                replica.applied = in.readLong();
+            }
+        } catch (IOException e) {
+            replica.close();
+        }
+    }
+
+    /**
+     * Encodes an applied change.
+     *
+     * @param tile the tile, with its sequence number
+     * @return the message
+     */
+    private static byte[] encode(PlaceTile tile) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(48);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(CHANGE);
+            out.writeLong(tile.getSequence());
+            out.writeInt(tile.getRow());
+            out.writeInt(tile.getCol());
+            out.writeByte(tile.getColor().getNumber());
+            out.writeUTF(tile.getOwner() == null ? "" : tile.getOwner());
+            out.writeLong(tile.getTime());
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a change written by {@link #encode}, after its type.
+     *
+     * @param in the stream
+     * @param dim the square dimension of the board
+     * @return the tile, with its sequence number
+     * @throws IOException if it can't be read or is not on the board
+     */
+    static PlaceTile readChange(DataInputStream in, int dim) throws IOException {
+        long sequence = in.readLong();
+        int row = in.readInt();
+        int col = in.readInt();
+        int color = in.readUnsignedByte();
+        String owner = in.readUTF();
+        long time = in.readLong();
+        if (row < 0 || row >= dim || col < 0 || col >= dim || color >= PlaceColor.TOTAL_COLORS) {
+            throw new IOException("Bad tile " + row + "," + col + " color " + color);
+        }
+        PlaceTile tile = new PlaceTile(row, col, owner, PlaceColor.getPlaceColor(color), time);
+        tile.setSequence(sequence);
+        return tile;
+    }
+
+    /**
+     * Gets how many changes each connected replica is behind.
+     *
+     * @return the changes behind by replica address
+     */
+    public Map<String, Long> getLags() {
+        long sequence = this.sequencer.getSequence();
+        Map<String, Long> lags = new TreeMap<>();
+        for (Replica replica : this.connected) {
+            lags.put(replica.name, Math.max(0, sequence - replica.applied));
+        }
+        return lags;
+    }
+
+    /**
+     * Stops accepting replicas and disconnects them.
+     */
+    @Override
+    public void close() {
+        try {
+            this.server.close();
+        } catch (IOException e) {
+            //squash
+        }
+        for (Replica replica : this.connected) {
+            replica.close();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package place.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Which node of a cluster owns each region of the board.  The board is cut
+ * into side by side square regions, the shards, numbered row by row.  At
+ * first the shards are dealt out to the nodes in turn.
+ *
+ * Every shard has an epoch that goes up by one each time the shard moves
+ * to another node, so there is only ever one owner for an epoch and the
+ * newer of two entries for a shard is the one with the higher epoch.
+ *
+ * A table is not thread safe, the {@link ClusterNode} only touches it on
+ * the sequencer thread.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class RoutingTable {
+    private final int dim;
+    /** The number of shards along each side of the board */
+    private final int side;
+    private final int nodes;
+    private final int[] owners;
+    private final int[] epochs;
+
+    /**
+     * Creates the starting table.
+     *
+     * @param dim the square dimension of the board
+     * @param side the number of shards along each side of the board
+     * @param nodes the number of nodes in the cluster
+     */
+    public RoutingTable(int dim, int side, int nodes) {
+        this.dim = dim;
+        this.side = side;
+        this.nodes = nodes;
+        this.owners = new int[side * side];
+        this.epochs = new int[side * side];
+        for (int shard = 0; shard < this.owners.length; shard++) {
+            this.owners[shard] = shard % nodes;
+        }
+    }
+
+    /**
+     * Gets the shard a tile is in.
+     *
+     * @param row the tile's row
+     * @param col the tile's column
+     * @return the shard
+     */
+    public int shardOf(int row, int col) {
+        return (int) ((long) row * this.side / this.dim) * this.side + (int) ((long) col * this.side / this.dim);
+    }
+
+    /**
+     * Gets the first row of a shard.
+     *
+     * @param shard the shard
+     * @return the row
+     */
+    public int firstRow(int shard) {
+        return edge(shard / this.side);
+    }
+
+    /**
+     * Gets the row after the last row of a shard.
+     *
+     * @param shard the shard
+     * @return the row
+     */
+    public int endRow(int shard) {
+        return edge(shard / this.side + 1);
+    }
+
+    /**
+     * Gets the first column of a shard.
+     *
+     * @param shard the shard
+     * @return the column
+     */
+    public int firstCol(int shard) {
+        return edge(shard % this.side);
+    }
+
+    /**
+     * Gets the column after the last column of a shard.
+     *
+     * @param shard the shard
+     * @return the column
+     */
+    public int endCol(int shard) {
+        return edge(shard % this.side + 1);
+    }
+
+    /**
+     * Gets where a band of shards starts, the inverse of {@link #shardOf}.
+     *
+     * @param band the band of rows or columns
+     * @return the first row or column in it
+     */
+    private int edge(int band) {
+        return (int) (((long) band * this.dim + this.side - 1) / this.side);
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int getShardCount() { return this.owners.length; }
+
+    /**
+     * @return the number of nodes in the cluster
+     */
+    public int getNodeCount() { return this.nodes; }
+
+    /**
+     * @param shard the shard
+     * @return the node that owns the shard
+     */
+    public int getOwner(int shard) { return this.owners[shard]; }
+
+    /**
+     * @param shard the shard
+     * @return how many times the shard has moved
+     */
+    public int getEpoch(int shard) { return this.epochs[shard]; }
+
+    /**
+     * Moves a shard.
+     *
+     * @param shard the shard
+     * @param owner the node that owns it now
+     * @param epoch its new epoch
+     */
+    public void set(int shard, int owner, int epoch) {
+        this.owners[shard] = owner;
+        this.epochs[shard] = epoch;
+    }
+
+    /**
+     * Works out the moves that leave every node with the same number of
+     * shards, give or take one.  Shards are taken from the node with the
+     * most and given to the node with the fewest until they are even.
+     *
+     * @return the moves, each a shard and the node to move it to
+     */
+    public List<int[]> plan() {
+        int[] counts = new int[this.nodes];
+        for (int owner : this.owners) {
+            counts[owner]++;
+        }
+        int[] owners = this.owners.clone();
+        List<int[]> moves = new ArrayList<>();
+        while (true) {
+            int most = 0;
+            int fewest = 0;
+            for (int node = 1; node < this.nodes; node++) {
+                if (counts[node] > counts[most]) {
+                    most = node;
+                }
+                if (counts[node] < counts[fewest]) {
+                    fewest = node;
+                }
+            }
+            if (counts[most] - counts[fewest] <= 1) {
+                return moves;
+            }
+            int shard = owners.length - 1;
+            while (owners[shard] != most) {
+                shard--;
+            }
+            owners[shard] = fewest;
+            counts[most]--;
+            counts[fewest]++;
+            moves.add(new int[]{shard, fewest});
+        }
+    }
+
+    /**
+     * Lists the shards, one per line, with their regions, owners and epochs.
+     *
+     * @return the table
+     */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (int shard = 0; shard < this.owners.length; shard++) {
+            out.append(String.format("shard %d rows %d-%d cols %d-%d node %d epoch %d%n", shard,
+                    firstRow(shard), endRow(shard) - 1, firstCol(shard), endCol(shard) - 1,
+                    this.owners[shard], this.epochs[shard]));
+        }
+        return out.toString();
+    }
+}
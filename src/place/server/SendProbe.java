@@ -0,0 +1,57 @@
+package place.server;
+
+import place.network.Tracer;
+
+/**
+ * Times how long frames wait in a client's queue before they are written.
+ * Timing every frame would cost an object per frame per client, so only
+ * one frame is timed at a time: the first one queued once the last timed
+ * frame has been written.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+class SendProbe {
+    private final ServerMetrics metrics;
+    /** The frame being timed, or null */
+    private volatile Object frame;
+    /** When it was queued */
+    private volatile long queued;
+
+    /**
+     * Creates a probe.
+     *
+     * @param metrics where to record the times
+     */
+    SendProbe(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Called when a frame is queued, starts timing it if no other frame is.
+     *
+     * @param frame the frame as queued
+     */
+    void queued(Object frame) {
+        if (this.frame == null) {
+            this.queued = System.nanoTime();
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Called when a frame has been written, records its time if it is the
+     * one being timed.
+     *
+     * @param frame the frame as queued
+     */
+    void written(Object frame) {
+        if (frame == this.frame) {
+            long nanos = System.nanoTime() - this.queued;
+            this.metrics.frameSent(nanos);
+            if (this.metrics.getTracer().sample()) {
+                this.metrics.getTracer().record(Tracer.Stage.SERVER_FLUSH, nanos, 0);
+            }
+            this.frame = null;
+        }
+    }
+}
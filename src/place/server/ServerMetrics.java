@@ -0,0 +1,416 @@
+package place.server;
+
+import place.LatencyHistogram;
+import place.network.Tracer;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * What the server has been doing: how many tile changes were accepted,
+ * rejected and applied, how long applying and broadcasting them takes,
+ * how long frames wait before they are written to clients, how long
+ * logins take and how many clients are logged in.  A primary also reports
+ * how far behind each of its replicas is, and a replica how far behind
+ * its primary it is.
+ *
+ * Counts are striped {@link LongAdder}s and durations go into
+ * {@link LatencyHistogram}s, so recording is cheap and never blocks the
+ * sequencer or the client threads.  The metrics are read through JMX, or
+ * as text from the {@link MetricsEndpoint}, along with the stages of the
+ * changes the {@link Tracer} follows.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    /** The JMX name the metrics are registered under */
+    public static final String OBJECT_NAME = "place.server:type=ServerMetrics";
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder loginsRejected = new LongAdder();
+    private final LatencyHistogram apply = new LatencyHistogram();
+    private final LatencyHistogram fanout = new LatencyHistogram();
+    private final LatencyHistogram send = new LatencyHistogram();
+    private final LatencyHistogram login = new LatencyHistogram();
+    private final LatencyHistogram replication = new LatencyHistogram();
+    /** The logged in clients, or null */
+    private final SessionRegistry sessions;
+    /** Follows a sample of the changes through the server */
+    private final Tracer tracer;
+    /** Ships this server's changes to its replicas, or null */
+    private volatile ReplicationSource replicas;
+    /** Whether this server is a replica */
+    private volatile boolean replica;
+    /** The changes this replica was behind its primary at the last heartbeat */
+    private volatile long replicaLag;
+
+    /** The counts at the last sample, only touched by the sampling thread */
+    private long lastAccepted;
+    private long lastRejected;
+    private long lastApplied;
+    private long lastSample;
+    private volatile double acceptedRate;
+    private volatile double rejectedRate;
+    private volatile double appliedRate;
+
+    /**
+     * Creates the metrics of a server.
+     *
+     * @param sessions the logged in clients, or null to leave out the session and backlog metrics
+     * @param tracer follows a sample of the changes through the server
+     */
+    public ServerMetrics(SessionRegistry sessions, Tracer tracer) {
+        this.sessions = sessions;
+        this.tracer = tracer;
+        this.lastSample = System.nanoTime();
+    }
+
+    /**
+     * Creates the metrics of a server that traces nothing.
+     *
+     * @param sessions the logged in clients, or null to leave out the session and backlog metrics
+     */
+    public ServerMetrics(SessionRegistry sessions) {
+        this(sessions, Tracer.OFF);
+    }
+
+    /**
+     * Gets the tracer that follows a sample of the changes through the server.
+     *
+     * @return the tracer
+     */
+    public Tracer getTracer() {
+        return this.tracer;
+    }
+
+    /**
+     * Counts a tile change handed to the sequencer.
+     */
+    public void changeAccepted() {
+        this.accepted.increment();
+    }
+
+    /**
+     * Counts a tile change that was refused.
+     */
+    public void changeRejected() {
+        this.rejected.increment();
+    }
+
+    /**
+     * Counts a tile change applied to the board.
+     *
+     * @param nanos how long applying it took
+     */
+    public void changeApplied(long nanos) {
+        this.applied.increment();
+        this.apply.record(nanos);
+    }
+
+    /**
+     * Records how long a broadcast took to hand to every client.
+     *
+     * @param nanos the duration
+     */
+    public void fanout(long nanos) {
+        this.fanout.record(nanos);
+    }
+
+    /**
+     * Records how long a frame waited before it was written to a client.
+     *
+     * @param nanos the duration
+     */
+    public void frameSent(long nanos) {
+        this.send.record(nanos);
+    }
+
+    /**
+     * Counts a login.
+     *
+     * @param nanos how long it took from accepting the connection
+     */
+    public void loggedIn(long nanos) {
+        this.logins.increment();
+        this.login.record(nanos);
+    }
+
+    /**
+     * Counts a refused login.
+     */
+    public void loginRejected() {
+        this.loginsRejected.increment();
+    }
+
+    /**
+     * Sets where this server's changes are shipped to its replicas, so
+     * their lag is reported.
+     *
+     * @param replicas the replication source
+     */
+    public void setReplicas(ReplicationSource replicas) {
+        this.replicas = replicas;
+    }
+
+    /**
+     * Records how far behind its primary this replica is.
+     *
+     * @param changes the changes the primary had applied that this replica had not
+     */
+    public void replicaLag(long changes) {
+        this.replica = true;
+        this.replicaLag = changes;
+    }
+
+    /**
+     * Records how long after the primary this replica applied a change.
+     *
+     * @param millis the delay, by the two servers' clocks
+     */
+    public void replicated(long millis) {
+        this.replica = true;
+        this.replication.record(Math.max(0, millis) * 1_000_000);
+    }
+
+    /**
+     * Works out the rates since the last call.  The server calls this
+     * once a second.
+     */
+    public void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - this.lastSample) / 1e9;
+        if (seconds <= 0) {
+            return;
+        }
+        long a = this.accepted.sum();
+        long r = this.rejected.sum();
+        long p = this.applied.sum();
+        this.acceptedRate = (a - this.lastAccepted) / seconds;
+        this.rejectedRate = (r - this.lastRejected) / seconds;
+        this.appliedRate = (p - this.lastApplied) / seconds;
+        this.lastAccepted = a;
+        this.lastRejected = r;
+        this.lastApplied = p;
+        this.lastSample = now;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server.
+     *
+     * @throws JMException if they can't be registered, such as when another server in the JVM already has
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    /**
+     * Takes the metrics out of the platform MBean server again.
+     */
+    public void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format.
+     *
+     * @return the text
+     */
+    public String toText() {
+        StringBuilder out = new StringBuilder();
+        counter(out, "place_changes_accepted_total", "Tile changes handed to the sequencer", this.accepted.sum());
+        counter(out, "place_changes_rejected_total", "Tile changes refused", this.rejected.sum());
+        counter(out, "place_changes_applied_total", "Tile changes applied to the board", this.applied.sum());
+        out.append("# HELP place_changes_per_second Tile changes in the last second\n");
+        out.append("# TYPE place_changes_per_second gauge\n");
+        out.append(String.format(Locale.ROOT, "place_changes_per_second{result=\"accepted\"} %.1f%n", this.acceptedRate));
+        out.append(String.format(Locale.ROOT, "place_changes_per_second{result=\"rejected\"} %.1f%n", this.rejectedRate));
+        out.append(String.format(Locale.ROOT, "place_changes_per_second{result=\"applied\"} %.1f%n", this.appliedRate));
+        summary(out, "place_apply_seconds", "Time to apply a tile change to the board", this.apply);
+        summary(out, "place_fanout_seconds", "Time to hand a broadcast to every client", this.fanout);
+        summary(out, "place_send_seconds", "Time from queueing a frame for a client to writing it", this.send);
+        summary(out, "place_login_seconds", "Time from accepting a connection to logging it in", this.login);
+        counter(out, "place_logins_total", "Clients logged in", this.logins.sum());
+        counter(out, "place_logins_rejected_total", "Logins refused", this.loginsRejected.sum());
+        if (this.sessions != null) {
+            gauge(out, "place_sessions", "Clients logged in now", getActiveSessions());
+            gauge(out, "place_backlog_frames", "Frames waiting to be written, over every client", getTotalBacklog());
+            gauge(out, "place_backlog_frames_max", "Most frames waiting to be written for one client", getMaxBacklog());
+        }
+        if (this.replica) {
+            gauge(out, "place_replica_lag_changes", "Changes the primary applied that this replica has not",
+                    this.replicaLag);
+            summary(out, "place_replica_delay_seconds", "Time from the primary applying a change to this replica",
+                    this.replication);
+        }
+        ReplicationSource replicas = this.replicas;
+        if (replicas != null) {
+            out.append("# HELP place_replicas_lag_changes Changes each replica has not applied yet\n");
+            out.append("# TYPE place_replicas_lag_changes gauge\n");
+            for (Map.Entry<String, Long> lag : replicas.getLags().entrySet()) {
+                out.append("place_replicas_lag_changes{replica=\"").append(lag.getKey()).append("\"} ")
+                        .append(lag.getValue()).append('\n');
+            }
+        }
+        if (this.tracer.isEnabled()) {
+            out.append("# HELP place_trace_seconds Stages of the traced tile changes\n");
+            out.append("# TYPE place_trace_seconds summary\n");
+            for (Tracer.Stage stage : Tracer.Stage.values()) {
+                if (stage.name().startsWith("SERVER")) {
+                    quantiles(out, "place_trace_seconds", "stage=\"" + stage.name().toLowerCase(Locale.ROOT) + "\",",
+                            this.tracer.get(stage));
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes a counter.
+     */
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Writes a gauge.
+     */
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Writes a histogram as a summary in seconds.
+     */
+    private static void summary(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" summary\n");
+        quantiles(out, name, "", histogram);
+    }
+
+    /**
+     * Writes the values of a summary in seconds.
+     *
+     * @param labels the labels of the summary followed by a comma, or nothing
+     */
+    private static void quantiles(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        for (String quantile : new String[]{"0.5", "0.9", "0.99", "0.999"}) {
+            out.append(String.format(Locale.ROOT, "%s{%squantile=\"%s\"} %.9f%n", name, labels, quantile,
+                    histogram.getPercentile(Double.parseDouble(quantile)) / 1e9));
+        }
+        String own = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.append(String.format(Locale.ROOT, "%s_sum%s %.9f%n", name, own, histogram.getSum() / 1e9));
+        out.append(name).append("_count").append(own).append(' ').append(histogram.getCount()).append('\n');
+        out.append(String.format(Locale.ROOT, "%s_max%s %.9f%n", name, own, histogram.getMax() / 1e9));
+    }
+
+    @Override
+    public long getChangesAccepted() { return this.accepted.sum(); }
+
+    @Override
+    public long getChangesRejected() { return this.rejected.sum(); }
+
+    @Override
+    public long getChangesApplied() { return this.applied.sum(); }
+
+    @Override
+    public double getAcceptedPerSecond() { return this.acceptedRate; }
+
+    @Override
+    public double getRejectedPerSecond() { return this.rejectedRate; }
+
+    @Override
+    public double getAppliedPerSecond() { return this.appliedRate; }
+
+    @Override
+    public double getApplyMicrosP50() { return this.apply.getPercentile(0.5) / 1e3; }
+
+    @Override
+    public double getApplyMicrosP99() { return this.apply.getPercentile(0.99) / 1e3; }
+
+    @Override
+    public double getFanoutMicrosP50() { return this.fanout.getPercentile(0.5) / 1e3; }
+
+    @Override
+    public double getFanoutMicrosP99() { return this.fanout.getPercentile(0.99) / 1e3; }
+
+    @Override
+    public double getSendMicrosP50() { return this.send.getPercentile(0.5) / 1e3; }
+
+    @Override
+    public double getSendMicrosP99() { return this.send.getPercentile(0.99) / 1e3; }
+
+    @Override
+    public double getLoginMicrosP50() { return this.login.getPercentile(0.5) / 1e3; }
+
+    @Override
+    public double getLoginMicrosP99() { return this.login.getPercentile(0.99) / 1e3; }
+
+    @Override
+    public long getLogins() { return this.logins.sum(); }
+
+    @Override
+    public long getLoginsRejected() { return this.loginsRejected.sum(); }
+
+    @Override
+    public int getActiveSessions() {
+        return this.sessions == null ? 0 : this.sessions.size();
+    }
+
+    @Override
+    public long getTotalBacklog() {
+        long total = 0;
+        if (this.sessions != null) {
+            for (ClientConnection c : this.sessions.clients()) {
+                total += c.getBacklog();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public int getMaxBacklog() {
+        int max = 0;
+        if (this.sessions != null) {
+            for (ClientConnection c : this.sessions.clients()) {
+                max = Math.max(max, c.getBacklog());
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public long getReplicaLag() { return this.replicaLag; }
+
+    @Override
+    public long getMaxReplicasLag() {
+        ReplicationSource replicas = this.replicas;
+        long max = 0;
+        if (replicas != null) {
+            for (long lag : replicas.getLags().values()) {
+                max = Math.max(max, lag);
+            }
+        }
+        return max;
+    }
+}
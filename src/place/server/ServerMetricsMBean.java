@@ -0,0 +1,73 @@
+package place.server;
+
+/**
+ * The management interface of the {@link ServerMetrics}, registered as
+ * place.server:type=ServerMetrics.  Durations are in microseconds and are
+ * over the whole life of the server, rates are over the last second.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public interface ServerMetricsMBean {
+    /** @return the tile changes handed to the sequencer */
+    long getChangesAccepted();
+
+    /** @return the tile changes refused, for being invalid, cooling down or the server being busy */
+    long getChangesRejected();
+
+    /** @return the tile changes applied to the board */
+    long getChangesApplied();
+
+    /** @return the tile changes accepted in the last second */
+    double getAcceptedPerSecond();
+
+    /** @return the tile changes rejected in the last second */
+    double getRejectedPerSecond();
+
+    /** @return the tile changes applied in the last second */
+    double getAppliedPerSecond();
+
+    /** @return the median time to apply a change to the board */
+    double getApplyMicrosP50();
+
+    /** @return the 99th percentile time to apply a change to the board */
+    double getApplyMicrosP99();
+
+    /** @return the median time to hand a broadcast to every client */
+    double getFanoutMicrosP50();
+
+    /** @return the 99th percentile time to hand a broadcast to every client */
+    double getFanoutMicrosP99();
+
+    /** @return the median time from queueing a frame for a client to writing it */
+    double getSendMicrosP50();
+
+    /** @return the 99th percentile time from queueing a frame for a client to writing it */
+    double getSendMicrosP99();
+
+    /** @return the median time from accepting a connection to logging it in */
+    double getLoginMicrosP50();
+
+    /** @return the 99th percentile time from accepting a connection to logging it in */
+    double getLoginMicrosP99();
+
+    /** @return the clients logged in */
+    long getLogins();
+
+    /** @return the logins refused */
+    long getLoginsRejected();
+
+    /** @return the clients logged in now */
+    int getActiveSessions();
+
+    /** @return the frames waiting to be written, over every client */
+    long getTotalBacklog();
+
+    /** @return the most frames waiting to be written for one client */
+    int getMaxBacklog();
+
+    /** @return the changes the primary applied that this replica had not, at the last heartbeat */
+    long getReplicaLag();
+
+    /** @return the most changes any replica of this server has not applied yet */
+    long getMaxReplicasLag();
+}
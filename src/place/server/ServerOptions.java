@@ -0,0 +1,466 @@
+package place.server;
+
+import place.network.PlaceExchange;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The command line options of the PlaceServer.  The port and the board
+ * dimension come first, any of the optional settings may follow them as
+ * --name=value.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class ServerOptions {
+    /**
+     * How the server handles its client connections.
+     */
+    public enum Mode {
+        /** One blocking platform thread per client */
+        THREADED,
+        /** One blocking virtual thread per client */
+        VIRTUAL,
+        /** A few selector loops shared by all clients */
+        NIO
+    }
+
+    /** The usage message printed for bad arguments */
+    public static final String USAGE =
+            "Usage: java PlaceServer port DIM [--mode=threaded|virtual|nio] [--io-loops=N]"
+                    + " [--max-clients=N] [--max-same-ip=N] [--queue-size=N]"
+                    + " [--rate=CHANGES_PER_SECOND] [--burst=N] [--cooldown-key=user|ip] [--tick=MS]"
+                    + " [--snapshot=full|colors] [--stream-dim=N]"
+                    + " [--journal=PATH] [--fsync=always|interval|os] [--fsync-ms=N]"
+                    + " [--snapshot-every=SECONDS] [--history=KEYFRAME_CHANGES] [--history-blocks=N]"
+                    + " [--resume-window=N] [--login-timeout=MS] [--max-logins=N]"
+                    + " [--metrics-port=N] [--trace=N]"
+                    + " [--cluster=HOST:BUSPORT,HOST:BUSPORT,... --node=N --cluster-key=KEY] [--shards=N]"
+                    + " [--replication-port=N] [--replication-host=HOST] [--replica-of=HOST:REPLICATIONPORT]"
+                    + " [--replication-key=KEY]"
+                    + " [--relay-key=KEY] [--relay-of=HOST:PORT]";
+
+    /** The port the server listens on */
+    private int port;
+    /** The square dimension of the board */
+    private int dim;
+    /** How client connections are handled */
+    private Mode mode = Mode.THREADED;
+    /** The number of selector loops in NIO mode */
+    private int ioLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    /** The most clients logged in at once */
+    private int maxClients = 10;
+    /** The most clients logged in at once from one ip */
+    private int maxSameIp = 3;
+    /** The most frames queued for one client before it is disconnected */
+    private int queueSize = 1024;
+    /** The tile changes per second allowed for each user or ip */
+    private double rate = 2;
+    /** The tile changes allowed at once after a quiet period */
+    private int burst = 1;
+    /** Whether the cooldown is per username or per ip */
+    private boolean cooldownByIp = false;
+    /** How long to collect tile changes before broadcasting them, 0 to send each at once */
+    private int tick = 0;
+    /** Whether login snapshots include the owner and time of every tile */
+    private boolean snapshotMetadata = true;
+    /** The smallest board dimension whose login snapshots are streamed in chunks */
+    private int streamDim = 1024;
+    /** The journal file, or null to keep the board only in memory */
+    private String journal = null;
+    /** When the journal is forced to disk */
+    private TileJournal.FsyncPolicy fsync = TileJournal.FsyncPolicy.INTERVAL;
+    /** How often the journal is forced to disk with the interval policy */
+    private int fsyncMillis = 100;
+    /** How often a journaled board is saved in a snapshot, 0 for never */
+    private int snapshotSeconds = 300;
+    /** How many changes the history records between keyframes, 0 to keep no history */
+    private int historyKeyframe = 0;
+    /** How many blocks of keyframe changes the history keeps */
+    private int historyBlocks = 64;
+    /** How many of the latest changes are kept for reconnecting clients */
+    private int resumeWindow = 65536;
+    /** How long a new connection has to log in before it is dropped */
+    private int loginTimeout = 5000;
+    /** The most connections logging in at once, more are dropped when accepted */
+    private int maxLogins = 256;
+    /** The local port the metrics are served as text on, 0 for none */
+    private int metricsPort = 0;
+    /** Trace about one in this many tile changes, 0 for none */
+    private int trace = 0;
+    /** The bus addresses of the cluster's nodes, or null to run alone */
+    private List<InetSocketAddress> cluster = null;
+    /** This server's place in the cluster */
+    private int node = -1;
+    /** The key the nodes of the cluster and its admins say hello with */
+    private String clusterKey = null;
+    /** The number of shards along each side of the board in a cluster */
+    private int shards = 4;
+    /** The port replicas connect to, 0 for none */
+    private int replicationPort = 0;
+    /** The address the replication port is opened on */
+    private String replicationHost = "localhost";
+    /** The replication address of the primary this server is a replica of, or null */
+    private InetSocketAddress replicaOf = null;
+    /** The key replicas connect with */
+    private String replicationKey = null;
+    /** The key relays log in with, null to take no relays */
+    private String relayKey = null;
+    /** The address of the server this server relays, or null */
+    private InetSocketAddress relayOf = null;
+
+    /**
+     * Parse the command line.
+     *
+     * @param args the command line arguments
+     * @return the options
+     * @throws IllegalArgumentException if the arguments are not valid
+     */
+    public static ServerOptions parse(String[] args) {
+        if (args.length < 2) {
+            throw new IllegalArgumentException(USAGE);
+        }
+        ServerOptions options = new ServerOptions();
+        try {
+            options.port = Integer.parseInt(args[0]);
+            options.dim = Integer.parseInt(args[1]);
+            for (int i = 2; i < args.length; i++) {
+                String arg = args[i];
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("Unknown argument " + arg + "\n" + USAGE);
+                }
+                options.set(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(e.getMessage() + "\n" + USAGE);
+        }
+        if (options.dim <= 0 || options.dim > PlaceExchange.MAX_DIM
+                || options.ioLoops <= 0 || options.maxClients <= 0 || options.maxSameIp <= 0
+                || options.queueSize <= 0 || !(options.rate > 0) || options.burst <= 0
+                || options.tick < 0 || options.streamDim <= 0
+                || options.fsyncMillis <= 0
+                || options.snapshotSeconds < 0
+                || options.historyKeyframe < 0 || options.historyBlocks <= 0
+                || options.resumeWindow < 0
+                || options.loginTimeout <= 0 || options.maxLogins <= 0
+                || options.metricsPort < 0 || options.trace < 0
+                || options.shards <= 0 || options.shards > options.dim
+                || (options.cluster != null && (options.node < 0 || options.node >= options.cluster.size()
+                        || options.clusterKey == null))
+                || options.replicationPort < 0
+                || ((options.replicationPort > 0 || options.replicaOf != null) && options.replicationKey == null)
+                || (options.replicaOf != null && (options.journal != null || options.cluster != null))
+                || (options.relayOf != null && (options.relayKey == null || options.journal != null
+                        || options.cluster != null || options.replicaOf != null))) {
+            throw new IllegalArgumentException(USAGE);
+        }
+        return options;
+    }
+
+    /**
+     * Set one optional setting.
+     *
+     * @param name the setting name
+     * @param value the setting value
+     */
+    private void set(String name, String value) {
+        switch (name) {
+            case "mode":
+                this.mode = Mode.valueOf(value.toUpperCase());
+                break;
+            case "io-loops":
+                this.ioLoops = Integer.parseInt(value);
+                break;
+            case "max-clients":
+                this.maxClients = Integer.parseInt(value);
+                break;
+            case "max-same-ip":
+                this.maxSameIp = Integer.parseInt(value);
+                break;
+            case "queue-size":
+                this.queueSize = Integer.parseInt(value);
+                break;
+            case "rate":
+                this.rate = Double.parseDouble(value);
+                break;
+            case "burst":
+                this.burst = Integer.parseInt(value);
+                break;
+            case "cooldown-key":
+                if (!value.equals("user") && !value.equals("ip")) {
+                    throw new IllegalArgumentException("Unknown cooldown key " + value + "\n" + USAGE);
+                }
+                this.cooldownByIp = value.equals("ip");
+                break;
+            case "tick":
+                this.tick = Integer.parseInt(value);
+                break;
+            case "snapshot":
+                if (!value.equals("full") && !value.equals("colors")) {
+                    throw new IllegalArgumentException("Unknown snapshot " + value + "\n" + USAGE);
+                }
+                this.snapshotMetadata = value.equals("full");
+                break;
+            case "stream-dim":
+                this.streamDim = Integer.parseInt(value);
+                break;
+            case "journal":
+                this.journal = value;
+                break;
+            case "fsync":
+                this.fsync = TileJournal.FsyncPolicy.valueOf(value.toUpperCase());
+                break;
+            case "fsync-ms":
+                this.fsyncMillis = Integer.parseInt(value);
+                break;
+            case "snapshot-every":
+                this.snapshotSeconds = Integer.parseInt(value);
+                break;
+            case "history":
+                this.historyKeyframe = Integer.parseInt(value);
+                break;
+            case "history-blocks":
+                this.historyBlocks = Integer.parseInt(value);
+                break;
+            case "resume-window":
+                this.resumeWindow = Integer.parseInt(value);
+                break;
+            case "login-timeout":
+                this.loginTimeout = Integer.parseInt(value);
+                break;
+            case "max-logins":
+                this.maxLogins = Integer.parseInt(value);
+                break;
+            case "metrics-port":
+                this.metricsPort = Integer.parseInt(value);
+                break;
+            case "trace":
+                this.trace = Integer.parseInt(value);
+                break;
+            case "cluster":
+                List<InetSocketAddress> nodes = new ArrayList<>();
+                for (String address : value.split(",")) {
+                    nodes.add(address(address));
+                }
+                this.cluster = Collections.unmodifiableList(nodes);
+                break;
+            case "node":
+                this.node = Integer.parseInt(value);
+                break;
+            case "cluster-key":
+                this.clusterKey = value;
+                break;
+            case "shards":
+                this.shards = Integer.parseInt(value);
+                break;
+            case "replication-port":
+                this.replicationPort = Integer.parseInt(value);
+                break;
+            case "replication-host":
+                this.replicationHost = value;
+                break;
+            case "replica-of":
+                this.replicaOf = address(value);
+                break;
+            case "replication-key":
+                this.replicationKey = value;
+                break;
+            case "relay-key":
+                this.relayKey = value;
+                break;
+            case "relay-of":
+                this.relayOf = address(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option --" + name + "\n" + USAGE);
+        }
+    }
+
+    /**
+     * Parses a HOST:PORT address without looking the host up.
+     *
+     * @param address the address
+     * @return the unresolved address
+     */
+    private static InetSocketAddress address(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Bad address " + address + "\n" + USAGE);
+        }
+        return InetSocketAddress.createUnresolved(address.substring(0, colon),
+                Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() { return this.port; }
+
+    /**
+     * @return the square dimension of the board
+     */
+    public int getDim() { return this.dim; }
+
+    /**
+     * @return how client connections are handled
+     */
+    public Mode getMode() { return this.mode; }
+
+    /**
+     * @return the number of selector loops in NIO mode
+     */
+    public int getIoLoops() { return this.ioLoops; }
+
+    /**
+     * @return the most clients logged in at once
+     */
+    public int getMaxClients() { return this.maxClients; }
+
+    /**
+     * @return the most clients logged in at once from one ip
+     */
+    public int getMaxSameIp() { return this.maxSameIp; }
+
+    /**
+     * @return the most frames queued for one client before it is disconnected
+     */
+    public int getQueueSize() { return this.queueSize; }
+
+    /**
+     * @return the tile changes per second allowed for each user or ip
+     */
+    public double getRate() { return this.rate; }
+
+    /**
+     * @return the tile changes allowed at once after a quiet period
+     */
+    public int getBurst() { return this.burst; }
+
+    /**
+     * @return whether the cooldown is per ip rather than per username
+     */
+    public boolean isCooldownByIp() { return this.cooldownByIp; }
+
+    /**
+     * @return the milliseconds to collect tile changes before broadcasting them, 0 to send each at once
+     */
+    public int getTick() { return this.tick; }
+
+    /**
+     * @return whether login snapshots include the owner and time of every tile
+     */
+    public boolean isSnapshotMetadata() { return this.snapshotMetadata; }
+
+    /**
+     * @return the smallest board dimension whose login snapshots are streamed in chunks
+     */
+    public int getStreamDim() { return this.streamDim; }
+
+    /**
+     * @return the journal file, or null to keep the board only in memory
+     */
+    public String getJournal() { return this.journal; }
+
+    /**
+     * @return when the journal is forced to disk
+     */
+    public TileJournal.FsyncPolicy getFsync() { return this.fsync; }
+
+    /**
+     * @return how often the journal is forced to disk with the interval policy
+     */
+    public int getFsyncMillis() { return this.fsyncMillis; }
+
+    /**
+     * @return how often a journaled board is saved in a snapshot, 0 for never
+     */
+    public int getSnapshotSeconds() { return this.snapshotSeconds; }
+
+    /**
+     * @return how many changes the history records between keyframes, 0 to keep no history
+     */
+    public int getHistoryKeyframe() { return this.historyKeyframe; }
+
+    /**
+     * @return how many blocks of keyframe changes the history keeps
+     */
+    public int getHistoryBlocks() { return this.historyBlocks; }
+
+    /**
+     * @return how many of the latest changes are kept for reconnecting clients, 0 for none
+     */
+    public int getResumeWindow() { return this.resumeWindow; }
+
+    /**
+     * @return how many milliseconds a new connection has to log in
+     */
+    public int getLoginTimeout() { return this.loginTimeout; }
+
+    /**
+     * @return the most connections logging in at once
+     */
+    public int getMaxLogins() { return this.maxLogins; }
+
+    /**
+     * @return the local port the metrics are served as text on, 0 for none
+     */
+    public int getMetricsPort() { return this.metricsPort; }
+
+    /**
+     * @return trace about one in this many tile changes, 0 for none
+     */
+    public int getTrace() { return this.trace; }
+
+    /**
+     * @return the unresolved bus addresses of the cluster's nodes in order, or null to run alone
+     */
+    public List<InetSocketAddress> getCluster() { return this.cluster; }
+
+    /**
+     * @return this server's place in the cluster
+     */
+    public int getNode() { return this.node; }
+
+    /**
+     * @return the key the nodes of the cluster and its admins say hello with
+     */
+    public String getClusterKey() { return this.clusterKey; }
+
+    /**
+     * @return the number of shards along each side of the board in a cluster
+     */
+    public int getShards() { return this.shards; }
+
+    /**
+     * @return the port replicas connect to, 0 for none
+     */
+    public int getReplicationPort() { return this.replicationPort; }
+
+    /**
+     * @return the address the replication port is opened on
+     */
+    public String getReplicationHost() { return this.replicationHost; }
+
+    /**
+     * @return the unresolved replication address of the primary this server is a replica of, or null
+     */
+    public InetSocketAddress getReplicaOf() { return this.replicaOf; }
+
+    /**
+     * @return the key replicas connect with
+     */
+    public String getReplicationKey() { return this.replicationKey; }
+
+    /**
+     * @return the key relays log in with, null to take no relays
+     */
+    public String getRelayKey() { return this.relayKey; }
+
+    /**
+     * @return the unresolved address of the server this server relays, or null
+     */
+    public InetSocketAddress getRelayOf() { return this.relayOf; }
+}
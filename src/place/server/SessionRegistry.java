@@ -0,0 +1,153 @@
+package place.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The logged in clients, indexed by username, with a count of the clients
+ * from each ip.  Adding and removing a client takes the same time however
+ * many are logged in, and any thread may do either at once.
+ *
+ * A username is claimed before the other limits are checked, so two
+ * clients logging in with the same name at once can't both get it.  A
+ * client that then turns out to be over a limit gives the name back.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class SessionRegistry {
+    /**
+     * What became of a client being added.
+     */
+    public enum Result {
+        /** The client is logged in */
+        ADDED,
+        /** Another client has the username */
+        NAME_TAKEN,
+        /** The ip has the most clients it may have */
+        IP_FULL,
+        /** The server has the most clients it may have */
+        SERVER_FULL
+    }
+
+    private final int maxClients;
+    private final int maxSameIp;
+    /** The clients by username */
+    private final ConcurrentHashMap<String, ClientConnection> byName;
+    /** How many clients each ip has, ips with none are left out */
+    private final ConcurrentHashMap<String, Integer> perIp;
+    /** How many clients are logged in */
+    private final AtomicInteger count;
+
+    /**
+     * Creates an empty registry.
+     *
+     * @param maxClients the most clients logged in at once
+     * @param maxSameIp the most clients logged in at once from one ip
+     */
+    public SessionRegistry(int maxClients, int maxSameIp) {
+        this.maxClients = maxClients;
+        this.maxSameIp = maxSameIp;
+        this.byName = new ConcurrentHashMap<>();
+        this.perIp = new ConcurrentHashMap<>();
+        this.count = new AtomicInteger();
+    }
+
+    /**
+     * Adds a client under a username, if the name is free and neither its
+     * ip nor the server is full.
+     *
+     * @param client the client
+     * @param userName the username
+     * @return whether the client was added, or why not
+     */
+    public Result add(ClientConnection client, String userName) {
+        if (this.byName.putIfAbsent(userName, client) != null) {
+            return Result.NAME_TAKEN;
+        }
+        if (!addIp(client.getIp())) {
+            this.byName.remove(userName, client);
+            return Result.IP_FULL;
+        }
+        if (this.count.incrementAndGet() > this.maxClients) {
+            this.count.decrementAndGet();
+            removeIp(client.getIp());
+            this.byName.remove(userName, client);
+            return Result.SERVER_FULL;
+        }
+        return Result.ADDED;
+    }
+
+    /**
+     * Removes a client.
+     *
+     * @param client the client
+     * @param userName the username it was added under
+     * @return whether the client was there
+     */
+    public boolean remove(ClientConnection client, String userName) {
+        if (userName == null || !this.byName.remove(userName, client)) {
+            return false;
+        }
+        this.count.decrementAndGet();
+        removeIp(client.getIp());
+        return true;
+    }
+
+    /**
+     * Gets the client with a username.
+     *
+     * @param userName the username
+     * @return the client, or null if nobody has the name
+     */
+    public ClientConnection get(String userName) {
+        return this.byName.get(userName);
+    }
+
+    /**
+     * Gets the logged in clients.  The view changes as clients come and
+     * go, and never throws while it is being iterated.
+     *
+     * @return the clients
+     */
+    public Collection<ClientConnection> clients() {
+        return this.byName.values();
+    }
+
+    /**
+     * Gets the number of logged in clients.
+     *
+     * @return the count
+     */
+    public int size() {
+        return this.count.get();
+    }
+
+    /**
+     * Counts one more client from an ip, unless it has the most already.
+     *
+     * @param ip the ip
+     * @return whether it was counted
+     */
+    private boolean addIp(String ip) {
+        boolean[] added = new boolean[1];
+        this.perIp.compute(ip, (k, n) -> {
+            int clients = n == null ? 0 : n;
+            if (clients >= this.maxSameIp) {
+                return n;
+            }
+            added[0] = true;
+            return clients + 1;
+        });
+        return added[0];
+    }
+
+    /**
+     * Counts one less client from an ip.
+     *
+     * @param ip the ip
+     */
+    private void removeIp(String ip) {
+        this.perIp.computeIfPresent(ip, (k, n) -> n == 1 ? null : n - 1);
+    }
+}
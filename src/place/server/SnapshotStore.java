@@ -0,0 +1,187 @@
+package place.server;
+
+import place.PlaceBoard;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Saves board snapshots to a file and loads the latest one on startup.  The
+ * file holds a magic number, the board dimension, the sequence number and
+ * time of the last change in the snapshot, the first journal segment after
+ * it, the board in its packed binary form with the owners and times, and a
+ * CRC32 of all of that.
+ *
+ * A snapshot is written to a temporary file, forced to disk and then moved
+ * over the old one, so a crash while saving leaves the old snapshot.
+ * Loading maps the file into memory instead of reading it through a stream,
+ * a region of at most a gigabyte at a time since a large board's snapshot
+ * is more than one buffer can hold.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class SnapshotStore {
+    /** The first int of the file, "PLS1" */
+    private static final int MAGIC = 0x504C5331;
+    /** The size of the header, before the board */
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES + Integer.BYTES;
+    /** The most bytes mapped at a time */
+    private static final long REGION = 1L << 30;
+
+    private final Path file;
+    private final Path temp;
+
+    /**
+     * Creates a store.
+     *
+     * @param path the snapshot file
+     */
+    public SnapshotStore(String path) {
+        this.file = Paths.get(path);
+        this.temp = Paths.get(path + ".tmp");
+    }
+
+    /**
+     * Saves a snapshot in place of the last one.
+     *
+     * @param snapshot the snapshot
+     * @throws IOException if the snapshot can't be written
+     */
+    public void save(BoardSnapshot snapshot) throws IOException {
+        PlaceBoard board = snapshot.getBoard();
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(this.temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(board.DIM);
+            out.writeLong(snapshot.getSequence());
+            out.writeLong(snapshot.getTime());
+            out.writeInt(snapshot.getSegment());
+            board.writeTo(out, true);
+            out.flush();
+            ByteBuffer sum = ByteBuffer.allocate(Integer.BYTES);
+            sum.putInt(0, (int) crc.getValue());
+            while (sum.hasRemaining()) {
+                channel.write(sum);
+            }
+            channel.force(true);
+        }
+        Files.move(this.temp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the saved snapshot.
+     *
+     * @param DIM the dimension the board should have
+     * @return the snapshot, or null if none has been saved
+     * @throws IOException if the snapshot can't be read, is damaged or is for another board
+     */
+    public BoardSnapshot load(int DIM) throws IOException {
+        if (!Files.exists(this.file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + Integer.BYTES) {
+                throw new IOException(this.file + " is not a board snapshot");
+            }
+            long end = size - Integer.BYTES;
+            CRC32 crc = new CRC32();
+            for (long at = 0; at < end; at += REGION) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, at, Math.min(REGION, end - at)));
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            ByteBuffer sum = channel.map(FileChannel.MapMode.READ_ONLY, end, Integer.BYTES);
+            if (header.getInt(0) != MAGIC || sum.getInt(0) != (int) crc.getValue()) {
+                throw new IOException(this.file + " is damaged");
+            }
+            if (header.getInt(4) != DIM) {
+                throw new IOException("The snapshot is for a board of " + header.getInt(4));
+            }
+            long sequence = header.getLong(8);
+            long time = header.getLong(16);
+            int segment = header.getInt(24);
+            PlaceBoard board = PlaceBoard.readFrom(new DataInputStream(new MappedInput(channel, HEADER_SIZE, end)),
+                    DIM, true);
+            return new BoardSnapshot(board, sequence, time, segment);
+        }
+    }
+
+    /**
+     * Reads part of a file as a stream, mapping a region at a time.
+     */
+    private static class MappedInput extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        /** Where the region after this one starts */
+        private long next;
+        private ByteBuffer buffer;
+
+        /**
+         * Creates a stream over part of a file.
+         *
+         * @param channel the file
+         * @param start where the stream starts
+         * @param end where it ends
+         */
+        private MappedInput(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.end = end;
+            this.next = start;
+            this.buffer = ByteBuffer.allocate(0);
+        }
+
+        /**
+         * Maps the next region once the last one is read.
+         *
+         * @return whether anything is left
+         * @throws IOException if the region can't be mapped
+         */
+        private boolean fill() throws IOException {
+            if (!this.buffer.hasRemaining() && this.next < this.end) {
+                long length = Math.min(REGION, this.end - this.next);
+                this.buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, this.next, length);
+                this.next += length;
+            }
+            return this.buffer.hasRemaining();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? this.buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            length = Math.min(length, this.buffer.remaining());
+            this.buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, this.buffer.remaining() + (this.end - this.next));
+        }
+    }
+}
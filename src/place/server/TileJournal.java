@@ -0,0 +1,556 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the tile changes applied to the board, so the
+ * board survives a restart.  Every change is a fixed 32 byte record:
+ * sequence number, time, row and column as unsigned shorts, owner id,
+ * color, three reserved bytes and a CRC32 of the rest.  The records are
+ * split into numbered segment files, path.000000, path.000001 and so on,
+ * each starting with a header record holding a magic number and the board
+ * dimension.  A new segment is started whenever a {@link BoardSnapshot} is
+ * taken, so once the snapshot is saved the segments before it can be
+ * deleted.  The owner names live in a side file, one writeUTF string per
+ * owner id, which is always written ahead of the records that use them.
+ *
+ * Only the sequencer thread appends.  Records collect in a buffer and are
+ * written with one system call whenever the sequencer runs out of events,
+ * so a burst of changes is committed as a group.  How often the file is
+ * forced to disk is the {@link FsyncPolicy}.  A torn record at the end of
+ * the file, left by a crash, is dropped when the journal is replayed.  So
+ * is a record whose owner is not in the side file: unless the policy is
+ * ALWAYS nothing makes the side file reach the disk before the records.
+ *
+ * @author David Pitoniak dhp6397@rit.edu
+ */
+public class TileJournal implements Closeable {
+    /**
+     * When the journal is forced to disk.
+     */
+    public enum FsyncPolicy {
+        /**
+         * After every group of changes is written, before the sequencer
+         * sends any of them out: a group commit
+         */
+        ALWAYS,
+        /** Every few milliseconds, by the server's housekeeping thread */
+        INTERVAL,
+        /** Whenever the operating system gets to it */
+        OS
+    }
+
+    /** The size of a record, and of the header */
+    public static final int RECORD_SIZE = 32;
+    /** The first int of the header, "PLJ1" */
+    private static final int MAGIC = 0x504C4A31;
+    /** How many records are buffered before they are written regardless */
+    private static final int BUFFER_RECORDS = 2048;
+
+    private final String path;
+    /** The segment being appended to */
+    private volatile FileChannel records;
+    private int segment;
+    private final FileChannel owners;
+    private final FsyncPolicy policy;
+    private final ByteBuffer buffer;
+    private final ByteArrayOutputStream ownerBytes;
+    private final DataOutputStream ownerOut;
+    private final CRC32 crc;
+    /** The number of owner names in the side file or its buffer */
+    private int ownerCount;
+    /** The sequence number of the last record */
+    private long lastSequence;
+    /** The time of the last record */
+    private long lastTime;
+
+    /**
+     * Opens a journal, creating it if needed.  Call
+     * {@link #replay(BoardSnapshot)} before appending to it.
+     *
+     * @param path the prefix of the segment files, the owner names go next to them in path.owners
+     * @param policy when to force the journal to disk
+     * @throws IOException if the files can't be opened
+     */
+    public TileJournal(String path, FsyncPolicy policy) throws IOException {
+        this.path = path;
+        this.owners = FileChannel.open(Paths.get(path + ".owners"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.policy = policy;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE);
+        this.ownerBytes = new ByteArrayOutputStream();
+        this.ownerOut = new DataOutputStream(this.ownerBytes);
+        this.crc = new CRC32();
+    }
+
+    /**
+     * Brings a snapshot up to date with the journal segments after it, or
+     * starts a new journal for it if there are none.  Segments from before
+     * the snapshot are deleted.
+     *
+     * @param snapshot the saved snapshot, or an empty board with sequence 0 and segment 0
+     * @param history the history to record the replayed changes in, or null
+     * @return the number of records replayed
+     * @throws IOException if the journal can't be read or is for another board
+     */
+    public long replay(BoardSnapshot snapshot, HistoryStore history) throws IOException {
+        PlaceBoard board = snapshot.getBoard();
+        replayOwners(board);
+        this.lastSequence = snapshot.getSequence();
+        this.lastTime = snapshot.getTime();
+        compact(snapshot.getSegment());
+        List<Integer> segments = segments();
+        if (segments.isEmpty()) {
+            this.segment = snapshot.getSegment();
+            this.records = create(this.segment, board.DIM);
+            return 0;
+        }
+        long replayed = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            this.segment = segments.get(i);
+            this.records = FileChannel.open(segmentFile(this.segment), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            boolean last = i == segments.size() - 1;
+            try {
+                replayed += replaySegment(board, history, last);
+            } finally {
+                if (!last) {
+                    this.records.close();
+                }
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Applies the records of the open segment that come after the snapshot.
+     * A torn record, or one whose owner name was lost, ends the last
+     * segment, anywhere else it means the journal is damaged.
+     *
+     * @param board the board
+     * @param history the history to record the changes in, or null
+     * @param last whether this is the last segment, which is kept open for appending
+     * @return the number of records applied
+     * @throws IOException if the segment can't be read or is for another board
+     */
+    private long replaySegment(PlaceBoard board, HistoryStore history, boolean last) throws IOException {
+        if (this.records.size() < RECORD_SIZE && last) {
+            this.records.close();
+            this.records = create(this.segment, board.DIM);
+            return 0;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_SIZE);
+        readFully(this.records, header, 0);
+        if (header.getInt(0) != MAGIC || !isSealed(header)) {
+            throw new IOException(segmentFile(this.segment) + " is not a tile journal");
+        }
+        if (header.getInt(4) != board.DIM) {
+            throw new IOException("The journal is for a board of " + header.getInt(4));
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_SIZE);
+        long position = RECORD_SIZE;
+        long replayed = 0;
+        boolean torn = false;
+        while (!torn) {
+            chunk.clear();
+            int read = this.records.read(chunk, position);
+            if (read < RECORD_SIZE) {
+                break;
+            }
+            chunk.flip();
+            while (chunk.remaining() >= RECORD_SIZE) {
+                ByteBuffer record = chunk.slice();
+                record.limit(RECORD_SIZE);
+                int owner = record.getInt(20);
+                if (!isSealed(record) || owner < 0 || owner >= board.getOwnerCount()) {
+                    torn = true;
+                    break;
+                }
+                if (record.getLong(0) > this.lastSequence) {
+                    applyRecord(board, history, record);
+                    replayed++;
+                }
+                chunk.position(chunk.position() + RECORD_SIZE);
+                position += RECORD_SIZE;
+            }
+        }
+        if (position < this.records.size()) {
+            if (!last) {
+                throw new IOException(segmentFile(this.segment) + " is damaged at byte " + position);
+            }
+            System.out.println("Dropping " + (this.records.size() - position) + " torn bytes from the journal.");
+            this.records.truncate(position);
+        }
+        this.records.position(position);
+        return replayed;
+    }
+
+    /**
+     * Creates an empty segment with its header.
+     *
+     * @param segment the segment number
+     * @param DIM the board dimension
+     * @return the segment, positioned after the header
+     * @throws IOException if the segment can't be written
+     */
+    private FileChannel create(int segment, int DIM) throws IOException {
+        FileChannel file = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(DIM);
+        seal(header);
+        header.flip();
+        writeFully(file, header, 0);
+        file.force(true);
+        file.position(RECORD_SIZE);
+        return file;
+    }
+
+    /**
+     * Writes out the current segment and starts the next one.  The
+     * sequencer does this when it takes a snapshot, so the changes after
+     * the snapshot start in a segment of their own.  Only the sequencer
+     * thread may call this.
+     *
+     * @param DIM the board dimension
+     * @return the number of the new segment
+     * @throws IOException if the segments can't be written
+     */
+    public int roll(int DIM) throws IOException {
+        flush();
+        force();
+        FileChannel next = create(this.segment + 1, DIM);
+        FileChannel old = this.records;
+        this.records = next;
+        this.segment++;
+        old.close();
+        return this.segment;
+    }
+
+    /**
+     * Deletes the segments before one, once a snapshot that holds their
+     * changes is saved.  Safe to call from any thread.
+     *
+     * @param segment the first segment to keep
+     * @throws IOException if a segment can't be deleted
+     */
+    public void compact(int segment) throws IOException {
+        for (int old : segments()) {
+            if (old < segment) {
+                Files.deleteIfExists(segmentFile(old));
+            }
+        }
+    }
+
+    /**
+     * Finds the segment files.
+     *
+     * @return the segment numbers, in order
+     * @throws IOException if the directory can't be listed
+     */
+    private List<Integer> segments() throws IOException {
+        Path prefix = Paths.get(this.path).toAbsolutePath();
+        String name = prefix.getFileName() + ".";
+        List<Integer> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(prefix.getParent(), name + "*")) {
+            for (Path file : files) {
+                String number = file.getFileName().toString().substring(name.length());
+                if (number.matches("[0-9]{6,}")) {
+                    segments.add(Integer.parseInt(number));
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Gets a segment's file.
+     *
+     * @param segment the segment number
+     * @return the file
+     */
+    private Path segmentFile(int segment) {
+        return Paths.get(String.format("%s.%06d", this.path, segment));
+    }
+
+    /**
+     * Reads the owner names back into the board's owner table.
+     *
+     * @param board the board
+     * @throws IOException if the side file can't be read
+     */
+    private void replayOwners(PlaceBoard board) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate((int) this.owners.size());
+        readFully(this.owners, bytes, 0);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.array()));
+        int good = 0;
+        try {
+            while (in.available() > 0) {
+                board.setOwnerName(this.ownerCount, in.readUTF());
+                this.ownerCount++;
+                good = bytes.capacity() - in.available();
+            }
+        } catch (EOFException e) {
+            // A name torn by a crash, drop it.
+        }
+        if (good < this.owners.size()) {
+            this.owners.truncate(good);
+        }
+        this.owners.position(good);
+    }
+
+    /**
+     * Applies one record to the board.
+     *
+     * @param board the board
+     * @param history the history to record the change in, or null
+     * @param record the record
+     * @throws IOException if the record does not fit the board
+     */
+    private void applyRecord(PlaceBoard board, HistoryStore history, ByteBuffer record) throws IOException {
+        long sequence = record.getLong(0);
+        long time = record.getLong(8);
+        int row = record.getShort(16) & 0xFFFF;
+        int col = record.getShort(18) & 0xFFFF;
+        int owner = record.getInt(20);
+        int color = record.get(24) & 0x0F;
+        if (owner < 0 || owner >= board.getOwnerCount()) {
+            throw new IOException("Journal record " + sequence + " has unknown owner " + owner);
+        }
+        PlaceTile tile = new PlaceTile(row, col, board.getOwnerName(owner), PlaceColor.getPlaceColor(color), time);
+        if (!board.isValid(tile)) {
+            throw new IOException("Journal record " + sequence + " is off the board");
+        }
+        board.setTile(tile);
+        if (history != null) {
+            history.record(board, tile);
+        }
+        this.lastSequence = sequence;
+        this.lastTime = time;
+    }
+
+    /**
+     * Appends an applied change to the buffer, along with any owner names
+     * the journal does not have yet.  Only the sequencer thread may call this.
+     *
+     * @param board the board, after the change
+     * @param sequence the change's sequence number
+     * @param tile the tile as applied
+     * @throws IOException if a full buffer can't be written
+     */
+    public void append(PlaceBoard board, long sequence, PlaceTile tile) throws IOException {
+        while (this.ownerCount < board.getOwnerCount()) {
+            this.ownerOut.writeUTF(board.getOwnerName(this.ownerCount++));
+        }
+        if (this.buffer.remaining() < RECORD_SIZE) {
+            flush();
+        }
+        int start = this.buffer.position();
+        this.buffer.putLong(sequence);
+        this.buffer.putLong(tile.getTime());
+        this.buffer.putShort((short) tile.getRow());
+        this.buffer.putShort((short) tile.getCol());
+        this.buffer.putInt(board.getOwnerId(tile.getOwner()));
+        this.buffer.put((byte) tile.getColor().getNumber());
+        this.buffer.put((byte) 0);
+        this.buffer.putShort((short) 0);
+        ByteBuffer record = this.buffer.duplicate();
+        record.position(start);
+        record.limit(start + RECORD_SIZE - Integer.BYTES);
+        this.crc.reset();
+        this.crc.update(record);
+        this.buffer.putInt((int) this.crc.getValue());
+        this.lastSequence = sequence;
+        this.lastTime = tile.getTime();
+    }
+
+    /**
+     * Tells whether there are appended records that have not been written.
+     *
+     * @return is the buffer not empty?
+     */
+    public boolean hasPending() {
+        return this.buffer.position() > 0 || this.ownerBytes.size() > 0;
+    }
+
+    /**
+     * Writes the buffered owner names and records, owners first, and forces
+     * them to disk if the policy is {@link FsyncPolicy#ALWAYS}.  Only the
+     * sequencer thread may call this.
+     *
+     * @throws IOException if the journal can't be written
+     */
+    public void flush() throws IOException {
+        if (this.ownerBytes.size() > 0) {
+            ByteBuffer names = ByteBuffer.wrap(this.ownerBytes.toByteArray());
+            while (names.hasRemaining()) {
+                this.owners.write(names);
+            }
+            this.ownerBytes.reset();
+            if (this.policy == FsyncPolicy.ALWAYS) {
+                this.owners.force(false);
+            }
+        }
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.records.write(this.buffer);
+        }
+        this.buffer.clear();
+        if (this.policy == FsyncPolicy.ALWAYS) {
+            this.records.force(false);
+        }
+    }
+
+    /**
+     * Forces what has been written so far to disk.  Safe to call from any
+     * thread, the housekeeping thread does so for the
+     * {@link FsyncPolicy#INTERVAL} policy.
+     *
+     * @throws IOException if the journal can't be forced
+     */
+    public void force() throws IOException {
+        this.owners.force(false);
+        this.records.force(false);
+    }
+
+    /**
+     * Gets the segment being appended to.
+     *
+     * @return the segment number
+     */
+    public int getSegment() {
+        return this.segment;
+    }
+
+    /**
+     * Gets the sequence number of the last record.
+     *
+     * @return the sequence number, 0 for an empty journal
+     */
+    public long getLastSequence() {
+        return this.lastSequence;
+    }
+
+    /**
+     * Gets the time of the last record.
+     *
+     * @return the time in milliseconds, 0 for an empty journal
+     */
+    public long getLastTime() {
+        return this.lastTime;
+    }
+
+    /**
+     * Gets the policy for forcing the journal to disk.
+     *
+     * @return the policy
+     */
+    public FsyncPolicy getPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * Writes and forces what is left, then closes the files.
+     *
+     * @throws IOException if the journal can't be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.records == null) {
+            this.owners.close();
+            return;
+        }
+        try {
+            flush();
+            force();
+        } finally {
+            this.owners.close();
+            this.records.close();
+        }
+    }
+
+    /**
+     * Fills in the CRC of a record or header from its other bytes.
+     *
+     * @param record the record, positioned at its CRC
+     */
+    private void seal(ByteBuffer record) {
+        ByteBuffer body = record.duplicate();
+        body.position(0);
+        body.limit(RECORD_SIZE - Integer.BYTES);
+        this.crc.reset();
+        this.crc.update(body);
+        record.putInt(RECORD_SIZE - Integer.BYTES, (int) this.crc.getValue());
+        record.position(RECORD_SIZE);
+    }
+
+    /**
+     * Checks the CRC of a record or header.
+     *
+     * @param record the record, starting at index 0
+     * @return whether the record is whole
+     */
+    private boolean isSealed(ByteBuffer record) {
+        ByteBuffer body = record.duplicate();
+        body.position(0);
+        body.limit(RECORD_SIZE - Integer.BYTES);
+        this.crc.reset();
+        this.crc.update(body);
+        return record.getInt(RECORD_SIZE - Integer.BYTES) == (int) this.crc.getValue();
+    }
+
+    /**
+     * Reads a whole buffer from a file.
+     *
+     * @param file the file
+     * @param buffer the buffer to fill
+     * @param position where in the file to start
+     * @throws IOException if the file is too short or can't be read
+     */
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("The journal ends early");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Writes a whole buffer to a file.
+     *
+     * @param file the file
+     * @param buffer the buffer to write
+     * @param position where in the file to start
+     * @throws IOException if the file can't be written
+     */
+    private static void writeFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += file.write(buffer, position);
+        }
+    }
+}